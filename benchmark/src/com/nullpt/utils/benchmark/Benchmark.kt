@@ -0,0 +1,170 @@
+package com.nullpt.utils.benchmark
+
+import java.lang.management.ManagementFactory
+import java.util.Locale
+import kotlin.math.sqrt
+
+/**
+ * 基准测试，固定轮数的预热和测量，输出吞吐均值、标准差和每次操作分配的字节数
+ * 分配统计依赖HotSpot的com.sun.management.ThreadMXBean，不支持时输出-1
+ *
+ * @param warmupIterations  预热轮数
+ * @param measureIterations 测量轮数
+ * @param iterationMillis   每轮时长
+ */
+class Benchmark(
+    private val warmupIterations: Int = 3,
+    private val measureIterations: Int = 5,
+    private val iterationMillis: Long = 1000
+) {
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean()
+
+    /**
+     * 消费操作结果，避免被JIT当作无用代码消除
+     */
+    @Volatile
+    private var mSink: Any? = null
+    private var mSinkHits = 0
+
+    /**
+     * 在当前线程循环执行[op]，统计当前线程的分配
+     *
+     * @param name 名称
+     * @param op   单次操作，返回值会被消费
+     */
+    fun run(name: String, op: () -> Any?): Result {
+        val threadId = Thread.currentThread().id
+        val opsPerSecond = DoubleArray(measureIterations)
+        /*不支持时两次采样都是-1，相减为0，需要单独记录*/
+        var allocationSupported = true
+        var allocated = 0L
+        var totalOps = 0L
+        for (i in 0 until warmupIterations + measureIterations) {
+            val startAllocated = threadAllocatedBytes(threadId)
+            val start = System.nanoTime()
+            val deadline = start + iterationMillis * 1_000_000
+            var ops = 0L
+            do {
+                /*每批16次，减少读时钟的开销*/
+                for (j in 0 until 16) {
+                    if (op() === mSink) {
+                        mSinkHits++
+                    }
+                }
+                ops += 16
+            } while (System.nanoTime() < deadline)
+            val elapsed = System.nanoTime() - start
+            val endAllocated = threadAllocatedBytes(threadId)
+            if (i >= warmupIterations) {
+                opsPerSecond[i - warmupIterations] = ops * 1e9 / elapsed
+                if (startAllocated < 0 || endAllocated < 0) {
+                    allocationSupported = false
+                } else {
+                    allocated += endAllocated - startAllocated
+                }
+                totalOps += ops
+            }
+        }
+        return report(name, opsPerSecond, if (allocationSupported) allocated.toDouble() / totalOps else -1.0)
+    }
+
+    /**
+     * 后台异步执行的操作，按[counter]每轮的增量统计吞吐，统计所有线程的分配
+     *
+     * @param name    名称
+     * @param counter 已完成的操作数
+     */
+    fun runAsync(name: String, counter: () -> Long): Result {
+        val opsPerSecond = DoubleArray(measureIterations)
+        var allocationSupported = true
+        var allocated = 0L
+        var totalOps = 0L
+        for (i in 0 until warmupIterations + measureIterations) {
+            val startAllocated = allThreadsAllocatedBytes()
+            val startOps = counter()
+            val start = System.nanoTime()
+            Thread.sleep(iterationMillis)
+            val ops = counter() - startOps
+            val elapsed = System.nanoTime() - start
+            val endAllocated = allThreadsAllocatedBytes()
+            if (i >= warmupIterations) {
+                opsPerSecond[i - warmupIterations] = ops * 1e9 / elapsed
+                if (startAllocated < 0 || endAllocated < 0) {
+                    allocationSupported = false
+                } else {
+                    allocated += endAllocated - startAllocated
+                }
+                totalOps += ops
+            }
+        }
+        return report(name, opsPerSecond, if (allocationSupported && totalOps > 0) allocated.toDouble() / totalOps else -1.0)
+    }
+
+    /**
+     * 逐次计时，输出延迟分位数，适合单个请求往返
+     *
+     * @param name       名称
+     * @param operations 测量次数，预热次数相同
+     * @param op         单次操作
+     */
+    fun latency(name: String, operations: Int, op: () -> Unit): LongArray {
+        repeat(operations) {
+            op()
+        }
+        val latencies = LongArray(operations)
+        for (i in 0 until operations) {
+            val start = System.nanoTime()
+            op()
+            latencies[i] = System.nanoTime() - start
+        }
+        latencies.sort()
+        println(String.format(Locale.ROOT, "%-48s p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us",
+            name, percentile(latencies, 0.5) / 1e3, percentile(latencies, 0.99) / 1e3,
+            percentile(latencies, 0.999) / 1e3, latencies[operations - 1] / 1e3))
+        return latencies
+    }
+
+    private fun report(name: String, opsPerSecond: DoubleArray, bytesPerOp: Double): Result {
+        val mean = opsPerSecond.average()
+        val stddev = sqrt(opsPerSecond.sumOf { (it - mean) * (it - mean) } / opsPerSecond.size)
+        val result = Result(name, mean, stddev, bytesPerOp)
+        println(result)
+        return result
+    }
+
+    private fun threadAllocatedBytes(threadId: Long): Long {
+        val bean = threadMXBean
+        if (bean is com.sun.management.ThreadMXBean && bean.isThreadAllocatedMemorySupported && bean.isThreadAllocatedMemoryEnabled) {
+            return bean.getThreadAllocatedBytes(threadId)
+        }
+        return -1
+    }
+
+    /**
+     * 统计期间结束的线程的分配会丢失，异步测试中线程都是常驻的
+     */
+    private fun allThreadsAllocatedBytes(): Long {
+        val bean = threadMXBean
+        if (bean is com.sun.management.ThreadMXBean && bean.isThreadAllocatedMemorySupported && bean.isThreadAllocatedMemoryEnabled) {
+            return bean.getThreadAllocatedBytes(bean.allThreadIds).sumOf { if (it > 0) it else 0 }
+        }
+        return -1
+    }
+
+    private fun percentile(sorted: LongArray, p: Double): Long {
+        return sorted[((sorted.size - 1) * p).toInt()]
+    }
+
+    /**
+     * @param opsPerSecond 每秒操作数均值
+     * @param stddev       每秒操作数标准差
+     * @param bytesPerOp   每次操作分配字节数，-1为不支持
+     */
+    data class Result(val name: String, val opsPerSecond: Double, val stddev: Double, val bytesPerOp: Double) {
+        override fun toString(): String {
+            return String.format(Locale.ROOT, "%-48s %14.1f ops/s  +- %5.1f%%  %12.1f B/op",
+                name, opsPerSecond, if (opsPerSecond > 0) stddev * 100 / opsPerSecond else 0.0, bytesPerOp)
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.nullpt.utils.benchmark
+
+import java.lang.management.ManagementFactory
+
+/**
+ * 基准测试入口，参数为要运行的测试组，默认protocol、crypto、transport
+ * connections为大量连接测试，耗时长且需要调整系统参数，只在显式指定时运行
+ *
+ * 结果可复现的运行方式：
+ * java -Xms1g -Xmx1g -XX:+AlwaysPreTouch -XX:+UseParallelGC -cp ... com.nullpt.utils.benchmark.BenchmarkMainKt
+ * 固定堆大小避免测量期间扩容，用taskset绑核，关闭cpu睿频和节能调频，同一台机器前后对比
+ */
+fun main(args: Array<String>) {
+    val suites = if (args.isEmpty()) listOf("protocol", "crypto", "transport") else args.toList()
+    printEnvironment()
+    val benchmark = Benchmark()
+    for (suite in suites) {
+        println("# $suite")
+        when (suite) {
+            "protocol" -> ProtocolBenchmarks.run(benchmark)
+            "crypto" -> CryptoBenchmarks.run(benchmark)
+            "transport" -> TransportBenchmarks.run(benchmark)
+            "connections" -> ConnectionBenchmarks.run()
+            else -> println("unknown suite: $suite")
+        }
+    }
+    System.exit(0)
+}
+
+private fun printEnvironment() {
+    val runtime = ManagementFactory.getRuntimeMXBean()
+    val os = ManagementFactory.getOperatingSystemMXBean()
+    println("# jvm: ${runtime.vmName} ${runtime.vmVersion}")
+    println("# jvm args: ${runtime.inputArguments.joinToString(" ")}")
+    println("# os: ${os.name} ${os.version} ${os.arch}, cpus: ${os.availableProcessors}")
+}
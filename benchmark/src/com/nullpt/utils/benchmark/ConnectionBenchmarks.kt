@@ -0,0 +1,110 @@
+package com.nullpt.utils.benchmark
+
+import com.nullpt.utils.sockets.*
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 大量连接下的线程和内存开销，单独运行
+ */
+object ConnectionBenchmarks {
+
+    /**
+     * 平台线程、虚拟线程、nio三种服务端在不同连接数下的对比
+     * 统计建立连接耗时、空闲时线程数和堆占用、所有连接同时ping-pong的每秒往返次数
+     * 压测端和服务端在同一进程，10万连接需要调大ulimit -n和net.ipv4.ip_local_port_range
+     *
+     * @param counts 连接数
+     */
+    fun run(counts: IntArray = intArrayOf(1000, 10000, 100000)) {
+        println("virtual thread supported: ${ThreadExecutors.isVirtualThreadSupported()}")
+        for (connections in counts) {
+            for (mode in arrayOf("platform", "virtual", "selector")) {
+                benchConnections(mode, TransportBenchmarks.freePort(), connections, 3000L)
+            }
+        }
+    }
+
+    private fun benchConnections(mode: String, port: Int, connections: Int, duration: Long) {
+        val threadMXBean = ManagementFactory.getThreadMXBean()
+        /*上一轮缓存线程池的空闲线程还没回收，按增量统计*/
+        val baseThreads = threadMXBean.threadCount
+        val accepted = AtomicInteger()
+        val stopServer: () -> Unit = if (mode == "selector") {
+            val selectorServer = SelectorServer(port)
+            selectorServer.setSelectorIO(object : SelectorIO {
+                override fun accept(code: Long) {
+                    accepted.incrementAndGet()
+                }
+
+                override fun receive(code: Long, byteArray: ByteArray) {
+                    selectorServer.send(code, byteArray)
+                }
+            })
+            selectorServer.accept()
+            ({ selectorServer.stop() })
+        } else {
+            val socketServer = if (mode == "virtual") SocketServer.ofVirtualThreads(port) else SocketServer(port)
+            socketServer.accept { code ->
+                socketServer.receive(code) { data ->
+                    socketServer.send(code, data)
+                }
+                accepted.incrementAndGet()
+            }
+            ({ socketServer.stop() })
+        }
+        Thread.sleep(200)
+
+        val counter = AtomicLong()
+        val running = AtomicBoolean(false)
+        val ping = "ping".toByteArray()
+        val clientGroup = EventLoopGroup(2)
+        val start = System.nanoTime()
+        val selectorClients = (0 until connections).map {
+            val selectorClient = SelectorClient("127.0.0.1", port, clientGroup)
+            selectorClient.setSelectorIO(object : SelectorIO {
+                override fun receive(code: Long, byteArray: ByteArray) {
+                    if (running.get()) {
+                        counter.incrementAndGet()
+                        selectorClient.send(ping)
+                    }
+                }
+            })
+            selectorClient.connect()
+            /*不超过accept队列长度，默认50，队列满时SYN重传会拖慢建立连接*/
+            while (it - accepted.get() > 32 && System.nanoTime() - start < 60_000_000_000L) {
+                Thread.sleep(1)
+            }
+            selectorClient
+        }
+        while (accepted.get() < connections && System.nanoTime() - start < 60_000_000_000L) {
+            Thread.sleep(10)
+        }
+        val connectMillis = (System.nanoTime() - start) / 1_000_000
+
+        /*空闲*/
+        Thread.sleep(500)
+        System.gc()
+        val threads = threadMXBean.threadCount - baseThreads
+        val heap = ManagementFactory.getMemoryMXBean().heapMemoryUsage.used / 1024 / 1024
+
+        /*活跃*/
+        running.set(true)
+        selectorClients.forEach { it.send(ping) }
+        Thread.sleep(1000)
+        counter.set(0)
+        Thread.sleep(duration)
+        val count = counter.get()
+        running.set(false)
+
+        println("$mode, connections: ${accepted.get()}/$connections, connect ms: $connectMillis, idle threads: $threads, " +
+                "idle heap MB: $heap, round trips/s: ${count * 1000 / duration}")
+
+        selectorClients.forEach { it.close() }
+        clientGroup.shutdown()
+        stopServer()
+        Thread.sleep(500)
+    }
+}
@@ -0,0 +1,37 @@
+package com.nullpt.utils.benchmark
+
+import com.nullpt.utils.encryption.AESUtil
+import com.nullpt.utils.encryption.RSAUtil
+import java.util.Random
+
+/**
+ * 加解密
+ */
+object CryptoBenchmarks {
+
+    private val AES_SIZES = intArrayOf(64, 1024, 16 * 1024, 256 * 1024)
+    private val RSA_SIZES = intArrayOf(64, 1024, 16 * 1024)
+
+    fun run(benchmark: Benchmark) {
+        val aesKey = AESUtil.generateKey()
+        for (size in AES_SIZES) {
+            val data = randomBytes(size)
+            val encrypted = AESUtil.encrypt(data, aesKey)
+            benchmark.run("aes encrypt $size B") { AESUtil.encrypt(data, aesKey) }
+            benchmark.run("aes decrypt $size B") { AESUtil.decrypt(encrypted, aesKey) }
+        }
+        val (privateKey, publicKey) = RSAUtil.generateKey()
+        for (size in RSA_SIZES) {
+            val data = randomBytes(size)
+            val encrypted = RSAUtil.encryptByPublicKey(data, publicKey)
+            benchmark.run("rsa encrypt $size B") { RSAUtil.encryptByPublicKey(data, publicKey) }
+            benchmark.run("rsa decrypt $size B") { RSAUtil.decryptByPrivateKey(encrypted, privateKey) }
+        }
+    }
+
+    private fun randomBytes(size: Int): ByteArray {
+        val bytes = ByteArray(size)
+        Random(size.toLong()).nextBytes(bytes)
+        return bytes
+    }
+}
@@ -0,0 +1,459 @@
+package com.nullpt.utils.benchmark
+
+import com.nullpt.utils.sockets.ErasureCode
+import com.nullpt.utils.sockets.FrameFormat
+import com.nullpt.utils.sockets.TCPFrameWriter
+import com.nullpt.utils.sockets.TCPPackageProtocol
+import com.nullpt.utils.sockets.UDPChannelProtocol
+import com.nullpt.utils.sockets.UDPPackageProtocol
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.InputStream
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.StandardSocketOptions
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.nio.channels.ScatteringByteChannel
+import java.util.Locale
+import java.util.Random
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 协议编解码
+ */
+object ProtocolBenchmarks {
+
+    private val SIZES = intArrayOf(64, 1024, 16 * 1024, 256 * 1024)
+    private val UDP_SIZES = intArrayOf(1024, 32 * 1024, 256 * 1024, 1024 * 1024)
+    private val UDP_BLAST_SIZES = intArrayOf(1024, 16 * 1024)
+
+    /**
+     * 前向纠错的分组，每组数据块和校验块数量
+     */
+    private val FEC_GROUPS = arrayOf(intArrayOf(8, 1), intArrayOf(8, 2), intArrayOf(16, 4))
+    private const val FEC_SIZE = 1024 * 1024
+
+    /**
+     * 默认数据报开启前向纠错后的分段长度，减去25字节的校验分段头
+     */
+    private const val FEC_BLOCK_LENGTH = UDPPackageProtocol.DEFAULT_DATAGRAM_SIZE - 25
+
+    /**
+     * 接收端socket缓冲区
+     */
+    private const val UDP_RECEIVE_BUFFER = 4 * 1024 * 1024
+
+    /**
+     * 每次解码操作的数据包数量
+     */
+    private const val DECODE_BATCH = 16
+
+    fun run(benchmark: Benchmark) {
+        for (size in SIZES) {
+            tcpEncode(benchmark, size)
+        }
+        tcpBatchedEncode(benchmark, 64)
+        tcpBatchedEncode(benchmark, 1024)
+        tcpCompressedEncode(benchmark, 1024)
+        tcpCompressedEncode(benchmark, 16 * 1024)
+        for (format in FrameFormat.values()) {
+            tcpFormatEncode(benchmark, format, 32)
+        }
+        for (size in SIZES) {
+            tcpDecode(benchmark, size)
+        }
+        for (size in SIZES) {
+            tcpChannelDecode(benchmark, size)
+        }
+        for (size in UDP_SIZES) {
+            udpLoopback(benchmark, size, UDPPackageProtocol.DEFAULT_DATAGRAM_SIZE)
+        }
+        for (size in UDP_SIZES) {
+            udpLoopback(benchmark, size, UDPPackageProtocol.MAX_DATAGRAM_SIZE)
+        }
+        for (size in UDP_BLAST_SIZES) {
+            for (shards in intArrayOf(0, 1, 4)) {
+                udpBlast(benchmark, size, shards)
+            }
+        }
+        for (group in FEC_GROUPS) {
+            fecEncode(benchmark, group[0], group[1])
+            fecDecode(benchmark, group[0], group[1])
+        }
+    }
+
+    private fun tcpEncode(benchmark: Benchmark, size: Int) {
+        val protocol = TCPPackageProtocol()
+        val data = randomBytes(size)
+        val outputStream = ByteArrayOutputStream(size + 4)
+        benchmark.run("tcp encode $size B") {
+            outputStream.reset()
+            protocol.send(outputStream, data)
+            outputStream
+        }
+    }
+
+    private fun tcpBatchedEncode(benchmark: Benchmark, size: Int) {
+        val data = randomBytes(size)
+        val outputStream = ByteArrayOutputStream(64 * 1024)
+        val writer = TCPFrameWriter(outputStream, 16 * 1024, 256, 1000)
+        benchmark.run("tcp batched encode $size B") {
+            if (outputStream.size() > 32 * 1024) {
+                outputStream.reset()
+            }
+            writer.write(data)
+            outputStream
+        }
+    }
+
+    /**
+     * 类json数据压缩发送，输出每个包的线上字节数
+     */
+    private fun tcpCompressedEncode(benchmark: Benchmark, size: Int) {
+        val protocol = TCPPackageProtocol()
+        protocol.setCompressionThreshold(256)
+        acceptCompression(protocol)
+        val data = jsonBytes(size)
+        val outputStream = ByteArrayOutputStream(size + 4)
+        benchmark.run("tcp compressed encode $size B") {
+            outputStream.reset()
+            protocol.send(outputStream, data)
+            outputStream
+        }
+        println("  wire: ${outputStream.size()} B")
+    }
+
+    /**
+     * 收一个对端的格式声明，对端声明能解压之后才压缩
+     */
+    private fun acceptCompression(protocol: TCPPackageProtocol) {
+        val declaration = ByteArrayOutputStream()
+        TCPPackageProtocol().apply { setCompressionThreshold(0) }.sendDeclaration(declaration)
+        try {
+            protocol.receive(ByteArrayInputStream(declaration.toByteArray())) { _, _ -> }
+        } catch (e: EOFException) {
+            /* no-op */
+        }
+    }
+
+    /**
+     * 小数据包各格式的编码，输出每个包的线上字节数，不含一次性的格式声明
+     */
+    private fun tcpFormatEncode(benchmark: Benchmark, format: FrameFormat, size: Int) {
+        val protocol = TCPPackageProtocol()
+        protocol.setFrameFormat(format)
+        val data = randomBytes(size)
+        val outputStream = ByteArrayOutputStream(size + 64)
+        benchmark.run("tcp $format encode $size B") {
+            outputStream.reset()
+            protocol.send(outputStream, data)
+            outputStream
+        }
+        println("  wire: ${outputStream.size()} B")
+    }
+
+    private fun tcpDecode(benchmark: Benchmark, size: Int) {
+        val encoded = ByteArrayOutputStream(size + 4)
+        TCPPackageProtocol().send(encoded, randomBytes(size))
+        val inputStream = RepeatingInputStream(encoded.toByteArray())
+        val protocol = TCPPackageProtocol()
+        var frames = 0
+        val callback = TCPPackageProtocol.ReceiveCompleteCallback { _, _ ->
+            if (++frames == DECODE_BATCH) {
+                frames = 0
+                throw StopDecode
+            }
+        }
+        benchmark.run("tcp decode $size B x$DECODE_BATCH") {
+            try {
+                protocol.receive(inputStream, callback)
+            } catch (e: StopDecode) {
+                /*ignore*/
+            }
+            inputStream
+        }
+    }
+
+    private fun tcpChannelDecode(benchmark: Benchmark, size: Int) {
+        val encoded = ByteArrayOutputStream(size + 4)
+        TCPPackageProtocol().send(encoded, randomBytes(size))
+        val channel = RepeatingChannel(encoded.toByteArray())
+        val protocol = TCPPackageProtocol()
+        var frames = 0
+        val callback = TCPPackageProtocol.ReceiveBufferCallback {
+            if (++frames == DECODE_BATCH) {
+                frames = 0
+                throw StopDecode
+            }
+        }
+        benchmark.run("tcp channel decode $size B x$DECODE_BATCH") {
+            try {
+                protocol.receive(channel, callback)
+            } catch (e: StopDecode) {
+                /*ignore*/
+            }
+            channel
+        }
+    }
+
+    /**
+     * 回环发送，每条消息等待接收端重组完成再发下一条，超时算丢失
+     */
+    private fun udpLoopback(benchmark: Benchmark, size: Int, datagramSize: Int) {
+        val receiveSocket = DatagramSocket(0, InetAddress.getLoopbackAddress())
+        receiveSocket.receiveBufferSize = UDP_RECEIVE_BUFFER
+        val sendSocket = DatagramSocket()
+        val receiver = UDPPackageProtocol(receiveSocket)
+        val sender = UDPPackageProtocol(sendSocket, InetAddress.getLoopbackAddress(), receiveSocket.localPort)
+        sender.setDatagramSize(datagramSize)
+        val completed = Semaphore(0)
+        val receiveThread = Thread {
+            try {
+                receiver.receive { _, _ -> completed.release() }
+            } catch (e: InterruptedException) {
+                /*ignore*/
+            }
+        }
+        receiveThread.start()
+
+        val data = randomBytes(size)
+        val counter = AtomicLong()
+        val lost = AtomicLong()
+        val running = AtomicBoolean(true)
+        val sendThread = Thread {
+            while (running.get()) {
+                sender.send(data)
+                if (completed.tryAcquire(200, TimeUnit.MILLISECONDS)) {
+                    counter.incrementAndGet()
+                } else {
+                    lost.incrementAndGet()
+                }
+            }
+        }
+        sendThread.start()
+        benchmark.runAsync("udp loopback $size B / $datagramSize B datagrams") { counter.get() }
+        running.set(false)
+        sendThread.join()
+        receiveSocket.close()
+        sendSocket.close()
+        receiveThread.join()
+        if (lost.get() > 0) {
+            println("  lost: ${lost.get()}")
+        }
+    }
+
+    /**
+     * 回环单向发送不等待接收，统计接收吞吐和丢包率
+     *
+     * @param shards 0为阻塞DatagramSocket的[UDPPackageProtocol]，否则为[UDPChannelProtocol]的分片数量
+     */
+    private fun udpBlast(benchmark: Benchmark, size: Int, shards: Int) {
+        val received = AtomicLong()
+        val callback = UDPPackageProtocol.ReceiveCompleteCallback { _, _ -> received.incrementAndGet() }
+        val shardExecutor = if (shards > 1) Executors.newFixedThreadPool(shards) else null
+        val port: Int
+        val close: () -> Unit
+        val receive: () -> Unit
+        if (shards == 0) {
+            val receiveSocket = DatagramSocket(0, InetAddress.getLoopbackAddress())
+            receiveSocket.receiveBufferSize = UDP_RECEIVE_BUFFER
+            val receiver = UDPPackageProtocol(receiveSocket)
+            port = receiveSocket.localPort
+            receive = { receiver.receive(callback) }
+            close = { receiveSocket.close() }
+        } else {
+            val receiveChannel = DatagramChannel.open()
+            receiveChannel.setOption(StandardSocketOptions.SO_RCVBUF, UDP_RECEIVE_BUFFER)
+            receiveChannel.bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+            val receiver = UDPChannelProtocol(receiveChannel)
+            if (shardExecutor != null) {
+                receiver.setShards(shards, shardExecutor)
+            }
+            port = (receiveChannel.localAddress as InetSocketAddress).port
+            receive = { receiver.receive(callback) }
+            close = { receiver.close() }
+        }
+        val receiveThread = Thread {
+            try {
+                receive()
+            } catch (e: InterruptedException) {
+                /*ignore*/
+            }
+        }
+        receiveThread.start()
+
+        val sendChannel = DatagramChannel.open()
+        val sender = UDPChannelProtocol(sendChannel, InetSocketAddress(InetAddress.getLoopbackAddress(), port))
+        val data = randomBytes(size)
+        val sent = AtomicLong()
+        val running = AtomicBoolean(true)
+        val sendThread = Thread {
+            while (running.get()) {
+                sender.send(data)
+                sent.incrementAndGet()
+            }
+        }
+        sendThread.start()
+        val name = if (shards == 0) "udp blast $size B socket" else "udp blast $size B channel x$shards"
+        benchmark.runAsync(name) { received.get() }
+        running.set(false)
+        sendThread.join()
+        /*等待接收端处理完缓冲区*/
+        Thread.sleep(200)
+        close()
+        receiveThread.join()
+        sendChannel.close()
+        shardExecutor?.shutdown()
+        println(String.format(Locale.ROOT, "  sent %d, received %d, dropped %.2f%%",
+            sent.get(), received.get(), (sent.get() - received.get()) * 100.0 / sent.get()))
+    }
+
+    /**
+     * 1M数据按分段长度计算所有组的校验块
+     */
+    private fun fecEncode(benchmark: Benchmark, groupSize: Int, parityCount: Int) {
+        val blockLength = FEC_BLOCK_LENGTH
+        val data = randomBytes(FEC_SIZE)
+        val parity = Array(parityCount) { ByteArray(blockLength) }
+        val groupLength = groupSize * blockLength
+        val result = benchmark.run("fec encode $groupSize+$parityCount 1 MB") {
+            var offset = 0
+            while (offset < FEC_SIZE) {
+                val length = minOf(groupLength, FEC_SIZE - offset)
+                ErasureCode.encode(data, offset, length, blockLength, (length + blockLength - 1) / blockLength, parity)
+                offset += groupLength
+            }
+            parity
+        }
+        printFecCost(result)
+    }
+
+    /**
+     * 1M数据每组丢失parityCount个数据块，用校验块全部恢复，每次恢复前还原校验块
+     */
+    private fun fecDecode(benchmark: Benchmark, groupSize: Int, parityCount: Int) {
+        val blockLength = FEC_BLOCK_LENGTH
+        val data = randomBytes(FEC_SIZE)
+        val groupLength = groupSize * blockLength
+        val groups = (FEC_SIZE + groupLength - 1) / groupLength
+        val block = Array(parityCount) { ByteArray(blockLength) }
+        val encoded = ByteArray(groups * parityCount * blockLength)
+        for (group in 0 until groups) {
+            val offset = group * groupLength
+            val length = minOf(groupLength, FEC_SIZE - offset)
+            ErasureCode.encode(data, offset, length, blockLength, (length + blockLength - 1) / blockLength, block)
+            for (k in 0 until parityCount) {
+                System.arraycopy(block[k], 0, encoded, (group * parityCount + k) * blockLength, blockLength)
+            }
+        }
+        val code = ErasureCode()
+        val parity = ByteArray(encoded.size)
+        val missing = IntArray(parityCount) { it }
+        val present = IntArray(groupSize)
+        val parityIndex = IntArray(parityCount) { it }
+        val parityOffset = IntArray(parityCount)
+        val result = benchmark.run("fec decode $groupSize+$parityCount 1 MB") {
+            System.arraycopy(encoded, 0, parity, 0, encoded.size)
+            for (group in 0 until groups) {
+                val offset = group * groupLength
+                val length = minOf(groupLength, FEC_SIZE - offset)
+                val count = (length + blockLength - 1) / blockLength
+                val lost = minOf(parityCount, count)
+                for (j in lost until count) {
+                    present[j - lost] = j
+                }
+                for (k in 0 until lost) {
+                    parityOffset[k] = (group * parityCount + k) * blockLength
+                }
+                code.decode(data, offset, length, blockLength, missing, present, parityIndex, parity, parityOffset,
+                    lost, count - lost, parityCount)
+            }
+            data
+        }
+        printFecCost(result)
+    }
+
+    private fun printFecCost(result: Benchmark.Result) {
+        println(String.format(Locale.ROOT, "  %.2f ms/MB, %.1f MB/s", 1000 / result.opsPerSecond, result.opsPerSecond))
+    }
+
+    private fun randomBytes(size: Int): ByteArray {
+        /*固定种子，每次运行数据相同*/
+        val bytes = ByteArray(size)
+        Random(size.toLong()).nextBytes(bytes)
+        return bytes
+    }
+
+    private fun jsonBytes(size: Int): ByteArray {
+        val random = Random(size.toLong())
+        val builder = StringBuilder(size + 64)
+        while (builder.length < size) {
+            builder.append("{\"id\":").append(random.nextInt(100000)).append(",\"name\":\"item\",\"price\":").append(random.nextInt(1000)).append("},")
+        }
+        return builder.substring(0, size).toByteArray()
+    }
+
+    private object StopDecode : RuntimeException() {
+        override fun fillInStackTrace(): Throwable = this
+    }
+
+    /**
+     * 循环输出同一段数据的channel
+     */
+    private class RepeatingChannel(private val bytes: ByteArray) : ScatteringByteChannel {
+
+        private var position = 0
+
+        override fun read(dst: ByteBuffer): Int {
+            val length = minOf(dst.remaining(), bytes.size - position)
+            dst.put(bytes, position, length)
+            position = (position + length) % bytes.size
+            return length
+        }
+
+        override fun read(dsts: Array<ByteBuffer>, offset: Int, length: Int): Long {
+            var total = 0L
+            for (i in offset until offset + length) {
+                while (dsts[i].hasRemaining()) {
+                    total += read(dsts[i])
+                }
+            }
+            return total
+        }
+
+        override fun read(dsts: Array<ByteBuffer>): Long = read(dsts, 0, dsts.size)
+
+        override fun isOpen(): Boolean = true
+
+        override fun close() {
+        }
+    }
+
+    /**
+     * 循环输出同一段数据的输入流
+     */
+    private class RepeatingInputStream(private val bytes: ByteArray) : InputStream() {
+
+        private var position = 0
+
+        override fun read(): Int {
+            val b = bytes[position].toInt() and 0xff
+            position = (position + 1) % bytes.size
+            return b
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val length = minOf(len, bytes.size - position)
+            System.arraycopy(bytes, position, b, off, length)
+            position = (position + length) % bytes.size
+            return length
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.nullpt.utils.benchmark
+
+import com.nullpt.utils.sockets.*
+import java.net.ServerSocket
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 回环echo吞吐和延迟
+ */
+object TransportBenchmarks {
+
+    private const val LATENCY_OPERATIONS = 20000
+    private val PING = "ping".toByteArray()
+
+    fun run(benchmark: Benchmark) {
+        val cores = Runtime.getRuntime().availableProcessors()
+        var workers = 1
+        while (workers <= cores) {
+            selectorEcho(benchmark, workers, 64 * workers)
+            workers *= 2
+        }
+        socketEcho(benchmark, 64)
+        socketStream(benchmark, false)
+        socketStream(benchmark, true)
+        for (connections in intArrayOf(1, 4)) {
+            for (inFlight in intArrayOf(1, 64)) {
+                clientGroup(benchmark, connections, inFlight)
+            }
+        }
+        selectorLatency(benchmark)
+        socketLatency(benchmark)
+    }
+
+    /**
+     * 多循环吞吐，每个连接一个ping-pong
+     */
+    private fun selectorEcho(benchmark: Benchmark, workers: Int, clients: Int) {
+        val port = freePort()
+        val workerGroup = EventLoopGroup(workers)
+        val selectorServer = SelectorServer(port, workerGroup)
+        selectorServer.setSelectorIO(object : SelectorIO {
+            override fun receive(code: Long, byteArray: ByteArray) {
+                selectorServer.send(code, byteArray)
+            }
+        })
+        selectorServer.accept()
+
+        val counter = AtomicLong()
+        val running = AtomicBoolean(true)
+        val clientGroup = EventLoopGroup(workers)
+        val selectorClients = (0 until clients).map {
+            val selectorClient = SelectorClient("127.0.0.1", port, clientGroup)
+            selectorClient.setSelectorIO(object : SelectorIO {
+                override fun connect(code: Long) {
+                    selectorClient.send(PING)
+                }
+
+                override fun receive(code: Long, byteArray: ByteArray) {
+                    if (running.get()) {
+                        counter.incrementAndGet()
+                        selectorClient.send(PING)
+                    }
+                }
+            })
+            selectorClient.connect()
+            selectorClient
+        }
+
+        benchmark.runAsync("selector echo workers $workers clients $clients") { counter.get() }
+        running.set(false)
+
+        selectorClients.forEach { it.close() }
+        clientGroup.shutdown()
+        selectorServer.stop()
+        workerGroup.shutdown()
+    }
+
+    /**
+     * 阻塞io吞吐，每个连接一个ping-pong
+     */
+    private fun socketEcho(benchmark: Benchmark, clients: Int) {
+        val port = freePort()
+        val accepted = AtomicInteger()
+        val socketServer = SocketServer(port)
+        socketServer.setTcpNoDelay(true)
+        socketServer.accept { code ->
+            socketServer.receive(code) { data ->
+                socketServer.send(code, data)
+            }
+            accepted.incrementAndGet()
+        }
+
+        val counter = AtomicLong()
+        val running = AtomicBoolean(true)
+        val socketClients = (0 until clients).map {
+            val socketClient = SocketClient("127.0.0.1", port)
+            socketClient.setTcpNoDelay(true)
+            socketClient.connect()
+            socketClient.receive {
+                if (running.get()) {
+                    counter.incrementAndGet()
+                    socketClient.send(PING)
+                }
+            }
+            socketClient
+        }
+        /*服务端设置好接收之后再发，否则第一个包可能丢失*/
+        while (accepted.get() < clients) {
+            Thread.sleep(10)
+        }
+        socketClients.forEach { it.send(PING) }
+
+        benchmark.runAsync("socket echo clients $clients") { counter.get() }
+        running.set(false)
+
+        socketClients.forEach { it.close() }
+        socketServer.stop()
+    }
+
+    /**
+     * 阻塞io单向小包，对比逐包写和批量写
+     */
+    private fun socketStream(benchmark: Benchmark, batching: Boolean) {
+        val port = freePort()
+        val accepted = Semaphore(0)
+        val counter = AtomicLong()
+        val socketServer = SocketServer(port)
+        socketServer.accept { code ->
+            socketServer.receiveView(code) { _, _ ->
+                counter.incrementAndGet()
+            }
+            accepted.release()
+        }
+
+        val socketClient = SocketClient("127.0.0.1", port)
+        if (batching) {
+            socketClient.setBatching(16 * 1024, 256, 200)
+        }
+        socketClient.connect()
+        accepted.tryAcquire(5, TimeUnit.SECONDS)
+
+        val running = AtomicBoolean(true)
+        val sendThread = Thread {
+            while (running.get()) {
+                socketClient.send(PING)
+            }
+        }
+        sendThread.start()
+        benchmark.runAsync("socket stream ${if (batching) "batching" else "per frame"}") { counter.get() }
+        running.set(false)
+        sendThread.join()
+
+        socketClient.close()
+        socketServer.stop()
+    }
+
+    /**
+     * 连接组，每个连接保持多个未完成请求
+     */
+    private fun clientGroup(benchmark: Benchmark, connections: Int, inFlight: Int) {
+        val port = freePort()
+        val pong = "pong".toByteArray()
+        val workerGroup = EventLoopGroup(1)
+        val selectorServer = SelectorServer(port, workerGroup)
+        selectorServer.setSelectorIO(object : SelectorIO {
+            override fun receive(code: Long, byteArray: ByteArray) {
+                selectorServer.reply(code, SelectorClientGroup.correlationId(byteArray), pong)
+            }
+        })
+        selectorServer.accept()
+
+        val counter = AtomicLong()
+        val running = AtomicBoolean(true)
+        val clientGroup = SelectorClientGroup("127.0.0.1", port, connections)
+        clientGroup.setBalance(SelectorClientGroup.Balance.LEAST_OUTSTANDING)
+        clientGroup.connect()
+        Thread.sleep(500)
+
+        val callback = object : SelectorClientGroup.ResponseCallback {
+            override fun response(data: ByteArray) {
+                if (running.get()) {
+                    counter.incrementAndGet()
+                    clientGroup.request(PING, this)
+                }
+            }
+        }
+        repeat(inFlight) {
+            clientGroup.request(PING, callback)
+        }
+
+        benchmark.runAsync("client group connections $connections in flight $inFlight") { counter.get() }
+        running.set(false)
+
+        clientGroup.close()
+        selectorServer.stop()
+        workerGroup.shutdown()
+    }
+
+    private fun selectorLatency(benchmark: Benchmark) {
+        val port = freePort()
+        val workerGroup = EventLoopGroup(1)
+        val selectorServer = SelectorServer(port, workerGroup)
+        selectorServer.setSelectorIO(object : SelectorIO {
+            override fun receive(code: Long, byteArray: ByteArray) {
+                selectorServer.send(code, byteArray)
+            }
+        })
+        selectorServer.accept()
+
+        val received = Semaphore(0)
+        val connected = Semaphore(0)
+        val clientGroup = EventLoopGroup(1)
+        val selectorClient = SelectorClient("127.0.0.1", port, clientGroup)
+        selectorClient.setSelectorIO(object : SelectorIO {
+            override fun connect(code: Long) {
+                connected.release()
+            }
+
+            override fun receive(code: Long, byteArray: ByteArray) {
+                received.release()
+            }
+        })
+        selectorClient.connect()
+        connected.tryAcquire(5, TimeUnit.SECONDS)
+
+        benchmark.latency("selector round trip", LATENCY_OPERATIONS) {
+            selectorClient.send(PING)
+            received.acquire()
+        }
+
+        selectorClient.close()
+        clientGroup.shutdown()
+        selectorServer.stop()
+        workerGroup.shutdown()
+    }
+
+    private fun socketLatency(benchmark: Benchmark) {
+        val port = freePort()
+        val accepted = Semaphore(0)
+        val socketServer = SocketServer(port)
+        socketServer.setTcpNoDelay(true)
+        socketServer.accept { code ->
+            socketServer.receive(code) { data ->
+                socketServer.send(code, data)
+            }
+            accepted.release()
+        }
+
+        val received = Semaphore(0)
+        val socketClient = SocketClient("127.0.0.1", port)
+        socketClient.setTcpNoDelay(true)
+        socketClient.connect()
+        socketClient.receive {
+            received.release()
+        }
+        accepted.tryAcquire(5, TimeUnit.SECONDS)
+
+        benchmark.latency("socket round trip", LATENCY_OPERATIONS) {
+            socketClient.send(PING)
+            received.acquire()
+        }
+
+        socketClient.close()
+        socketServer.stop()
+    }
+
+    /**
+     * @return 当前空闲的端口
+     */
+    fun freePort(): Int {
+        ServerSocket(0).use {
+            return it.localPort
+        }
+    }
+}
@@ -17,11 +17,11 @@ fun testNio() {
     val selectorServer = SelectorServer(6789, Executors.newCachedThreadPool())
     selectorServer.accept()
     selectorServer.setSelectorIO(object : SelectorIO {
-        override fun accept(code: Int) {
+        override fun accept(code: Long) {
 
         }
 
-        override fun receive(code: Int, byteArray: ByteArray) {
+        override fun receive(code: Long, byteArray: ByteArray) {
             println("server :" + String(byteArray))
             selectorServer.send(code, "receive".toByteArray())
         }
@@ -31,7 +31,7 @@ fun testNio() {
     val selectorClient = SelectorClient("127.0.0.1", 6789, Executors.newCachedThreadPool())
     selectorClient.connect()
     selectorClient.setSelectorIO(object : SelectorIO {
-        override fun receive(code: Int, byteArray: ByteArray) {
+        override fun receive(code: Long, byteArray: ByteArray) {
             println("client :" + String(byteArray))
         }
     })
@@ -0,0 +1,228 @@
+package com.nullpt.utils.sockets;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按大小分级的direct ByteBuffer池
+ * 大小等级为64B到64KB的2的幂，超过{@link #MAX_POOLED_SIZE}的直接分配heap buffer且不回收
+ * 事件循环线程优先使用自己的本地缓存，其它线程和缓存溢出的部分走共享池
+ * 泄漏检测：启动参数-Dnullpt.sockets.leakDetection=true或调用{@link #setLeakDetection(boolean)}
+ */
+public class ByteBufferPool {
+
+    /**
+     * 最小等级大小
+     */
+    private static final int MIN_SIZE = 64;
+    /**
+     * 等级数量
+     */
+    private static final int SIZE_CLASSES = 11;
+    /**
+     * 最大池化大小
+     */
+    public static final int MAX_POOLED_SIZE = MIN_SIZE << (SIZE_CLASSES - 1);
+
+    /**
+     * 全局默认池，selector读写都使用这个池
+     */
+    public static final ByteBufferPool DEFAULT = new ByteBufferPool(256, 64);
+
+    private static volatile boolean sLeakDetection = Boolean.getBoolean("nullpt.sockets.leakDetection");
+
+    private final int maxShared;
+    private final int maxCached;
+    private final ConcurrentLinkedQueue<PooledByteBuffer>[] mShared;
+    private final AtomicInteger[] mSharedSize;
+    private final ThreadLocal<Cache> mCaches = ThreadLocal.withInitial(Cache::new);
+
+    /**
+     * @param maxShared 共享池每个等级最多缓存数量
+     * @param maxCached 每个事件循环本地缓存每个等级最多缓存数量
+     */
+    public ByteBufferPool(int maxShared, int maxCached) {
+        this.maxShared = maxShared;
+        this.maxCached = maxCached;
+        this.mShared = newSharedQueues(SIZE_CLASSES);
+        this.mSharedSize = new AtomicInteger[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            mShared[i] = new ConcurrentLinkedQueue<>();
+            mSharedSize[i] = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * 泄漏检测开关，开启后每次分配都会记录调用栈，未release就被回收的buffer会打印分配位置
+     *
+     * @param leakDetection 是否开启
+     */
+    public static void setLeakDetection(boolean leakDetection) {
+        sLeakDetection = leakDetection;
+    }
+
+    public static boolean isLeakDetection() {
+        return sLeakDetection;
+    }
+
+    /**
+     * 分配buffer，position为0，limit为{@code capacity}，引用计数为1
+     *
+     * @param capacity 需要的大小
+     * @return buffer
+     */
+    public PooledByteBuffer allocate(int capacity) {
+        PooledByteBuffer buffer;
+        if (capacity > MAX_POOLED_SIZE) {
+            buffer = new PooledByteBuffer(ByteBuffer.allocate(capacity), null, -1);
+        } else {
+            int sizeClass = sizeClass(capacity);
+            buffer = null;
+            Cache cache = EventLoop.current() != null ? mCaches.get() : null;
+            if (cache != null) {
+                buffer = cache.poll(sizeClass);
+            }
+            if (buffer == null) {
+                buffer = mShared[sizeClass].poll();
+                if (buffer != null) {
+                    mSharedSize[sizeClass].decrementAndGet();
+                }
+            }
+            if (buffer == null) {
+                buffer = new PooledByteBuffer(ByteBuffer.allocateDirect(MIN_SIZE << sizeClass), this, sizeClass);
+            } else if (sLeakDetection) {
+                /*泄漏追踪绑定在外层对象上，检测模式下外层对象不复用*/
+                buffer = new PooledByteBuffer(buffer.buffer(), this, sizeClass);
+            }
+        }
+        buffer.init();
+        buffer.buffer().limit(capacity);
+        if (sLeakDetection) {
+            buffer.tracker = LeakTracker.track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * 把当前线程本地缓存归还到共享池，事件循环退出时调用
+     */
+    public void freeThreadCache() {
+        Cache cache = mCaches.get();
+        mCaches.remove();
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            PooledByteBuffer buffer;
+            while ((buffer = cache.poll(i)) != null) {
+                recycleShared(buffer);
+            }
+        }
+    }
+
+    void recycle(PooledByteBuffer buffer) {
+        Cache cache = EventLoop.current() != null ? mCaches.get() : null;
+        if (cache != null && cache.offer(buffer)) {
+            return;
+        }
+        recycleShared(buffer);
+    }
+
+    private void recycleShared(PooledByteBuffer buffer) {
+        int sizeClass = buffer.sizeClass;
+        if (mSharedSize[sizeClass].incrementAndGet() <= maxShared) {
+            mShared[sizeClass].offer(buffer);
+        } else {
+            /*超出上限交给gc*/
+            mSharedSize[sizeClass].decrementAndGet();
+        }
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * 泛型数组不能直接创建，按通配符类型创建后转换，元素都是PooledByteBuffer的队列
+     */
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<PooledByteBuffer>[] newSharedQueues(int length) {
+        return (ConcurrentLinkedQueue<PooledByteBuffer>[]) new ConcurrentLinkedQueue<?>[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<PooledByteBuffer>[] newCacheQueues(int length) {
+        return (ArrayDeque<PooledByteBuffer>[]) new ArrayDeque<?>[length];
+    }
+
+    /**
+     * 事件循环本地缓存，只在所属线程访问
+     */
+    private class Cache {
+
+        private final ArrayDeque<PooledByteBuffer>[] mQueues = newCacheQueues(SIZE_CLASSES);
+
+        PooledByteBuffer poll(int sizeClass) {
+            ArrayDeque<PooledByteBuffer> queue = mQueues[sizeClass];
+            return queue != null ? queue.pollLast() : null;
+        }
+
+        boolean offer(PooledByteBuffer buffer) {
+            ArrayDeque<PooledByteBuffer> queue = mQueues[buffer.sizeClass];
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                mQueues[buffer.sizeClass] = queue;
+            }
+            if (queue.size() >= maxCached) {
+                return false;
+            }
+            queue.offerLast(buffer);
+            return true;
+        }
+    }
+
+    /**
+     * 泄漏追踪，buffer被gc时还未release即为泄漏
+     */
+    static final class LeakTracker extends PhantomReference<PooledByteBuffer> {
+
+        private static final ReferenceQueue<PooledByteBuffer> QUEUE = new ReferenceQueue<>();
+        private static final Set<LeakTracker> TRACKERS = ConcurrentHashMap.newKeySet();
+
+        private final Throwable record = new Throwable("PooledByteBuffer allocated");
+
+        private LeakTracker(PooledByteBuffer buffer) {
+            super(buffer, QUEUE);
+        }
+
+        static LeakTracker track(PooledByteBuffer buffer) {
+            reportLeaks();
+            LeakTracker tracker = new LeakTracker(buffer);
+            TRACKERS.add(tracker);
+            return tracker;
+        }
+
+        void close() {
+            TRACKERS.remove(this);
+            clear();
+        }
+
+        private static void reportLeaks() {
+            Reference<? extends PooledByteBuffer> reference;
+            while ((reference = QUEUE.poll()) != null) {
+                LeakTracker tracker = (LeakTracker) reference;
+                if (TRACKERS.remove(tracker)) {
+                    System.err.println("LEAK: PooledByteBuffer was garbage collected before release()");
+                    tracker.record.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.nullpt.utils.sockets;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接配置，连接建立时拷贝一份，之后的修改只对新连接生效
+ */
+class ConnectionConfig {
+
+    int lowWaterMark = OutboundQueue.DEFAULT_LOW_WATER_MARK;
+    int highWaterMark = OutboundQueue.DEFAULT_HIGH_WATER_MARK;
+
+    /**
+     * 空闲超时/ns，0为不检测
+     */
+    long readerIdleNanos = 0;
+    long writerIdleNanos = 0;
+    long allIdleNanos = 0;
+    /**
+     * 写空闲时自动发送的心跳数据，null为不发送
+     */
+    byte[] heartbeat = null;
+    /**
+     * 读空闲时是否关闭连接
+     */
+    boolean closeOnReaderIdle = false;
+    /**
+     * 压缩阈值，-1为不压缩
+     */
+    int compressionThreshold = FrameCompression.DISABLED;
+    /**
+     * 接收的最大数据包长度，超过时关闭连接
+     */
+    int maxFrameSize = TCPPackageProtocol.DEFAULT_MAX_FRAME_SIZE;
+    /**
+     * 发送格式，null为跟随对端
+     */
+    FrameFormat frameFormat = null;
+    /**
+     * 是否在格式声明中声明接收文件
+     */
+    boolean acceptFiles = false;
+
+    synchronized void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark: " + lowWaterMark + ", highWaterMark: " + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    synchronized void setIdleTimeout(long readerIdle, long writerIdle, long allIdle, TimeUnit unit) {
+        this.readerIdleNanos = Math.max(0, unit.toNanos(readerIdle));
+        this.writerIdleNanos = Math.max(0, unit.toNanos(writerIdle));
+        this.allIdleNanos = Math.max(0, unit.toNanos(allIdle));
+    }
+
+    synchronized void setHeartbeat(byte[] heartbeat, boolean closeOnReaderIdle) {
+        this.heartbeat = heartbeat;
+        this.closeOnReaderIdle = closeOnReaderIdle;
+    }
+
+    synchronized void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < FrameCompression.DISABLED) {
+            throw new IllegalArgumentException("compressionThreshold: " + compressionThreshold);
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    synchronized int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    synchronized void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    synchronized void setFrameFormat(FrameFormat frameFormat) {
+        this.frameFormat = frameFormat;
+    }
+
+    synchronized void setAcceptFiles(boolean acceptFiles) {
+        this.acceptFiles = acceptFiles;
+    }
+
+    synchronized ConnectionConfig copy() {
+        ConnectionConfig config = new ConnectionConfig();
+        config.lowWaterMark = lowWaterMark;
+        config.highWaterMark = highWaterMark;
+        config.readerIdleNanos = readerIdleNanos;
+        config.writerIdleNanos = writerIdleNanos;
+        config.allIdleNanos = allIdleNanos;
+        config.heartbeat = heartbeat;
+        config.closeOnReaderIdle = closeOnReaderIdle;
+        config.compressionThreshold = compressionThreshold;
+        config.maxFrameSize = maxFrameSize;
+        config.frameFormat = frameFormat;
+        config.acceptFiles = acceptFiles;
+        return config;
+    }
+}
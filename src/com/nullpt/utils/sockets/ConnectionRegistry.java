@@ -0,0 +1,140 @@
+package com.nullpt.utils.sockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * 连接表，key为单调递增的long连接id
+ * 按id分段，每段一个{@link LongObjectHashMap}和一把StampedLock，查找走乐观读不加锁
+ *
+ * @param <V> 连接
+ */
+public class ConnectionRegistry<V> {
+
+    /**
+     * 分段数量，2的幂
+     */
+    private static final int SEGMENTS = 64;
+
+    private static final AtomicLong ID_GENERATOR = new AtomicLong(0);
+
+    private final Segment<V>[] mSegments;
+
+    public ConnectionRegistry() {
+        mSegments = newSegments(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            mSegments[i] = new Segment<>();
+        }
+    }
+
+    /**
+     * 泛型数组不能直接创建，按通配符类型创建后转换
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> Segment<V>[] newSegments(int length) {
+        return (Segment<V>[]) new Segment<?>[length];
+    }
+
+    /**
+     * @return 新的连接id，进程内唯一，从1开始递增
+     */
+    public static long nextId() {
+        return ID_GENERATOR.incrementAndGet();
+    }
+
+    public V get(long id) {
+        Segment<V> segment = segment(id);
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            V value = segment.map.get(id);
+            if (segment.lock.validate(stamp)) {
+                return value;
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            return segment.map.get(id);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    public void put(long id, V value) {
+        Segment<V> segment = segment(id);
+        long stamp = segment.lock.writeLock();
+        try {
+            segment.map.put(id, value);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    public V remove(long id) {
+        Segment<V> segment = segment(id);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.map.remove(id);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : mSegments) {
+            long stamp = segment.lock.readLock();
+            try {
+                size += segment.map.size();
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 遍历，遍历时持有所在段的读锁，{@code action}中不能修改连接表
+     *
+     * @param action 操作
+     */
+    public void forEach(Consumer<V> action) {
+        for (Segment<V> segment : mSegments) {
+            long stamp = segment.lock.readLock();
+            try {
+                segment.map.forEach(action);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * 移除所有连接
+     *
+     * @param action 对每个被移除的连接执行
+     */
+    public void clear(Consumer<V> action) {
+        for (Segment<V> segment : mSegments) {
+            LongObjectHashMap<V> removed;
+            long stamp = segment.lock.writeLock();
+            try {
+                removed = segment.map;
+                segment.map = new LongObjectHashMap<>();
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+            removed.forEach(action);
+        }
+    }
+
+    private Segment<V> segment(long id) {
+        /*id连续递增，低位轮流落在各段上*/
+        return mSegments[(int) (id & (SEGMENTS - 1))];
+    }
+
+    private static class Segment<V> {
+        final StampedLock lock = new StampedLock();
+        LongObjectHashMap<V> map = new LongObjectHashMap<>();
+    }
+}
@@ -0,0 +1,211 @@
+package com.nullpt.utils.sockets;
+
+/**
+ * GF(256)上的系统纠删码，每组N个数据块加K个校验块，任意N块可以恢复整组
+ * K为1时校验块是所有数据块的异或，K大于1时系数为Cauchy矩阵 1/(x_k + y_j)，x_k=k，y_j=K+j，任意方阵可逆
+ * 乘法查64K的表，编解码都在调用方的数组上进行，解码用的矩阵在实例中复用，不分配对象
+ * UDP前向纠错使用，见{@link UDPPackageProtocol#setForwardErrorCorrection(int, int)}
+ * 实例非线程安全，每个重组一个
+ */
+public final class ErasureCode {
+
+    /**
+     * 数据块和校验块的总数上限，Cauchy矩阵需要N+K个不同的域元素
+     */
+    public static final int MAX_FRAGMENTS = 256;
+
+    /**
+     * 本原多项式x^8+x^4+x^3+x^2+1
+     */
+    private static final int POLYNOMIAL = 0x11d;
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    /**
+     * MUL[a << 8 | b] = a * b
+     */
+    private static final byte[] MUL = new byte[256 * 256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a << 8 | b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    /**
+     * 解码用的方阵和逆矩阵，按行存放，按缺失数量扩容
+     */
+    private int[] mMatrix = new int[16 * 16];
+    private int[] mInverse = new int[16 * 16];
+
+    /**
+     * @param parityIndex 组内校验块坐标
+     * @param dataIndex   组内数据块坐标
+     * @param parityCount 每组校验块数量
+     * @return 系数
+     */
+    static int coefficient(int parityIndex, int dataIndex, int parityCount) {
+        if (parityCount == 1) {
+            return 1;
+        }
+        return inverse(parityIndex ^ (parityCount + dataIndex));
+    }
+
+    /**
+     * dst ^= coefficient * src
+     */
+    static void mulAdd(int coefficient, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        if (coefficient == 1) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] ^= src[srcOffset + i];
+            }
+            return;
+        }
+        int row = coefficient << 8;
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] ^= MUL[row | (src[srcOffset + i] & 0xff)];
+        }
+    }
+
+    /**
+     * 计算一组的校验块
+     *
+     * @param data        数据块所在数组，第j块从dataOffset + j * blockLength开始
+     * @param dataOffset  第一块的位置
+     * @param dataLength  本组数据的总长度，最后一块可以不满，不足部分按0计算
+     * @param blockLength 块长度
+     * @param dataCount   本组数据块数量
+     * @param parity      校验块，长度不小于blockLength，内容被覆盖
+     */
+    public static void encode(byte[] data, int dataOffset, int dataLength, int blockLength, int dataCount, byte[][] parity) {
+        int parityCount = parity.length;
+        for (int k = 0; k < parityCount; k++) {
+            byte[] block = parity[k];
+            for (int i = 0; i < blockLength; i++) {
+                block[i] = 0;
+            }
+            for (int j = 0; j < dataCount; j++) {
+                int offset = j * blockLength;
+                int length = Math.min(blockLength, dataLength - offset);
+                mulAdd(coefficient(k, j, parityCount), data, dataOffset + offset, block, 0, length);
+            }
+        }
+    }
+
+    /**
+     * 恢复一组中缺失的数据块，数据块按坐标存放在消息数组中，校验块在解码时被改写
+     *
+     * @param data         消息数组
+     * @param blockOffset  组内第一块在data中的位置
+     * @param dataLength   本组数据的总长度
+     * @param blockLength  块长度
+     * @param missing      缺失的组内数据块坐标，数量为count
+     * @param present      收到的组内数据块坐标，数量为presentCount
+     * @param parityIndex  使用的组内校验块坐标，数量为count
+     * @param parity       校验块所在数组
+     * @param parityOffset 第i个使用的校验块在parity中的位置为parityOffset[i]
+     * @param count        缺失数量，不超过校验块数量
+     * @param presentCount 收到数量
+     * @param parityCount  每组校验块数量
+     */
+    public void decode(byte[] data, int blockOffset, int dataLength, int blockLength,
+                       int[] missing, int[] present, int[] parityIndex, byte[] parity, int[] parityOffset,
+                       int count, int presentCount, int parityCount) {
+        /*校验块减去收到的数据块，剩下缺失数据块的线性组合*/
+        for (int r = 0; r < count; r++) {
+            for (int p = 0; p < presentCount; p++) {
+                int j = present[p];
+                int offset = j * blockLength;
+                mulAdd(coefficient(parityIndex[r], j, parityCount), data, blockOffset + offset,
+                        parity, parityOffset[r], Math.min(blockLength, dataLength - offset));
+            }
+        }
+        if (mMatrix.length < count * count) {
+            mMatrix = new int[count * count];
+            mInverse = new int[count * count];
+        }
+        for (int r = 0; r < count; r++) {
+            for (int c = 0; c < count; c++) {
+                mMatrix[r * count + c] = coefficient(parityIndex[r], missing[c], parityCount);
+            }
+        }
+        invert(count);
+        for (int c = 0; c < count; c++) {
+            int offset = missing[c] * blockLength;
+            int length = Math.min(blockLength, dataLength - offset);
+            int position = blockOffset + offset;
+            for (int i = 0; i < length; i++) {
+                data[position + i] = 0;
+            }
+            for (int r = 0; r < count; r++) {
+                mulAdd(mInverse[c * count + r], parity, parityOffset[r], data, position, length);
+            }
+        }
+    }
+
+    /**
+     * 高斯-约当消元，mMatrix的n阶方阵求逆到mInverse，Cauchy子矩阵总是可逆
+     */
+    private void invert(int n) {
+        int[] a = mMatrix;
+        int[] inv = mInverse;
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c < n; c++) {
+                inv[r * n + c] = r == c ? 1 : 0;
+            }
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (a[pivot * n + col] == 0) {
+                pivot++;
+            }
+            if (pivot != col) {
+                for (int c = 0; c < n; c++) {
+                    int t = a[col * n + c];
+                    a[col * n + c] = a[pivot * n + c];
+                    a[pivot * n + c] = t;
+                    t = inv[col * n + c];
+                    inv[col * n + c] = inv[pivot * n + c];
+                    inv[pivot * n + c] = t;
+                }
+            }
+            int scale = inverse(a[col * n + col]);
+            for (int c = 0; c < n; c++) {
+                a[col * n + c] = multiply(a[col * n + c], scale);
+                inv[col * n + c] = multiply(inv[col * n + c], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = a[r * n + col];
+                if (r == col || factor == 0) {
+                    continue;
+                }
+                for (int c = 0; c < n; c++) {
+                    a[r * n + c] ^= multiply(factor, a[col * n + c]);
+                    inv[r * n + c] ^= multiply(factor, inv[col * n + c]);
+                }
+            }
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        return MUL[a << 8 | b] & 0xff;
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]] & 0xff;
+    }
+}
@@ -0,0 +1,256 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * nio事件循环
+ * 独占一个Selector和一条线程，注册到该循环上的channel只在这条线程上读写
+ */
+public class EventLoop {
+
+    /**
+     * 单次select最长阻塞时间/ms
+     */
+    private static final long SELECT_TIMEOUT = 1000;
+    /**
+     * 时间轮tick间隔/ms
+     */
+    private static final long TICK_DURATION = 100;
+    /**
+     * 时间轮槽数量
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+    private final Selector selector;
+    private final Executor executor;
+
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final HashedWheelTimer mTimer = new HashedWheelTimer(TICK_DURATION, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    private final AtomicBoolean mStarted = new AtomicBoolean(false);
+    private final AtomicBoolean mWakeup = new AtomicBoolean(false);
+    private volatile Thread mThread;
+    private volatile boolean mShutdown = false;
+
+    /**
+     * @param executor 运行循环的线程池，循环会一直占用其中一条线程
+     */
+    public EventLoop(Executor executor) {
+        this.executor = executor;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return 当前线程所在的循环，不是循环线程返回null
+     */
+    public static EventLoop current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return 当前线程是否为该循环线程
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * 提交任务到循环线程执行
+     *
+     * @param task 任务
+     */
+    public void execute(Runnable task) {
+        mTasks.offer(task);
+        start();
+        if (!inEventLoop() && mWakeup.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 延时在循环线程执行，精度为时间轮tick
+     *
+     * @param task  任务
+     * @param delay 延时
+     * @param unit  时间单位
+     * @return 可取消的定时
+     */
+    public HashedWheelTimer.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        HashedWheelTimer.Timeout timeout = mTimer.create(task, delay, unit);
+        timeout.eventLoop = this;
+        if (inEventLoop()) {
+            mTimer.add(timeout);
+        } else {
+            execute(() -> {
+                if (!timeout.isCancelled()) {
+                    mTimer.add(timeout);
+                }
+            });
+        }
+        return timeout;
+    }
+
+    /**
+     * 注册channel，注册动作在循环线程完成
+     *
+     * @param channel 非阻塞channel
+     * @param ops     关注事件
+     * @param handler 事件处理
+     */
+    public void register(SelectableChannel channel, int ops, Handler handler) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, ops, handler);
+                handler.registered(key);
+            } catch (ClosedChannelException e) {
+                /*ignore*/
+            }
+        });
+    }
+
+    /**
+     * 停止循环并关闭所有注册在上面的channel
+     */
+    public void shutdown() {
+        mShutdown = true;
+        selector.wakeup();
+    }
+
+    private void start() {
+        if (mStarted.compareAndSet(false, true)) {
+            executor.execute(this::run);
+        }
+    }
+
+    private void run() {
+        mThread = Thread.currentThread();
+        CURRENT.set(this);
+        while (!mShutdown) {
+            try {
+                mWakeup.set(false);
+                if (mTasks.isEmpty()) {
+                    selector.select(selectTimeout());
+                } else {
+                    selector.selectNow();
+                }
+                processSelectedKeys();
+                mTimer.expireTimeouts();
+                runTasks();
+            } catch (IOException e) {
+                /*ignore*/
+            }
+        }
+        closeAll();
+        ByteBufferPool.DEFAULT.freeThreadCache();
+        CURRENT.remove();
+    }
+
+    private long selectTimeout() {
+        if (!mTimer.hasPending()) {
+            return SELECT_TIMEOUT;
+        }
+        long timeout = TimeUnit.NANOSECONDS.toMillis(mTimer.nanosToNextTick() + 999_999);
+        return Math.max(1, Math.min(timeout, SELECT_TIMEOUT));
+    }
+
+    private void processSelectedKeys() {
+        Set<SelectionKey> keys = selector.selectedKeys();
+        if (keys.isEmpty()) {
+            return;
+        }
+        Iterator<SelectionKey> it = keys.iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Handler handler = (Handler) key.attachment();
+            try {
+                if (key.isValid()) {
+                    handler.select(key);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                handler.closed(key);
+                closeKey(key);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeAll() {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).closed(key);
+            closeKey(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            /*ignore*/
+        }
+    }
+
+    private static void closeKey(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            /*ignore*/
+        }
+    }
+
+    /**
+     * 就绪事件处理，作为SelectionKey的attachment
+     */
+    public interface Handler {
+
+        /**
+         * 注册完成，在循环线程回调
+         *
+         * @param key 注册得到的key
+         */
+        default void registered(SelectionKey key) {
+        }
+
+        /**
+         * 就绪事件
+         *
+         * @param key 就绪的key
+         * @throws IOException 抛出后该channel会被关闭
+         */
+        void select(SelectionKey key) throws IOException;
+
+        /**
+         * channel因异常或循环停止被关闭
+         *
+         * @param key 对应的key
+         */
+        default void closed(SelectionKey key) {
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.nullpt.utils.sockets;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组事件循环，新连接轮询分配到其中一个循环上
+ */
+public class EventLoopGroup {
+
+    private final EventLoop[] mEventLoops;
+    private final ExecutorService executorService;
+    private final boolean mOwnExecutor;
+    private final AtomicInteger mIndex = new AtomicInteger(0);
+
+    /**
+     * 每个cpu核一个循环
+     */
+    public EventLoopGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param nThreads 循环数量
+     */
+    public EventLoopGroup(int nThreads) {
+        this(nThreads, Executors.newFixedThreadPool(nThreads, new ThreadFactoryImpl()), true);
+    }
+
+    /**
+     * @param nThreads        循环数量
+     * @param executorService 运行循环的线程池，需要至少{@code nThreads}条线程
+     */
+    public EventLoopGroup(int nThreads, ExecutorService executorService) {
+        this(nThreads, executorService, false);
+    }
+
+    private EventLoopGroup(int nThreads, ExecutorService executorService, boolean ownExecutor) {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("nThreads: " + nThreads);
+        }
+        this.executorService = executorService;
+        this.mOwnExecutor = ownExecutor;
+        this.mEventLoops = new EventLoop[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            mEventLoops[i] = new EventLoop(executorService);
+        }
+    }
+
+    /**
+     * @return 下一个循环
+     */
+    public EventLoop next() {
+        return mEventLoops[Math.abs(mIndex.getAndIncrement() % mEventLoops.length)];
+    }
+
+    /**
+     * @return 循环数量
+     */
+    public int size() {
+        return mEventLoops.length;
+    }
+
+    /**
+     * 停止所有循环，外部传入的线程池不会被关闭
+     */
+    public void shutdown() {
+        for (EventLoop eventLoop : mEventLoops) {
+            eventLoop.shutdown();
+        }
+        if (mOwnExecutor) {
+            executorService.shutdown();
+        }
+    }
+
+    private static class ThreadFactoryImpl implements ThreadFactory {
+
+        private static final AtomicInteger mGroupIndex = new AtomicInteger(0);
+        private final int groupIndex = mGroupIndex.incrementAndGet();
+        private final AtomicInteger mThreadIndex = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "event-loop-" + groupIndex + "-" + mThreadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package com.nullpt.utils.sockets;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 文件传输
+ * 文件头是{@link FrameFormat#CONTROL_FILE}控制帧，之后紧跟length字节的文件内容，不再分包，见{@link FrameFormat}
+ * 文件头控制数据 [length:8][name:utf-8]
+ * 对端在格式声明中声明{@link FrameFormat#FEATURE_FILE}之后才能发送，否则发送失败，普通数据包的内容不会被当作文件头
+ * nio发送时文件内容通过{@link FileChannel#transferTo}由内核直接拷贝到socket
+ * 阻塞接收时读到的数据直接写进{@link Receiver}打开的channel，nio接收时拷贝后交给写文件线程，循环线程不做阻塞写
+ */
+public final class FileTransfer {
+
+    /**
+     * 文件头固定部分长度
+     */
+    static final int HEADER_LENGTH = 8;
+    /**
+     * 阻塞发送时每次读取的长度
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * nio接收时写文件的线程池，每个任务一个线程，一个磁盘慢不影响其他连接
+     */
+    static final ExecutorService WRITE_EXECUTOR = ThreadExecutors.isVirtualThreadSupported()
+            ? ThreadExecutors.newVirtualThreadPerTaskExecutor()
+            : Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "file-transfer-write");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FileTransfer() {
+    }
+
+    /**
+     * 打开要发送的文件
+     *
+     * @param path   文件
+     * @param offset 起始位置
+     * @param length 发送长度
+     * @return 只读的FileChannel，由发送方关闭
+     * @throws IOException 打开失败
+     */
+    static FileChannel open(Path path, long offset, long length) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        long size;
+        try {
+            size = file.size();
+        } catch (IOException e) {
+            close(file);
+            throw e;
+        }
+        if (offset < 0 || length < 0 || offset + length > size) {
+            close(file);
+            throw new IllegalArgumentException("offset: " + offset + ", length: " + length + ", size: " + size);
+        }
+        return file;
+    }
+
+    /**
+     * @param name   文件名
+     * @param length 文件内容长度
+     * @return 文件头控制数据
+     */
+    static byte[] header(String name, long length) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[HEADER_LENGTH + nameBytes.length];
+        ByteBuffer.wrap(header).putLong(length).put(nameBytes);
+        return header;
+    }
+
+    /**
+     * 发送前检查对端是否声明了接收文件
+     *
+     * @param peerFeatures 对端声明的功能
+     * @throws IOException 对端未声明
+     */
+    static void checkAccepted(int peerFeatures) throws IOException {
+        if ((peerFeatures & FrameFormat.FEATURE_FILE) == 0) {
+            throw new IOException("Peer has not declared file transfer support");
+        }
+    }
+
+    /**
+     * 解析文件头，不改变position
+     *
+     * @param data 控制数据，position到limit
+     * @return 文件内容长度
+     * @throws IOException 文件头不合法
+     */
+    static long parseLength(ByteBuffer data) throws IOException {
+        long length = data.remaining() < HEADER_LENGTH ? -1 : data.getLong(data.position());
+        if (length < 0) {
+            throw new IOException("Illegal file header");
+        }
+        return length;
+    }
+
+    /**
+     * @param data 文件头控制数据，position到limit
+     * @return 文件名
+     */
+    static String parseName(ByteBuffer data) {
+        ByteBuffer name = data.duplicate();
+        name.position(data.position() + HEADER_LENGTH);
+        return StandardCharsets.UTF_8.decode(name).toString();
+    }
+
+    /**
+     * 阻塞发送文件内容，文件头需要已经写出
+     *
+     * @param file     文件
+     * @param offset   起始位置
+     * @param length   长度
+     * @param out      os
+     * @param chunk    复用的读取数组
+     * @param callback 进度回调，可以为null
+     */
+    static void copy(FileChannel file, long offset, long length, OutputStream out, byte[] chunk, SendCallback callback) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long sent = 0;
+        while (sent < length) {
+            buffer.clear().limit((int) Math.min(chunk.length, length - sent));
+            int len = file.read(buffer, offset + sent);
+            if (len < 0) {
+                throw new EOFException("File truncated at " + (offset + sent));
+            }
+            out.write(chunk, 0, len);
+            sent += len;
+            if (callback != null) {
+                callback.progress(sent, length);
+            }
+        }
+        out.flush();
+        if (length == 0 && callback != null) {
+            callback.progress(0, 0);
+        }
+    }
+
+    static void close(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            /*ignore*/
+        }
+    }
+
+    /**
+     * 发送进度回调，nio发送时在循环线程上回调
+     */
+    public interface SendCallback {
+        /**
+         * @param sent   已发送字节数，等于length时发送完成
+         * @param length 总长度
+         */
+        void progress(long sent, long length);
+
+        /**
+         * 发送完成前连接关闭或读文件失败，文件内容不完整时连接也会关闭
+         */
+        default void failed(IOException e) {
+        }
+    }
+
+    /**
+     * 文件接收回调，阻塞接收时在接收线程上回调
+     * nio接收时在写文件线程上按顺序回调，不在循环线程上，见{@link SinkQueue}
+     */
+    public interface Receiver {
+        /**
+         * 对端开始发送文件
+         *
+         * @param name   文件名
+         * @param length 文件内容长度
+         * @return 写入的channel，如{@link FileChannel}，接收完成或失败后关闭，null为丢弃文件内容
+         * @throws IOException 打开失败，丢弃文件内容并回调{@link #failed}
+         */
+        WritableByteChannel open(String name, long length) throws IOException;
+
+        default void progress(String name, long received, long length) {
+        }
+
+        default void complete(String name) {
+        }
+
+        /**
+         * 写入失败或连接关闭，写入失败时剩余的文件内容被丢弃，不影响连接
+         */
+        default void failed(String name, IOException e) {
+        }
+    }
+
+    /**
+     * 待发送的文件区域，在待发送队列中排在文件头之后，只在循环线程上写
+     */
+    static final class Region {
+
+        private final FileChannel file;
+        private final long offset;
+        private final long length;
+        private final SendCallback callback;
+        private long position;
+        private boolean released = false;
+
+        Region(FileChannel file, long offset, long length, SendCallback callback) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.callback = callback;
+            this.position = offset;
+        }
+
+        long remaining() {
+            return offset + length - position;
+        }
+
+        boolean isComplete() {
+            return position == offset + length;
+        }
+
+        /**
+         * @return 本次写出字节数，socket发送缓冲区满时小于剩余长度
+         * @throws IOException 写失败，或文件被截断
+         */
+        long transferTo(WritableByteChannel target) throws IOException {
+            long remaining = remaining();
+            if (remaining == 0) {
+                return 0;
+            }
+            long written = file.transferTo(position, remaining, target);
+            if (written == 0 && position >= file.size()) {
+                throw new EOFException("File truncated at " + position);
+            }
+            position += written;
+            if (written > 0 && callback != null) {
+                callback.progress(position - offset, length);
+            }
+            return written;
+        }
+
+        /**
+         * 写完或从队列中丢弃时关闭文件，没写完回调失败
+         */
+        void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            close(file);
+            if (callback != null) {
+                if (!isComplete()) {
+                    callback.failed(new ClosedChannelException());
+                } else if (length == 0) {
+                    callback.progress(0, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * 单个文件的接收状态
+     */
+    static final class Sink {
+
+        private final Receiver receiver;
+        private final String name;
+        private final long length;
+        private WritableByteChannel channel;
+        private long received = 0;
+
+        private Sink(Receiver receiver, String name, long length) {
+            this.receiver = receiver;
+            this.name = name;
+            this.length = length;
+        }
+
+        /**
+         * @param receiver 为null时丢弃文件内容
+         */
+        static Sink open(Receiver receiver, String name, long length) {
+            Sink sink = new Sink(receiver, name, length);
+            if (receiver != null) {
+                try {
+                    sink.channel = receiver.open(name, length);
+                } catch (IOException e) {
+                    receiver.failed(name, e);
+                }
+            }
+            return sink;
+        }
+
+        long remaining() {
+            return length - received;
+        }
+
+        /**
+         * 写入一段文件内容，{@code chunk}被全部消费
+         */
+        void write(ByteBuffer chunk) {
+            int len = chunk.remaining();
+            if (channel != null) {
+                try {
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            chunk.position(chunk.limit());
+            received += len;
+            if (channel != null) {
+                receiver.progress(name, received, length);
+            }
+        }
+
+        /**
+         * 文件内容全部收到
+         */
+        void finish() {
+            if (channel == null) {
+                return;
+            }
+            WritableByteChannel channel = this.channel;
+            this.channel = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                receiver.failed(name, e);
+                return;
+            }
+            receiver.complete(name);
+        }
+
+        /**
+         * 文件内容收完之前连接关闭
+         */
+        void abort(IOException e) {
+            if (channel != null) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                /*ignore*/
+            }
+            channel = null;
+            receiver.failed(name, e);
+        }
+    }
+
+    /**
+     * nio连接的文件写入队列，每个连接一个
+     * 循环线程只把文件内容拷贝到池化buffer入队，打开、写入、关闭和{@link Receiver}回调都在executor上串行执行
+     * 排队字节数达到{@link #HIGH_WATER_MARK}时{@link #write}返回true，连接暂停读，回落到{@link #LOW_WATER_MARK}以下时回调resume
+     */
+    static final class SinkQueue implements Runnable {
+
+        static final int HIGH_WATER_MARK = 4 * 1024 * 1024;
+        static final int LOW_WATER_MARK = 1024 * 1024;
+
+        private final Executor executor;
+        private final Runnable resume;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        /**
+         * 以下三个在mTasks的锁内
+         */
+        private long mQueuedBytes = 0;
+        private boolean mRunning = false;
+        private boolean mPaused = false;
+        /**
+         * 当前文件是否丢弃，循环线程
+         */
+        private boolean mDiscard = false;
+        private volatile boolean mClosed = false;
+        /**
+         * 正在写的文件，executor线程
+         */
+        private Sink mSink;
+
+        /**
+         * @param executor 写文件的线程池，同一时刻只有一个任务在运行
+         * @param resume   暂停后排队字节数回落时在executor线程上回调
+         */
+        SinkQueue(Executor executor, Runnable resume) {
+            this.executor = executor;
+            this.resume = resume;
+        }
+
+        /**
+         * 开始接收文件，循环线程
+         *
+         * @param receiver 为null时丢弃文件内容，不入队
+         */
+        void start(Receiver receiver, String name, long length) {
+            mDiscard = receiver == null;
+            if (!mDiscard) {
+                submit(() -> mSink = Sink.open(receiver, name, length));
+            }
+        }
+
+        /**
+         * 拷贝一段文件内容入队，{@code chunk}被全部消费，循环线程
+         *
+         * @return 是否需要暂停读
+         */
+        boolean write(ByteBuffer chunk) {
+            int len = chunk.remaining();
+            if (mDiscard) {
+                chunk.position(chunk.limit());
+                return false;
+            }
+            PooledByteBuffer copy = ByteBufferPool.DEFAULT.allocate(len);
+            copy.buffer().put(chunk).flip();
+            boolean pause;
+            synchronized (mTasks) {
+                mQueuedBytes += len;
+                pause = !mPaused && mQueuedBytes >= HIGH_WATER_MARK;
+                if (pause) {
+                    mPaused = true;
+                }
+            }
+            submit(() -> {
+                try {
+                    if (!mClosed) {
+                        mSink.write(copy.buffer());
+                    }
+                } finally {
+                    copy.release();
+                    written(len);
+                }
+            });
+            return pause;
+        }
+
+        /**
+         * 文件内容全部收到，循环线程
+         */
+        void finish() {
+            if (mDiscard) {
+                return;
+            }
+            submit(() -> {
+                Sink sink = mSink;
+                mSink = null;
+                sink.finish();
+            });
+        }
+
+        /**
+         * 连接关闭，未写的文件内容丢弃，正在接收的文件回调失败，循环线程
+         */
+        void abort(IOException e) {
+            mClosed = true;
+            submit(() -> {
+                if (mSink != null) {
+                    mSink.abort(e);
+                    mSink = null;
+                }
+            });
+        }
+
+        private void submit(Runnable task) {
+            synchronized (mTasks) {
+                mTasks.add(task);
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
+            }
+            executor.execute(this);
+        }
+
+        private void written(int len) {
+            boolean resume;
+            synchronized (mTasks) {
+                mQueuedBytes -= len;
+                resume = mPaused && mQueuedBytes < LOW_WATER_MARK;
+                if (resume) {
+                    mPaused = false;
+                }
+            }
+            if (resume && !mClosed) {
+                this.resume.run();
+            }
+        }
+
+        @Override
+        public void run() {
+            for (; ; ) {
+                Runnable task;
+                synchronized (mTasks) {
+                    task = mTasks.poll();
+                    if (task == null) {
+                        mRunning = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 数据包压缩，长度位最高位为压缩标记
+ * 对端声明能解压之后才压缩发送，TCP见{@link FrameFormat#FEATURE_COMPRESSION}，UDP见{@link UDPPackageProtocol#setCompressionThreshold(int)}
+ * 压缩后的数据位[original-length:4][deflate-data]
+ * Deflater/Inflater每个线程一个，用完reset复用，不会每个包分配一次native内存
+ */
+final class FrameCompression {
+
+    /**
+     * 长度位压缩标记
+     */
+    static final int COMPRESSED_FLAG = 0x80000000;
+    /**
+     * 原始长度位
+     */
+    static final int ORIGINAL_LENGTH = 4;
+    /**
+     * 不压缩
+     */
+    static final int DISABLED = -1;
+
+    /**
+     * 线程复用的压缩输出数组最大长度，超过的每次分配
+     */
+    private static final int MAX_CACHED_BUFFER = 1024 * 1024;
+
+    private static final ThreadLocal<byte[][]> BUFFERS = ThreadLocal.withInitial(() -> new byte[1][]);
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private FrameCompression() {
+    }
+
+    /**
+     * @param threshold 压缩阈值
+     * @param length    数据长度
+     * @return 是否尝试压缩
+     */
+    static boolean shouldCompress(int threshold, int length) {
+        return threshold != DISABLED && length >= threshold && length > ORIGINAL_LENGTH;
+    }
+
+    /**
+     * @param threshold    压缩阈值
+     * @param peerFeatures 对端在格式声明中声明的功能
+     * @return 对端声明能解压时为threshold，否则为{@link #DISABLED}
+     */
+    static int negotiate(int threshold, int peerFeatures) {
+        return (peerFeatures & FrameFormat.FEATURE_COMPRESSION) != 0 ? threshold : DISABLED;
+    }
+
+    /**
+     * @param length 最小长度
+     * @return 当前线程复用的数组，下一次调用前有效
+     */
+    static byte[] buffer(int length) {
+        if (length > MAX_CACHED_BUFFER) {
+            return new byte[length];
+        }
+        byte[][] holder = BUFFERS.get();
+        byte[] buffer = holder[0];
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, 1024)];
+            holder[0] = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * 压缩到{@code dst}，写入原始长度位和压缩数据
+     * 压缩后不比原始数据小时放弃，返回-1，{@code dst}的内容无效
+     *
+     * @param src    数据
+     * @param offset 数据起始位置
+     * @param length 数据长度
+     * @param dst    输出，至少{@code length}长
+     * @return 压缩后数据位长度，包含原始长度位
+     */
+    static int compress(byte[] src, int offset, int length, byte[] dst) {
+        Deflater deflater = DEFLATERS.get();
+        try {
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            dst[0] = (byte) (length >>> 24);
+            dst[1] = (byte) (length >>> 16);
+            dst[2] = (byte) (length >>> 8);
+            dst[3] = (byte) length;
+            /*比原始数据至少小一个字节才值得*/
+            int limit = length - 1;
+            int position = ORIGINAL_LENGTH;
+            while (!deflater.finished() && position < limit) {
+                position += deflater.deflate(dst, position, limit - position);
+            }
+            return deflater.finished() ? position : -1;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * 压缩到{@code dst}的position处，写入原始长度位和压缩数据
+     * 压缩后不比原始数据小时放弃，返回-1，{@code dst}的position不变
+     *
+     * @param src 数据，position到limit，返回后position不确定
+     * @param dst 输出，剩余空间至少为数据长度
+     * @return 压缩后数据位长度，包含原始长度位
+     */
+    static int compress(ByteBuffer src, ByteBuffer dst) {
+        int length = src.remaining();
+        int start = dst.position();
+        int limit = dst.limit();
+        Deflater deflater = DEFLATERS.get();
+        try {
+            deflater.setInput(src);
+            deflater.finish();
+            dst.putInt(length);
+            dst.limit(start + length - 1);
+            while (!deflater.finished() && dst.hasRemaining()) {
+                deflater.deflate(dst);
+            }
+            if (!deflater.finished()) {
+                dst.position(start);
+                return -1;
+            }
+            return dst.position() - start;
+        } finally {
+            dst.limit(limit);
+            deflater.reset();
+        }
+    }
+
+    /**
+     * 读取压缩数据位中的原始长度
+     *
+     * @param src    压缩数据位
+     * @param offset 起始位置
+     * @param length 压缩数据位长度
+     * @return 原始长度
+     * @throws IOException 长度不合法
+     */
+    static int originalLength(byte[] src, int offset, int length) throws IOException {
+        if (length < ORIGINAL_LENGTH) {
+            throw new IOException("Illegal compressed length: " + length);
+        }
+        int originalLength = ((src[offset] & 0xff) << 24) | ((src[offset + 1] & 0xff) << 16) | ((src[offset + 2] & 0xff) << 8) | (src[offset + 3] & 0xff);
+        if (originalLength < 0) {
+            throw new IOException("Illegal original length: " + originalLength);
+        }
+        return originalLength;
+    }
+
+    /**
+     * 解压到{@code dst}
+     *
+     * @param src    压缩数据位，包含原始长度位
+     * @param offset 起始位置
+     * @param length 压缩数据位长度
+     * @param dst    输出，至少为原始长度
+     * @return 原始长度
+     * @throws IOException 数据损坏或长度不符
+     */
+    static int decompress(byte[] src, int offset, int length, byte[] dst) throws IOException {
+        int originalLength = originalLength(src, offset, length);
+        inflate(src, offset + ORIGINAL_LENGTH, length - ORIGINAL_LENGTH, dst, originalLength);
+        return originalLength;
+    }
+
+    /**
+     * 解压到{@code dst}
+     *
+     * @param src            deflate数据，不含原始长度位
+     * @param offset         起始位置
+     * @param length         deflate数据长度
+     * @param dst            输出，至少为原始长度
+     * @param originalLength 原始长度
+     * @throws IOException 数据损坏或长度不符
+     */
+    static void inflate(byte[] src, int offset, int length, byte[] dst, int originalLength) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(src, offset, length);
+            int position = 0;
+            while (!inflater.finished() && position < originalLength) {
+                int len = inflater.inflate(dst, position, originalLength - position);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                position += len;
+            }
+            checkInflated(position, originalLength);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * 解压到{@code dst}的position处
+     *
+     * @param src            deflate数据，不含原始长度位，返回后position不确定
+     * @param dst            输出，剩余空间至少为原始长度
+     * @param originalLength 原始长度
+     * @throws IOException 数据损坏或长度不符
+     */
+    static void inflate(ByteBuffer src, ByteBuffer dst, int originalLength) throws IOException {
+        if (originalLength > dst.remaining()) {
+            throw new IOException("Illegal original length: " + originalLength);
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + originalLength);
+        Inflater inflater = INFLATERS.get();
+        try {
+            inflater.setInput(src);
+            int position = 0;
+            while (!inflater.finished() && dst.hasRemaining()) {
+                int len = inflater.inflate(dst);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                position += len;
+            }
+            checkInflated(position, originalLength);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            dst.limit(limit);
+            inflater.reset();
+        }
+    }
+
+    /**
+     * 分段解压时直接使用当前线程的Inflater，用完必须reset
+     *
+     * @return 当前线程的Inflater
+     */
+    static Inflater inflater() {
+        return INFLATERS.get();
+    }
+
+    static void checkInflated(int position, int originalLength) throws IOException {
+        if (position != originalLength) {
+            throw new IOException("Corrupt compressed data, inflated: " + position + ", expected: " + originalLength);
+        }
+    }
+}
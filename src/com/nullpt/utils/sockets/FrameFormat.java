@@ -0,0 +1,264 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * TCP数据包格式，每个方向独立选择
+ * 控制帧：压缩标记置位且长度小于{@link FrameCompression#ORIGINAL_LENGTH}的长度位不会出现在数据包上，
+ * 用作控制帧头，长度即控制类型，之后紧跟一个不压缩的数据包作为控制数据，数据包的内容不做任何识别
+ * 格式声明是控制帧，按声明之前的格式编码，之后的数据包使用声明的格式
+ * [control:{@link #CONTROL_DECLARATION}][content-length=8][magic:4][version:1][format:1][features:2]
+ * features为本端支持接收的功能，见{@link #FEATURE_COMPRESSION}和{@link #FEATURE_FILE}，发送端在对端声明支持后才使用对应功能
+ * 接收端默认按{@link #LENGTH_PREFIXED}解包，收到格式声明时切换，本端未指定发送格式时跟随对端，
+ * 本端指定了格式或开启了需要协商的功能时才发送声明，收到对端声明后回复一次，与不发送声明的旧版本之间仍使用原格式
+ */
+public enum FrameFormat {
+
+    /**
+     * [compressed:1|content-length:31][data]
+     */
+    LENGTH_PREFIXED(0),
+    /**
+     * [varint(content-length<<1|compressed)][data]，小于64字节的数据包长度位只有1字节
+     */
+    VARINT(1),
+    /**
+     * [varint(content-length<<1|compressed)][type:1][data]
+     */
+    VARINT_TAGGED(2);
+
+    /**
+     * 控制类型，格式声明
+     */
+    static final int CONTROL_DECLARATION = 1;
+    /**
+     * 控制类型，文件头，见{@link FileTransfer}
+     */
+    static final int CONTROL_FILE = 2;
+    /**
+     * 功能，接收压缩的数据包，能解压的一端声明时总是带上
+     */
+    static final int FEATURE_COMPRESSION = 1;
+    /**
+     * 功能，接收文件
+     */
+    static final int FEATURE_FILE = 1 << 1;
+
+    /**
+     * 最长的长度位，varint最多5字节，加类型位
+     */
+    static final int MAX_HEADER_LENGTH = 6;
+    /**
+     * 最长的varint
+     */
+    static final int MAX_VARINT_LENGTH = 5;
+    /**
+     * 格式声明数据位长度
+     */
+    static final int DECLARATION_BODY_LENGTH = 8;
+    /**
+     * 格式声明最大总长度，控制帧头和数据包长度位按声明之前的格式计算
+     */
+    static final int DECLARATION_LENGTH = MAX_HEADER_LENGTH * 2 + DECLARATION_BODY_LENGTH;
+
+    static final int MAGIC = 0x4E504644;
+    static final int VERSION = 1;
+    private static final FrameFormat[] FORMATS = values();
+
+    final int id;
+
+    FrameFormat(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return 是否带类型位
+     */
+    public boolean isTagged() {
+        return this == VARINT_TAGGED;
+    }
+
+    /**
+     * @param previous 对端当前的接收格式
+     * @param features 本端支持接收的功能
+     * @return 声明本格式的控制帧，position为0
+     */
+    ByteBuffer declaration(FrameFormat previous, int features) {
+        byte[] declaration = new byte[DECLARATION_LENGTH];
+        int length = putDeclaration(declaration, 0, previous, features);
+        return ByteBuffer.wrap(declaration, 0, length);
+    }
+
+    /**
+     * 声明本格式的控制帧写入数组
+     *
+     * @param previous 对端当前的接收格式，控制帧按该格式编码
+     * @param features 本端支持接收的功能
+     * @return 写入长度
+     */
+    int putDeclaration(byte[] dst, int offset, FrameFormat previous, int features) {
+        int index = offset + previous.putControlHeader(dst, offset, CONTROL_DECLARATION);
+        index += previous.putHeader(dst, index, DECLARATION_BODY_LENGTH, false, 0);
+        ByteBuffer.wrap(dst, index, DECLARATION_BODY_LENGTH)
+                .putInt(MAGIC).put((byte) VERSION).put((byte) id).putShort((short) features);
+        return index + DECLARATION_BODY_LENGTH - offset;
+    }
+
+    /**
+     * 解析格式声明的控制数据，不改变position
+     *
+     * @param data 控制数据，position到limit
+     * @return 声明的格式
+     * @throws IOException 不是合法的格式声明
+     */
+    static FrameFormat parseDeclaration(ByteBuffer data) throws IOException {
+        int position = data.position();
+        FrameFormat format = null;
+        if (data.remaining() == DECLARATION_BODY_LENGTH && data.getInt(position) == MAGIC && data.get(position + 4) == VERSION) {
+            format = format(data.get(position + 5));
+        }
+        if (format == null) {
+            throw new IOException("Illegal frame format declaration");
+        }
+        return format;
+    }
+
+    /**
+     * @param data 格式声明的控制数据，position到limit
+     * @return 对端支持接收的功能
+     */
+    static int parseFeatures(ByteBuffer data) {
+        return data.getShort(data.position() + 6) & 0xffff;
+    }
+
+    /**
+     * 是否为控制帧头，否则压缩标记置位的是压缩数据包
+     *
+     * @param compressed 压缩标记
+     * @param length     长度位的值
+     */
+    static boolean isControl(boolean compressed, int length) {
+        return compressed && length < FrameCompression.ORIGINAL_LENGTH;
+    }
+
+    /**
+     * 检查控制类型
+     *
+     * @param kind 控制帧头的长度位
+     * @return 控制类型
+     * @throws IOException 未知的控制类型
+     */
+    static int checkControl(int kind) throws IOException {
+        if (kind != CONTROL_DECLARATION && kind != CONTROL_FILE) {
+            throw new IOException("Unknown control frame: " + kind);
+        }
+        return kind;
+    }
+
+    private static FrameFormat format(int id) {
+        for (FrameFormat format : FORMATS) {
+            if (format.id == id) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param length 数据位长度
+     * @return 长度位长度，包含类型位
+     */
+    int headerLength(int length) {
+        if (this == LENGTH_PREFIXED) {
+            return 4;
+        }
+        int value = length << 1;
+        int headerLength = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            headerLength++;
+        }
+        return isTagged() ? headerLength + 1 : headerLength;
+    }
+
+    /**
+     * 控制帧头写入数组，之后需要紧跟一个不压缩的数据包
+     *
+     * @param kind 控制类型
+     * @return 写入长度
+     */
+    int putControlHeader(byte[] dst, int offset, int kind) {
+        return putHeader(dst, offset, kind, true, 0);
+    }
+
+    /**
+     * 控制帧头写入buffer的指定位置，不改变position
+     *
+     * @param kind 控制类型
+     * @return 写入长度
+     */
+    int putControlHeader(ByteBuffer dst, int index, int kind) {
+        return putHeader(dst, index, kind, true, 0);
+    }
+
+    /**
+     * 长度位直接写入数组
+     *
+     * @param dst        输出
+     * @param offset     起始位置
+     * @param length     数据位长度
+     * @param compressed 数据位是否压缩
+     * @param type       类型，不带类型位的格式忽略
+     * @return 写入长度
+     */
+    int putHeader(byte[] dst, int offset, int length, boolean compressed, int type) {
+        if (this == LENGTH_PREFIXED) {
+            int value = compressed ? length | FrameCompression.COMPRESSED_FLAG : length;
+            dst[offset] = (byte) (value >>> 24);
+            dst[offset + 1] = (byte) (value >>> 16);
+            dst[offset + 2] = (byte) (value >>> 8);
+            dst[offset + 3] = (byte) value;
+            return 4;
+        }
+        int value = (length << 1) | (compressed ? 1 : 0);
+        int index = offset;
+        while ((value & ~0x7f) != 0) {
+            dst[index++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[index++] = (byte) value;
+        if (isTagged()) {
+            dst[index++] = (byte) type;
+        }
+        return index - offset;
+    }
+
+    /**
+     * 长度位直接写入buffer的指定位置，不改变position
+     *
+     * @param dst        输出
+     * @param index      起始位置
+     * @param length     数据位长度
+     * @param compressed 数据位是否压缩
+     * @param type       类型，不带类型位的格式忽略
+     * @return 写入长度
+     */
+    int putHeader(ByteBuffer dst, int index, int length, boolean compressed, int type) {
+        if (this == LENGTH_PREFIXED) {
+            dst.putInt(index, compressed ? length | FrameCompression.COMPRESSED_FLAG : length);
+            return 4;
+        }
+        int value = (length << 1) | (compressed ? 1 : 0);
+        int position = index;
+        while ((value & ~0x7f) != 0) {
+            dst.put(position++, (byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        dst.put(position++, (byte) value);
+        if (isTagged()) {
+            dst.put(position++, (byte) type);
+        }
+        return position - index;
+    }
+}
@@ -0,0 +1,31 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+
+/**
+ * 数据包长度超过最大值，长度位之后的数据不再读取，连接应关闭
+ */
+public class FrameTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long length;
+    private final int maxFrameSize;
+
+    public FrameTooLargeException(long length, int maxFrameSize) {
+        super("Frame length " + length + " exceeds max frame size " + maxFrameSize);
+        this.length = length;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @return 长度位声明的长度
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+}
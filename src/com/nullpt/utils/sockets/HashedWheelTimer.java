@@ -0,0 +1,196 @@
+package com.nullpt.utils.sockets;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 时间轮定时器
+ * 定时任务按到期tick散列到固定数量的槽里，槽内为双向链表，添加和取消都是O(1)
+ * 每个tick只处理一个槽，非线程安全，由所属{@link EventLoop}在循环线程驱动
+ */
+public class HashedWheelTimer {
+
+    private final long tickDuration;
+    private final Timeout[] mHeads;
+    private final Timeout[] mTails;
+    private final int mask;
+    private final long mStartTime = System.nanoTime();
+
+    /**
+     * 下一个待处理的tick
+     */
+    private long mTick = 0;
+    private int mPending = 0;
+
+    /**
+     * @param tickDuration tick间隔
+     * @param unit         时间单位
+     * @param wheelSize    槽数量，取整到2的幂
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickDuration: " + tickDuration + ", wheelSize: " + wheelSize);
+        }
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        size = Math.max(size, 1);
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.mHeads = new Timeout[size];
+        this.mTails = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param task  到期执行的任务
+     * @param delay 延时
+     * @param unit  时间单位
+     * @return 可取消的定时
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = create(task, delay, unit);
+        add(timeout);
+        return timeout;
+    }
+
+    /**
+     * 创建定时但不加入时间轮，可以在任意线程调用
+     */
+    Timeout create(Runnable task, long delay, TimeUnit unit) {
+        return new Timeout(task, System.nanoTime() - mStartTime + unit.toNanos(Math.max(delay, 0)));
+    }
+
+    /**
+     * @return 是否还有未到期的定时
+     */
+    public boolean hasPending() {
+        return mPending > 0;
+    }
+
+    /**
+     * @return 到下一个tick的纳秒数
+     */
+    public long nanosToNextTick() {
+        return Math.max(0, mTick * tickDuration - (System.nanoTime() - mStartTime));
+    }
+
+    /**
+     * 处理所有已到期的tick
+     */
+    public void expireTimeouts() {
+        long targetTick = (System.nanoTime() - mStartTime) / tickDuration;
+        if (mPending == 0) {
+            mTick = Math.max(mTick, targetTick + 1);
+            return;
+        }
+        while (mTick <= targetTick && mPending > 0) {
+            int index = (int) (mTick & mask);
+            mTick++;
+            /*先把整个槽摘下来，任务中新加的定时会落到后面的槽里*/
+            Timeout timeout = mHeads[index];
+            mHeads[index] = null;
+            mTails[index] = null;
+            for (Timeout t = timeout; t != null; t = t.next) {
+                t.timer = null;
+                mPending--;
+            }
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.prev = null;
+                timeout.next = null;
+                if (timeout.cancelled) {
+                    /*ignore*/
+                } else if (timeout.remainingRounds <= 0) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                    append(timeout, index);
+                }
+                timeout = next;
+            }
+        }
+        if (mPending == 0) {
+            mTick = Math.max(mTick, targetTick + 1);
+        }
+    }
+
+    void add(Timeout timeout) {
+        long ticks = Math.max((timeout.deadline + tickDuration - 1) / tickDuration, mTick);
+        timeout.remainingRounds = (ticks - mTick) / mHeads.length;
+        append(timeout, (int) (ticks & mask));
+    }
+
+    private void append(Timeout timeout, int index) {
+        timeout.timer = this;
+        timeout.bucket = index;
+        timeout.prev = mTails[index];
+        timeout.next = null;
+        if (mTails[index] == null) {
+            mHeads[index] = timeout;
+        } else {
+            mTails[index].next = timeout;
+        }
+        mTails[index] = timeout;
+        mPending++;
+    }
+
+    void remove(Timeout timeout) {
+        if (timeout.timer != this) {
+            return;
+        }
+        int index = timeout.bucket;
+        if (timeout.prev == null) {
+            mHeads[index] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next == null) {
+            mTails[index] = timeout.prev;
+        } else {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.timer = null;
+        mPending--;
+    }
+
+    /**
+     * 定时，可以在任意线程取消，在循环线程取消会立即从槽中移除
+     */
+    public static final class Timeout {
+
+        final Runnable task;
+        final long deadline;
+        long remainingRounds;
+        int bucket;
+        Timeout prev;
+        Timeout next;
+        HashedWheelTimer timer;
+        volatile boolean cancelled = false;
+        EventLoop eventLoop;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消，已执行的定时取消无效果
+         */
+        public void cancel() {
+            cancelled = true;
+            if (eventLoop == null || eventLoop.inEventLoop()) {
+                HashedWheelTimer timer = this.timer;
+                if (timer != null) {
+                    timer.remove(this);
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.nullpt.utils.sockets;
+
+/**
+ * 连接空闲状态
+ */
+public enum IdleState {
+    /**
+     * 超时未读到数据
+     */
+    READER_IDLE,
+    /**
+     * 超时未写出数据
+     */
+    WRITER_IDLE,
+    /**
+     * 超时未读也未写
+     */
+    ALL_IDLE
+}
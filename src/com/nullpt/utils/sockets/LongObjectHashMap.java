@@ -0,0 +1,214 @@
+package com.nullpt.utils.sockets;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * long为key的开放寻址map，线性探测，删除时回移，不装箱
+ * 非线程安全，并发修改时{@link #get(long)}不会抛异常也不会死循环，但结果需要调用方校验
+ *
+ * @param <V> value
+ */
+public class LongObjectHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    /**
+     * 最大装载因子
+     */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize = 0;
+    private int mResizeThreshold;
+
+    /**
+     * key为0单独存放，0在数组中表示空位
+     */
+    private boolean mHasZeroKey = false;
+    private Object mZeroValue = null;
+
+    public LongObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity 初始容量
+     */
+    public LongObjectHashMap(int initialCapacity) {
+        int capacity = tableSizeFor((int) Math.min(Integer.MAX_VALUE, (long) (initialCapacity / LOAD_FACTOR) + 1));
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mResizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    public int size() {
+        return mSize + (mHasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0) {
+            return mHasZeroKey ? (V) mZeroValue : null;
+        }
+        long[] keys = mKeys;
+        Object[] values = mValues;
+        if (keys.length != values.length) {
+            /*并发扩容中*/
+            return null;
+        }
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        for (int i = 0; i <= mask; i++) {
+            long k = keys[index];
+            if (k == key) {
+                return (V) values[index];
+            }
+            if (k == 0) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return 旧值
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0) {
+            V old = (V) mZeroValue;
+            mHasZeroKey = true;
+            mZeroValue = value;
+            return old;
+        }
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        for (; ; ) {
+            long k = mKeys[index];
+            if (k == 0) {
+                mKeys[index] = key;
+                mValues[index] = value;
+                if (++mSize > mResizeThreshold) {
+                    resize();
+                }
+                return null;
+            }
+            if (k == key) {
+                V old = (V) mValues[index];
+                mValues[index] = value;
+                return old;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @return 被移除的值
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0) {
+            V old = (V) mZeroValue;
+            mHasZeroKey = false;
+            mZeroValue = null;
+            return old;
+        }
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        for (; ; ) {
+            long k = mKeys[index];
+            if (k == 0) {
+                return null;
+            }
+            if (k == key) {
+                V old = (V) mValues[index];
+                shiftBack(index);
+                mSize--;
+                return old;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, 0);
+        Arrays.fill(mValues, null);
+        mSize = 0;
+        mHasZeroKey = false;
+        mZeroValue = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<V> action) {
+        if (mHasZeroKey) {
+            action.accept((V) mZeroValue);
+        }
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != 0) {
+                action.accept((V) mValues[i]);
+            }
+        }
+    }
+
+    /**
+     * 删除后把后续同一探测链上的元素前移，保持探测链连续
+     */
+    private void shiftBack(int index) {
+        int mask = mKeys.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (mKeys[next] != 0) {
+            int ideal = hash(mKeys[next]) & mask;
+            /*ideal不在(hole, next]区间内才能移到hole*/
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mKeys[hole] = 0;
+        mValues[hole] = null;
+    }
+
+    private void resize() {
+        long[] oldKeys = mKeys;
+        Object[] oldValues = mValues;
+        int capacity = oldKeys.length << 1;
+        long[] keys = new long[capacity];
+        Object[] values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int index = hash(key) & mask;
+                while (keys[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = oldValues[i];
+            }
+        }
+        /*先替换values再替换keys，并发get看到长度不一致时直接返回*/
+        mValues = values;
+        mKeys = keys;
+        mResizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = Math.max(DEFAULT_CAPACITY, capacity);
+        n = Integer.highestOneBit(n - 1) << 1;
+        return n <= 0 ? 1 << 30 : n;
+    }
+}
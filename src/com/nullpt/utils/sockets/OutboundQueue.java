@@ -0,0 +1,222 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 单个连接的待发送队列
+ * 任意线程入队，只在所属循环线程出队，出队时聚合写
+ * 待发送字节数超过高水位变为不可写，回落到低水位以下恢复可写
+ * 文件区域单独通过{@link FileChannel#transferTo}写出
+ */
+class OutboundQueue {
+
+    /**
+     * 单次聚合写最多buffer数量
+     */
+    private static final int MAX_GATHER = 64;
+    /**
+     * 默认低水位
+     */
+    static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    /**
+     * 默认高水位
+     */
+    static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    private final int lowWaterMark;
+    private final int highWaterMark;
+
+    /**
+     * 环形队列，mBuffers为待写数据，mOwners为数据所属的池化buffer，mRegions不为null的位置是文件区域
+     */
+    private ByteBuffer[] mBuffers = new ByteBuffer[16];
+    private PooledByteBuffer[] mOwners = new PooledByteBuffer[16];
+    private FileTransfer.Region[] mRegions = new FileTransfer.Region[16];
+    private int mHead = 0;
+    private int mSize = 0;
+    private long mPendingBytes = 0;
+    private long mWrittenBytes = 0;
+    private volatile boolean mWritable = true;
+
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+
+    OutboundQueue(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark: " + lowWaterMark + ", highWaterMark: " + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * 入队，任意线程
+     *
+     * @param buffer 待写数据
+     * @param owner  写完后release，可以为null
+     */
+    synchronized void add(ByteBuffer buffer, PooledByteBuffer owner) {
+        if (mSize == mBuffers.length) {
+            grow();
+        }
+        int index = (mHead + mSize) & (mBuffers.length - 1);
+        mBuffers[index] = buffer;
+        mOwners[index] = owner;
+        mSize++;
+        mPendingBytes += buffer.remaining();
+        if (mPendingBytes > highWaterMark) {
+            mWritable = false;
+        }
+    }
+
+    /**
+     * 文件区域入队，任意线程，写完或丢弃后关闭文件
+     *
+     * @param region 文件区域
+     */
+    synchronized void add(FileTransfer.Region region) {
+        if (mSize == mBuffers.length) {
+            grow();
+        }
+        int index = (mHead + mSize) & (mBuffers.length - 1);
+        mRegions[index] = region;
+        mSize++;
+        mPendingBytes += region.remaining();
+        if (mPendingBytes > highWaterMark) {
+            mWritable = false;
+        }
+    }
+
+    /**
+     * @return 待发送字节数未超过高水位
+     */
+    boolean isWritable() {
+        return mWritable;
+    }
+
+    synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return 累计写出字节数，循环线程
+     */
+    long writtenBytes() {
+        return mWrittenBytes;
+    }
+
+    /**
+     * 尽量写出，循环线程
+     *
+     * @param channel channel
+     * @return 是否全部写完，没写完需要等待OP_WRITE
+     * @throws IOException 写失败
+     */
+    boolean write(GatheringByteChannel channel) throws IOException {
+        for (; ; ) {
+            int count = 0;
+            long expected = 0;
+            FileTransfer.Region region = null;
+            synchronized (this) {
+                int size = Math.min(mSize, MAX_GATHER);
+                for (; count < size; count++) {
+                    int index = (mHead + count) & (mBuffers.length - 1);
+                    if (mRegions[index] != null) {
+                        /*聚合写到文件区域之前为止*/
+                        if (count == 0) {
+                            region = mRegions[index];
+                        }
+                        break;
+                    }
+                    mGather[count] = mBuffers[index];
+                    expected += mGather[count].remaining();
+                }
+            }
+            if (region != null) {
+                expected = region.remaining();
+                long written = region.transferTo(channel);
+                removeWritten(written);
+                if (written < expected) {
+                    return false;
+                }
+                continue;
+            }
+            if (count == 0) {
+                return true;
+            }
+            long written = count == 1 ? channel.write(mGather[0]) : channel.write(mGather, 0, count);
+            for (int i = 0; i < count; i++) {
+                mGather[i] = null;
+            }
+            removeWritten(written);
+            if (written < expected) {
+                /*socket发送缓冲区已满*/
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 丢弃所有待发送数据
+     */
+    synchronized void clear() {
+        while (mSize > 0) {
+            removeHead();
+        }
+        mPendingBytes = 0;
+    }
+
+    /**
+     * 移除已写完的数据
+     *
+     * @param written 本次写出字节数
+     */
+    private synchronized void removeWritten(long written) {
+        mPendingBytes -= written;
+        mWrittenBytes += written;
+        while (mSize > 0) {
+            FileTransfer.Region region = mRegions[mHead];
+            if (region != null ? !region.isComplete() : mBuffers[mHead].hasRemaining()) {
+                break;
+            }
+            removeHead();
+        }
+        if (!mWritable && mPendingBytes < lowWaterMark) {
+            mWritable = true;
+        }
+    }
+
+    private void removeHead() {
+        PooledByteBuffer owner = mOwners[mHead];
+        FileTransfer.Region region = mRegions[mHead];
+        mBuffers[mHead] = null;
+        mOwners[mHead] = null;
+        mRegions[mHead] = null;
+        mHead = (mHead + 1) & (mBuffers.length - 1);
+        mSize--;
+        if (owner != null) {
+            owner.release();
+        }
+        if (region != null) {
+            region.release();
+        }
+    }
+
+    private void grow() {
+        int length = mBuffers.length;
+        ByteBuffer[] buffers = new ByteBuffer[length << 1];
+        PooledByteBuffer[] owners = new PooledByteBuffer[length << 1];
+        FileTransfer.Region[] regions = new FileTransfer.Region[length << 1];
+        for (int i = 0; i < mSize; i++) {
+            buffers[i] = mBuffers[(mHead + i) & (length - 1)];
+            owners[i] = mOwners[(mHead + i) & (length - 1)];
+            regions[i] = mRegions[(mHead + i) & (length - 1)];
+        }
+        mBuffers = buffers;
+        mOwners = owners;
+        mRegions = regions;
+        mHead = 0;
+    }
+}
@@ -0,0 +1,92 @@
+package com.nullpt.utils.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 引用计数的direct ByteBuffer，计数归零后回到{@link ByteBufferPool}
+ * 分配时计数为1，每多一个持有者调用一次{@link #retain()}，用完各自{@link #release()}
+ */
+public final class PooledByteBuffer {
+
+    private final ByteBuffer buffer;
+    /**
+     * 所属池，null表示超出池化大小，不回收
+     */
+    final ByteBufferPool pool;
+    /**
+     * 所属大小等级
+     */
+    final int sizeClass;
+    private final AtomicInteger mRefCnt = new AtomicInteger(0);
+    /**
+     * 泄漏检测模式下的追踪
+     */
+    ByteBufferPool.LeakTracker tracker;
+
+    PooledByteBuffer(ByteBuffer buffer, ByteBufferPool pool, int sizeClass) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * @return 底层buffer，{@link #release()}之后不能再使用
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return 当前引用计数
+     */
+    public int refCnt() {
+        return mRefCnt.get();
+    }
+
+    /**
+     * 引用计数加一
+     *
+     * @return this
+     */
+    public PooledByteBuffer retain() {
+        for (; ; ) {
+            int refCnt = mRefCnt.get();
+            if (refCnt <= 0) {
+                throw new IllegalStateException("refCnt: " + refCnt);
+            }
+            if (mRefCnt.compareAndSet(refCnt, refCnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 引用计数减一，归零时回收
+     *
+     * @return 是否已回收
+     */
+    public boolean release() {
+        int refCnt = mRefCnt.decrementAndGet();
+        if (refCnt > 0) {
+            return false;
+        }
+        if (refCnt < 0) {
+            mRefCnt.incrementAndGet();
+            throw new IllegalStateException("refCnt: " + (refCnt + 1));
+        }
+        if (tracker != null) {
+            tracker.close();
+            tracker = null;
+        }
+        if (pool != null) {
+            pool.recycle(this);
+        }
+        return true;
+    }
+
+    void init() {
+        mRefCnt.set(1);
+        buffer.clear();
+    }
+}
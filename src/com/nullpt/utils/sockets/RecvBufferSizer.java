@@ -0,0 +1,56 @@
+package com.nullpt.utils.sockets;
+
+/**
+ * 单个连接的读取buffer大小，按实际读取长度自适应
+ * 读满则放大，连续两次小一档也能装下则缩小
+ */
+class RecvBufferSizer {
+
+    /**
+     * 可选大小，和{@link ByteBufferPool}的等级一致
+     */
+    private static final int[] SIZE_TABLE = {64, 128, 256, 512, 1024, 2048, 4096, 8192, 16384, 32768, 65536};
+    /**
+     * 初始大小下标，1024
+     */
+    private static final int INITIAL_INDEX = 4;
+    /**
+     * 放大步长
+     */
+    private static final int INDEX_INCREMENT = 2;
+    /**
+     * 缩小步长
+     */
+    private static final int INDEX_DECREMENT = 1;
+
+    private int mIndex = INITIAL_INDEX;
+    private boolean mDecreaseNow = false;
+
+    /**
+     * @return 下一次读取使用的大小
+     */
+    int guess() {
+        return SIZE_TABLE[mIndex];
+    }
+
+    /**
+     * 记录一次读取
+     *
+     * @param actual 实际读取长度
+     */
+    void record(int actual) {
+        if (actual <= SIZE_TABLE[Math.max(0, mIndex - INDEX_DECREMENT)]) {
+            if (mDecreaseNow) {
+                mIndex = Math.max(mIndex - INDEX_DECREMENT, 0);
+                mDecreaseNow = false;
+            } else {
+                mDecreaseNow = true;
+            }
+        } else if (actual >= SIZE_TABLE[mIndex]) {
+            mIndex = Math.min(mIndex + INDEX_INCREMENT, SIZE_TABLE.length - 1);
+            mDecreaseNow = false;
+        } else {
+            mDecreaseNow = false;
+        }
+    }
+}
@@ -3,141 +3,249 @@ package com.nullpt.utils.sockets;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.util.Iterator;
-import java.util.Set;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * nio client
  */
 public class SelectorClient {
 
-    private static Selector selector;
     private final String ip;
     private final int port;
-    private final ExecutorService executorService;
+    private final EventLoopGroup mEventLoopGroup;
+    private final boolean mOwnGroup;
 
-    private SocketChannel mSocketChannel;
-    private SelectorIO mSelectorIO = null;
+    private volatile SelectorConnection mConnection;
+    private SelectorConnection mConnectingConnection;
+    private volatile SelectorIO mSelectorIO = null;
+    private final ConnectionConfig mConfig = new ConnectionConfig();
 
-    static {
-        try {
-            selector = Selector.open();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private final SelectorConnection.Callback mConnectionCallback = new SelectorConnection.Callback() {
+        @Override
+        public void connected(SelectorConnection connection) {
+            mConnection = connection;
+            SelectorIO selectorIO = mSelectorIO;
+            if (selectorIO != null) {
+                selectorIO.connect(connection.id);
+            }
         }
-    }
 
+        @Override
+        public void receive(SelectorConnection connection, byte[] data) {
+            receive(connection, 0, data);
+        }
+
+        @Override
+        public void receive(SelectorConnection connection, int type, byte[] data) {
+            SelectorIO selectorIO = mSelectorIO;
+            if (selectorIO != null) {
+                selectorIO.receive(connection.id, type, data);
+            }
+        }
+
+        @Override
+        public void writabilityChanged(SelectorConnection connection, boolean writable) {
+            SelectorIO selectorIO = mSelectorIO;
+            if (selectorIO != null) {
+                selectorIO.writabilityChanged(connection.id, writable);
+            }
+        }
+
+        @Override
+        public void idle(SelectorConnection connection, IdleState state) {
+            SelectorIO selectorIO = mSelectorIO;
+            if (selectorIO != null) {
+                selectorIO.idle(connection.id, state);
+            }
+        }
+
+        @Override
+        public FileTransfer.Receiver fileReceiver(SelectorConnection connection) {
+            SelectorIO selectorIO = mSelectorIO;
+            return selectorIO != null ? selectorIO.fileReceiver(connection.id) : null;
+        }
+    };
+
+    /**
+     * 独占一个循环
+     *
+     * @param ip              地址
+     * @param port            端口
+     * @param executorService 运行循环的线程池
+     */
     public SelectorClient(String ip, int port, ExecutorService executorService) {
+        this(ip, port, new EventLoopGroup(1, executorService), true);
+    }
+
+    /**
+     * 共用循环组，多个client可以和{@link SelectorServer}的worker共用同一组循环
+     *
+     * @param ip             地址
+     * @param port           端口
+     * @param eventLoopGroup 循环组
+     */
+    public SelectorClient(String ip, int port, EventLoopGroup eventLoopGroup) {
+        this(ip, port, eventLoopGroup, false);
+    }
+
+    private SelectorClient(String ip, int port, EventLoopGroup eventLoopGroup, boolean ownGroup) {
         this.ip = ip;
         this.port = port;
-        this.executorService = executorService;
+        this.mEventLoopGroup = eventLoopGroup;
+        this.mOwnGroup = ownGroup;
     }
 
     public void setSelectorIO(SelectorIO mSelectorIO) {
         this.mSelectorIO = mSelectorIO;
     }
 
+    /**
+     * 待发送队列水位，需要在{@link #connect()}之前设置
+     *
+     * @param lowWaterMark  低水位，待发送字节数回落到该值以下恢复可写
+     * @param highWaterMark 高水位，待发送字节数超过该值变为不可写
+     */
+    public void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        mConfig.setWriteBufferWaterMark(lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * 空闲检测，超时回调{@link SelectorIO#idle}，需要在{@link #connect()}之前设置
+     *
+     * @param readerIdle 读空闲超时，0为不检测
+     * @param writerIdle 写空闲超时，0为不检测
+     * @param allIdle    读写空闲超时，0为不检测
+     * @param unit       时间单位
+     */
+    public void setIdleTimeout(long readerIdle, long writerIdle, long allIdle, TimeUnit unit) {
+        mConfig.setIdleTimeout(readerIdle, writerIdle, allIdle, unit);
+    }
+
+    /**
+     * 心跳，写空闲或读写空闲时自动发送，需要在{@link #connect()}之前设置
+     *
+     * @param heartbeat         心跳数据，对端按普通数据包接收，null为不发送
+     * @param closeOnReaderIdle 读空闲时是否关闭连接
+     */
+    public void setHeartbeat(byte[] heartbeat, boolean closeOnReaderIdle) {
+        mConfig.setHeartbeat(heartbeat, closeOnReaderIdle);
+    }
+
+    /**
+     * 压缩，不小于阈值的数据压缩发送，需要在{@link #connect()}之前设置
+     * 连接后发送格式声明，服务端回复的声明中带{@link FrameFormat#FEATURE_COMPRESSION}之后才压缩，服务端需要支持格式声明
+     *
+     * @param threshold 压缩阈值，-1为不压缩
+     */
+    public void setCompressionThreshold(int threshold) {
+        mConfig.setCompressionThreshold(threshold);
+    }
+
+    /**
+     * 接收的最大数据包长度，超过时关闭连接，需要在{@link #connect()}之前设置
+     *
+     * @param maxFrameSize 最大长度，默认{@link TCPPackageProtocol#DEFAULT_MAX_FRAME_SIZE}
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        mConfig.setMaxFrameSize(maxFrameSize);
+    }
+
+    /**
+     * 发送格式，需要在{@link #connect()}之前设置，连接建立后先发送格式声明，服务端跟随该格式回复
+     * 服务端需要支持格式声明
+     *
+     * @param frameFormat 发送格式，null为跟随对端
+     */
+    public void setFrameFormat(FrameFormat frameFormat) {
+        mConfig.setFrameFormat(frameFormat);
+    }
+
+    /**
+     * 在格式声明中声明接收文件，需要在{@link #connect()}之前设置，服务端需要支持格式声明
+     * 文件通过{@link SelectorIO#fileReceiver}接收，未声明时服务端不能发送文件
+     *
+     * @param acceptFiles 是否接收文件
+     */
+    public void setAcceptFiles(boolean acceptFiles) {
+        mConfig.setAcceptFiles(acceptFiles);
+    }
+
     public void connect() {
         try {
             SocketChannel socketChannel = SocketChannel.open();
             SocketAddress remote = new InetSocketAddress(ip, port);
             socketChannel.configureBlocking(false);
             socketChannel.connect(remote);
-            socketChannel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            EventLoop eventLoop = mEventLoopGroup.next();
+            mConnectingConnection = new SelectorConnection(socketChannel, eventLoop, mConnectionCallback, mConfig.copy());
+            eventLoop.register(socketChannel, SelectionKey.OP_CONNECT, mConnectingConnection);
         } catch (Exception e) {
             /*ignore*/
         }
-
-        executorService.execute(() -> {
-            try {
-                select();
-            } catch (IOException e) {
-                /*ignore*/
-            }
-        });
-    }
-
-    private void select() throws IOException {
-        while (selector.select() > 0) {
-            Set<SelectionKey> keys = selector.selectedKeys();
-            Iterator<SelectionKey> it = keys.iterator();
-            while (it.hasNext()) {
-                SelectionKey key = it.next();
-                it.remove();
-                if (key.isConnectable()) {
-                    connect(key);
-                } else if (key.isWritable()) {
-                    write(key);
-                } else if (key.isReadable()) {
-                    receive(key);
-                }
-            }
-        }
     }
 
+    /**
+     * 封包发送，格式同{@link TCPPackageProtocol}
+     * 数据进入待发送队列后立即返回，不可写时应暂停发送，等待{@link SelectorIO#writabilityChanged}
+     *
+     * @param data 数据
+     */
     public void send(byte[] data) {
-        if (mSocketChannel != null) {
-            try {
-                mSocketChannel.write(ByteBuffer.wrap(data));
-            } catch (IOException e) {
-                /*ignore*/
-            }
-        }
+        send(0, data);
     }
 
-    public void close() {
-        Set<SelectionKey> keys = selector.selectedKeys();
-        for (SelectionKey key : keys) {
-            SocketChannel channel = (SocketChannel) key.channel();
-            try {
-                channel.shutdownInput();
-            } catch (IOException e) {
-                /*ignore*/
-            }
-            try {
-                channel.shutdownOutput();
-            } catch (IOException e) {
-                /*ignore*/
-            }
-            try {
-                channel.close();
-            } catch (IOException e) {
-                /*ignore*/
-            }
-        }
-        try {
-            selector.close();
-        } catch (IOException e) {
-            /*ignore*/
+    /**
+     * 带类型封包发送，{@link FrameFormat#VARINT_TAGGED}格式时类型随数据包发送，其他格式忽略
+     *
+     * @param type 类型，0-255
+     * @param data 数据
+     */
+    public void send(int type, byte[] data) {
+        SelectorConnection connection = mConnection;
+        if (connection != null) {
+            connection.send(type, data);
         }
     }
 
-    private void connect(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        channel.finishConnect();
-        mSocketChannel = channel;
-        if (mSelectorIO != null) {
-            mSelectorIO.connect(channel.hashCode());
+    /**
+     * 发送文件，见{@link SelectorServer#sendFile}，未连接时忽略
+     *
+     * @param path     文件
+     * @param offset   起始位置
+     * @param length   长度
+     * @param callback 进度回调，在循环线程上回调，可以为null
+     * @throws IOException 服务端未声明接收文件，或打开文件失败
+     */
+    public void sendFile(Path path, long offset, long length, FileTransfer.SendCallback callback) throws IOException {
+        SelectorConnection connection = mConnection;
+        if (connection == null) {
+            return;
         }
+        FileTransfer.checkAccepted(connection.peerFeatures());
+        FileChannel file = FileTransfer.open(path, offset, length);
+        connection.sendFile(file, String.valueOf(path.getFileName()), offset, length, callback);
     }
 
-    private void write(SelectionKey key) throws IOException {
-        key.interestOps(SelectionKey.OP_READ);
+    /**
+     * @return 已连接且待发送数据未超过高水位
+     */
+    public boolean isWritable() {
+        SelectorConnection connection = mConnection;
+        return connection != null && connection.isWritable();
     }
 
-    private void receive(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        channel.read(buffer);
-        buffer.flip();
-        if (mSelectorIO != null) {
-            mSelectorIO.receive(channel.hashCode(), buffer.array());
+    public void close() {
+        SelectorConnection connection = mConnectingConnection;
+        if (connection != null) {
+            connection.close();
+        }
+        if (mOwnGroup) {
+            mEventLoopGroup.shutdown();
         }
     }
 }
@@ -0,0 +1,380 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 到同一服务端的一组nio连接，请求按轮询或最少未完成数分配到各连接
+ * 请求格式[content-length:4][correlation-id:8][data]，服务端用{@link SelectorServer#reply}带上同一个id回包
+ * 每个连接可以同时有多个未完成请求，回包按id匹配，不要求顺序
+ */
+public class SelectorClientGroup {
+
+    /**
+     * 关联id长度
+     */
+    public static final int CORRELATION_ID_LENGTH = 8;
+
+    /**
+     * 连接选择策略
+     */
+    public enum Balance {
+        /**
+         * 轮询
+         */
+        ROUND_ROBIN,
+        /**
+         * 未完成请求最少的连接
+         */
+        LEAST_OUTSTANDING
+    }
+
+    private final String ip;
+    private final int port;
+    private final EventLoopGroup mEventLoopGroup;
+    private final boolean mOwnGroup;
+
+    /**
+     * 已连接的连接，未连接或已关闭为null
+     */
+    private final AtomicReferenceArray<SelectorConnection> mConnections;
+    private final SelectorConnection[] mAllConnections;
+    /**
+     * 每个连接的未完成请求数
+     */
+    private final AtomicIntegerArray mOutstanding;
+    /**
+     * 每个连接的未完成请求，按关联id索引，连接关闭时只处理这个连接的
+     */
+    private final ConnectionRegistry<Pending>[] mPending;
+    private final AtomicLong mCorrelationId = new AtomicLong(1);
+    private final AtomicInteger mIndex = new AtomicInteger(0);
+    private final ConnectionConfig mConfig = new ConnectionConfig();
+    private volatile Balance mBalance = Balance.ROUND_ROBIN;
+    private volatile long mRequestTimeoutNanos = 0;
+
+    /**
+     * 独占一个循环组，循环数量为连接数和cpu核数中较小的
+     *
+     * @param ip          地址
+     * @param port        端口
+     * @param connections 连接数
+     */
+    public SelectorClientGroup(String ip, int port, int connections) {
+        this(ip, port, connections, new EventLoopGroup(Math.max(1, Math.min(connections, Runtime.getRuntime().availableProcessors()))), true);
+    }
+
+    /**
+     * 共用循环组，连接轮询分配到组内各循环上
+     *
+     * @param ip             地址
+     * @param port           端口
+     * @param connections    连接数
+     * @param eventLoopGroup 循环组
+     */
+    public SelectorClientGroup(String ip, int port, int connections, EventLoopGroup eventLoopGroup) {
+        this(ip, port, connections, eventLoopGroup, false);
+    }
+
+    private SelectorClientGroup(String ip, int port, int connections, EventLoopGroup eventLoopGroup, boolean ownGroup) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections: " + connections);
+        }
+        this.ip = ip;
+        this.port = port;
+        this.mEventLoopGroup = eventLoopGroup;
+        this.mOwnGroup = ownGroup;
+        this.mConnections = new AtomicReferenceArray<>(connections);
+        this.mAllConnections = new SelectorConnection[connections];
+        this.mOutstanding = new AtomicIntegerArray(connections);
+        this.mPending = newPendingRegistries(connections);
+        for (int i = 0; i < connections; i++) {
+            mPending[i] = new ConnectionRegistry<>();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> ConnectionRegistry<V>[] newPendingRegistries(int length) {
+        return (ConnectionRegistry<V>[]) new ConnectionRegistry<?>[length];
+    }
+
+    /**
+     * @param balance 连接选择策略，默认轮询
+     */
+    public void setBalance(Balance balance) {
+        this.mBalance = balance;
+    }
+
+    /**
+     * 请求超时，超时后回调{@link ResponseCallback#failed}，之后到达的回包丢弃
+     *
+     * @param timeout 超时，0为不超时
+     * @param unit    时间单位
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit) {
+        this.mRequestTimeoutNanos = Math.max(0, unit.toNanos(timeout));
+    }
+
+    /**
+     * 待发送队列水位，需要在{@link #connect()}之前设置
+     *
+     * @param lowWaterMark  低水位
+     * @param highWaterMark 高水位
+     */
+    public void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        mConfig.setWriteBufferWaterMark(lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * 压缩，不小于阈值的请求压缩发送，需要在{@link #connect()}之前设置
+     * 每个连接在服务端回复的声明中带{@link FrameFormat#FEATURE_COMPRESSION}之后才压缩，见{@link SelectorClient#setCompressionThreshold(int)}
+     *
+     * @param threshold 压缩阈值，-1为不压缩
+     */
+    public void setCompressionThreshold(int threshold) {
+        mConfig.setCompressionThreshold(threshold);
+    }
+
+    /**
+     * 接收的最大数据包长度，超过时关闭连接，需要在{@link #connect()}之前设置
+     *
+     * @param maxFrameSize 最大长度，默认{@link TCPPackageProtocol#DEFAULT_MAX_FRAME_SIZE}
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        mConfig.setMaxFrameSize(maxFrameSize);
+    }
+
+    /**
+     * 发送格式，需要在{@link #connect()}之前设置，见{@link SelectorClient#setFrameFormat(FrameFormat)}
+     *
+     * @param frameFormat 发送格式，null为跟随对端
+     */
+    public void setFrameFormat(FrameFormat frameFormat) {
+        mConfig.setFrameFormat(frameFormat);
+    }
+
+    public void connect() {
+        for (int i = 0; i < mAllConnections.length; i++) {
+            try {
+                SocketChannel socketChannel = SocketChannel.open();
+                socketChannel.configureBlocking(false);
+                socketChannel.connect(new InetSocketAddress(ip, port));
+                EventLoop eventLoop = mEventLoopGroup.next();
+                mAllConnections[i] = new SelectorConnection(socketChannel, eventLoop, new SlotCallback(i), mConfig.copy());
+                eventLoop.register(socketChannel, SelectionKey.OP_CONNECT, mAllConnections[i]);
+            } catch (Exception e) {
+                /*ignore*/
+            }
+        }
+    }
+
+    /**
+     * 发送请求，任意线程，不等待回包
+     * 回包在连接所属循环线程上回调，回调中不要阻塞
+     *
+     * @param data     数据
+     * @param callback 回包回调
+     * @return 关联id，没有可用连接返回-1并回调失败
+     */
+    public long request(byte[] data, ResponseCallback callback) {
+        int index = select();
+        SelectorConnection connection = index < 0 ? null : mConnections.get(index);
+        if (connection == null) {
+            callback.failed(new IOException("not connected"));
+            return -1;
+        }
+        long id = mCorrelationId.getAndIncrement();
+        Pending pending = new Pending(index, callback);
+        ConnectionRegistry<Pending> pendingRegistry = mPending[index];
+        mOutstanding.incrementAndGet(index);
+        pendingRegistry.put(id, pending);
+        long timeout = mRequestTimeoutNanos;
+        if (timeout > 0) {
+            pending.timeout = connection.eventLoop.schedule(() -> {
+                if (pendingRegistry.remove(id) == pending) {
+                    pending.complete();
+                    callback.failed(new SocketTimeoutException("request timeout"));
+                }
+            }, timeout, TimeUnit.NANOSECONDS);
+        }
+        connection.sendCorrelated(id, data);
+        if (mConnections.get(index) != connection && pendingRegistry.remove(id) == pending) {
+            /*发送时连接已关闭，关闭时没有扫到这个请求*/
+            pending.complete();
+            callback.failed(new IOException("connection closed"));
+        }
+        return id;
+    }
+
+    /**
+     * @return 未完成请求数
+     */
+    public int outstanding() {
+        int outstanding = 0;
+        for (int i = 0; i < mOutstanding.length(); i++) {
+            outstanding += mOutstanding.get(i);
+        }
+        return outstanding;
+    }
+
+    /**
+     * 关闭所有连接，未完成的请求回调失败
+     */
+    public void close() {
+        for (SelectorConnection connection : mAllConnections) {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        for (int i = 0; i < mAllConnections.length; i++) {
+            mConnections.set(i, null);
+            failAll(i, new IOException("connection closed"));
+        }
+        if (mOwnGroup) {
+            mEventLoopGroup.shutdown();
+        }
+    }
+
+    /**
+     * 从请求或回包中取出关联id
+     *
+     * @param data 收到的数据
+     * @return 关联id
+     */
+    public static long correlationId(byte[] data) {
+        long id = 0;
+        for (int i = 0; i < CORRELATION_ID_LENGTH; i++) {
+            id = (id << 8) | (data[i] & 0xff);
+        }
+        return id;
+    }
+
+    /**
+     * @return 选中的连接下标，没有已连接的返回-1
+     */
+    private int select() {
+        int length = mConnections.length();
+        int start = Math.abs(mIndex.getAndIncrement() % length);
+        int selected = -1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < length; i++) {
+            int index = (start + i) % length;
+            SelectorConnection connection = mConnections.get(index);
+            if (connection == null) {
+                continue;
+            }
+            if (!connection.isWritable()) {
+                /*超过高水位的连接只在没有其他连接时使用*/
+                if (selected < 0) {
+                    selected = index;
+                }
+                continue;
+            }
+            if (mBalance == Balance.ROUND_ROBIN) {
+                return index;
+            }
+            int outstanding = mOutstanding.get(index);
+            if (outstanding < min) {
+                min = outstanding;
+                selected = index;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * 连接上的未完成请求全部回调失败，清空时取得所有权，与回包和超时不会重复回调
+     */
+    private void failAll(int index, IOException e) {
+        mPending[index].clear(pending -> {
+            pending.complete();
+            pending.callback.failed(e);
+        });
+    }
+
+    /**
+     * 每个连接一个，记录连接下标，回调时不用查找
+     */
+    private final class SlotCallback implements SelectorConnection.Callback {
+
+        private final int index;
+
+        SlotCallback(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void connected(SelectorConnection connection) {
+            mConnections.set(index, connection);
+        }
+
+        @Override
+        public void receive(SelectorConnection connection, byte[] data) {
+            if (data.length < CORRELATION_ID_LENGTH) {
+                return;
+            }
+            Pending pending = mPending[index].remove(correlationId(data));
+            if (pending == null) {
+                /*已超时*/
+                return;
+            }
+            pending.complete();
+            pending.callback.response(Arrays.copyOfRange(data, CORRELATION_ID_LENGTH, data.length));
+        }
+
+        @Override
+        public void closed(SelectorConnection connection) {
+            mConnections.compareAndSet(index, connection, null);
+            failAll(index, new IOException("connection closed"));
+        }
+    }
+
+    private final class Pending {
+
+        final int index;
+        final ResponseCallback callback;
+        volatile HashedWheelTimer.Timeout timeout;
+
+        Pending(int index, ResponseCallback callback) {
+            this.index = index;
+            this.callback = callback;
+        }
+
+        /**
+         * 从未完成请求中移除之后调用，只会调用一次
+         */
+        void complete() {
+            mOutstanding.decrementAndGet(index);
+            HashedWheelTimer.Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * 回包回调
+     */
+    public interface ResponseCallback {
+
+        /**
+         * @param data 回包数据，不含关联id
+         */
+        void response(byte[] data);
+
+        /**
+         * 连接关闭、没有可用连接或超时
+         */
+        default void failed(IOException e) {
+        }
+    }
+}
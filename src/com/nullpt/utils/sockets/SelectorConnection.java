@@ -0,0 +1,676 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * nio连接，作为SelectionKey的attachment，持有单个连接的读写状态
+ * 读写都在所属循环线程上完成，发送可以在任意线程调用
+ */
+class SelectorConnection implements EventLoop.Handler, TCPFrameDecoder.FrameCallback {
+
+    /**
+     * 单次就绪事件最多读取次数
+     */
+    private static final int MAX_READS = 16;
+
+    final long id;
+    final SocketChannel channel;
+    final EventLoop eventLoop;
+    private final Callback callback;
+    private final ConnectionConfig config;
+
+    private final TCPFrameDecoder mDecoder;
+    private final RecvBufferSizer mRecvBufferSizer = new RecvBufferSizer();
+    private final OutboundQueue mOutboundQueue;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final Runnable mFlushTask = () -> {
+        mFlushScheduled.set(false);
+        flush();
+    };
+    /**
+     * 发送格式，修改和入队都在mOutboundQueue的锁内
+     */
+    private volatile FrameFormat mSendFormat = FrameFormat.LENGTH_PREFIXED;
+    private boolean mSendFormatSelected = false;
+    private boolean mDeclarationPending = false;
+    /**
+     * 最近一次声明的格式和功能，即对端当前的接收格式，未声明过时功能为-1
+     */
+    private FrameFormat mDeclaredFormat = FrameFormat.LENGTH_PREFIXED;
+    private int mDeclaredFeatures = -1;
+    /**
+     * 本端支持接收的功能
+     */
+    private final int mLocalFeatures;
+    /**
+     * 对端声明的功能，对端未声明时为0
+     */
+    private volatile int mPeerFeatures = 0;
+    /**
+     * 文件写入队列，第一次收到文件时创建，循环线程
+     */
+    private FileTransfer.SinkQueue mFileQueue;
+    /**
+     * 文件写入排队过多时暂停读，循环线程
+     */
+    private boolean mReadPaused = false;
+    private SelectionKey mKey;
+    private boolean mNotifiedWritable = true;
+    private boolean mClosed = false;
+
+    private long mLastReadTime;
+    private long mLastWriteTime;
+    private HashedWheelTimer.Timeout mReaderIdleTimeout;
+    private HashedWheelTimer.Timeout mWriterIdleTimeout;
+    private HashedWheelTimer.Timeout mAllIdleTimeout;
+
+    SelectorConnection(SocketChannel channel, EventLoop eventLoop, Callback callback, ConnectionConfig config) {
+        this.id = ConnectionRegistry.nextId();
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.callback = callback;
+        this.config = config;
+        this.mOutboundQueue = new OutboundQueue(config.lowWaterMark, config.highWaterMark);
+        this.mDecoder = new TCPFrameDecoder(config.maxFrameSize);
+        this.mLocalFeatures = FrameFormat.FEATURE_COMPRESSION | (config.acceptFiles ? FrameFormat.FEATURE_FILE : 0);
+        if (config.frameFormat != null) {
+            setSendFormat(config.frameFormat);
+        }
+        /*开启了需要协商的功能时声明，对端回复后才能压缩和发送文件*/
+        if (config.acceptFiles || config.compressionThreshold != FrameCompression.DISABLED) {
+            mDeclarationPending = true;
+        }
+    }
+
+    @Override
+    public void registered(SelectionKey key) {
+        mKey = key;
+        mLastReadTime = mLastWriteTime = System.nanoTime();
+        if (config.readerIdleNanos > 0) {
+            mReaderIdleTimeout = eventLoop.schedule(new IdleTimeoutTask(IdleState.READER_IDLE, config.readerIdleNanos), config.readerIdleNanos, TimeUnit.NANOSECONDS);
+        }
+        if (config.writerIdleNanos > 0) {
+            mWriterIdleTimeout = eventLoop.schedule(new IdleTimeoutTask(IdleState.WRITER_IDLE, config.writerIdleNanos), config.writerIdleNanos, TimeUnit.NANOSECONDS);
+        }
+        if (config.allIdleNanos > 0) {
+            mAllIdleTimeout = eventLoop.schedule(new IdleTimeoutTask(IdleState.ALL_IDLE, config.allIdleNanos), config.allIdleNanos, TimeUnit.NANOSECONDS);
+        }
+        synchronized (mOutboundQueue) {
+            /*需要声明时连接建立后立即发送，不等第一个数据包*/
+            addDeclaration();
+        }
+        if (!mOutboundQueue.isEmpty()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void select(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            callback.connected(this);
+            flush();
+            return;
+        }
+        if (key.isWritable()) {
+            flush();
+        }
+        if (key.isValid() && key.isReadable()) {
+            receive();
+        }
+    }
+
+    @Override
+    public void closed(SelectionKey key) {
+        release();
+    }
+
+    @Override
+    public void frame(byte[] data) {
+        callback.receive(this, 0, data);
+    }
+
+    @Override
+    public void frame(int type, byte[] data) {
+        callback.receive(this, type, data);
+    }
+
+    @Override
+    public void frameFormat(FrameFormat format, int features) {
+        mPeerFeatures = features;
+        synchronized (mOutboundQueue) {
+            /*本端未指定发送格式时跟随对端*/
+            if (!mSendFormatSelected) {
+                setSendFormat(format);
+            }
+            /*对端支持格式声明，本端未声明过时回复一次*/
+            if (mDeclaredFeatures < 0) {
+                mDeclarationPending = true;
+            }
+            addDeclaration();
+        }
+        flush();
+    }
+
+    @Override
+    public void fileStart(String name, long length) {
+        if (mFileQueue == null) {
+            mFileQueue = new FileTransfer.SinkQueue(FileTransfer.WRITE_EXECUTOR, () -> eventLoop.execute(this::resumeRead));
+        }
+        mFileQueue.start(callback.fileReceiver(this), name, length);
+    }
+
+    @Override
+    public void fileChunk(ByteBuffer chunk) {
+        if (mFileQueue.write(chunk)) {
+            pauseRead();
+        }
+    }
+
+    @Override
+    public void fileEnd() {
+        mFileQueue.finish();
+    }
+
+    /**
+     * 指定发送格式，格式声明在下一个数据包之前发送，任意线程
+     *
+     * @param format 发送格式
+     */
+    void setSendFormat(FrameFormat format) {
+        synchronized (mOutboundQueue) {
+            mSendFormatSelected = true;
+            if (mSendFormat != format) {
+                mSendFormat = format;
+                mDeclarationPending = true;
+            }
+        }
+    }
+
+    /**
+     * @return 当前发送格式
+     */
+    FrameFormat sendFormat() {
+        return mSendFormat;
+    }
+
+    /**
+     * @return 对端声明能解压时为配置的压缩阈值，否则不压缩
+     */
+    int compressionThreshold() {
+        return FrameCompression.negotiate(config.compressionThreshold, mPeerFeatures);
+    }
+
+    /**
+     * @return 对端声明的功能
+     */
+    int peerFeatures() {
+        return mPeerFeatures;
+    }
+
+    /**
+     * 封包入队，任意线程
+     *
+     * @param data 数据
+     */
+    void send(byte[] data) {
+        send(0, data);
+    }
+
+    /**
+     * 封包入队，任意线程
+     *
+     * @param type 类型，不带类型位的格式忽略
+     * @param data 数据
+     */
+    void send(int type, byte[] data) {
+        FrameFormat format = mSendFormat;
+        PooledByteBuffer pooled = encode(data, type, format, compressionThreshold());
+        while (!add(pooled.buffer(), pooled, format, null)) {
+            /*封包期间对端声明了格式，按新格式重新封包*/
+            pooled.release();
+            format = mSendFormat;
+            pooled = encode(data, type, format, compressionThreshold());
+        }
+        flushOrSchedule();
+    }
+
+    /**
+     * 带关联id封包入队，任意线程
+     *
+     * @param correlationId 关联id
+     * @param data          数据
+     */
+    void sendCorrelated(long correlationId, byte[] data) {
+        FrameFormat format = mSendFormat;
+        PooledByteBuffer pooled = encode(correlationId, data, format, compressionThreshold());
+        while (!add(pooled.buffer(), pooled, format, null)) {
+            pooled.release();
+            format = mSendFormat;
+            pooled = encode(correlationId, data, format, compressionThreshold());
+        }
+        flushOrSchedule();
+    }
+
+    /**
+     * 文件头和文件区域入队，任意线程，文件内容由循环线程通过{@link FileChannel#transferTo}写出
+     * 调用前检查对端已声明接收文件，见{@link #peerFeatures()}
+     *
+     * @param file     文件，写完或连接关闭后关闭
+     * @param name     文件名
+     * @param offset   起始位置
+     * @param length   长度
+     * @param callback 进度回调，可以为null
+     */
+    void sendFile(FileChannel file, String name, long offset, long length, FileTransfer.SendCallback callback) {
+        FileTransfer.Region region = new FileTransfer.Region(file, offset, length, callback);
+        byte[] header = FileTransfer.header(name, length);
+        FrameFormat format = mSendFormat;
+        PooledByteBuffer pooled = encodeControl(FrameFormat.CONTROL_FILE, header, format);
+        while (!add(pooled.buffer(), pooled, format, region)) {
+            pooled.release();
+            format = mSendFormat;
+            pooled = encodeControl(FrameFormat.CONTROL_FILE, header, format);
+        }
+        flushOrSchedule();
+    }
+
+    /**
+     * 已封包的数据入队，任意线程，不在调用线程上写，由循环线程在处理任务时统一写出
+     * 多个连接共享同一份数据时，每个连接传入各自的只读视图，并各持有一次owner的引用
+     *
+     * @param frame  完整数据包
+     * @param owner  写完后release，可以为null
+     * @param format 封包时使用的格式
+     * @return 格式已变化时不入队，返回false，owner的引用仍由调用方持有
+     */
+    boolean enqueue(ByteBuffer frame, PooledByteBuffer owner, FrameFormat format) {
+        if (!add(frame, owner, format, null)) {
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * 格式检查和入队在同一个锁内，保证格式声明之后的数据包都是新格式
+     */
+    private boolean add(ByteBuffer frame, PooledByteBuffer owner, FrameFormat format, FileTransfer.Region region) {
+        synchronized (mOutboundQueue) {
+            if (format != mSendFormat) {
+                return false;
+            }
+            addDeclaration();
+            mOutboundQueue.add(frame, owner);
+            if (region != null) {
+                /*文件内容紧跟文件头*/
+                mOutboundQueue.add(region);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 待发送的格式声明入队，在mOutboundQueue的锁内调用
+     */
+    private void addDeclaration() {
+        if (mDeclarationPending) {
+            mDeclarationPending = false;
+            mOutboundQueue.add(mSendFormat.declaration(mDeclaredFormat, mLocalFeatures), null);
+            mDeclaredFormat = mSendFormat;
+            mDeclaredFeatures = mLocalFeatures;
+        }
+    }
+
+    private void flushOrSchedule() {
+        if (eventLoop.inEventLoop()) {
+            flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * 封包到池化buffer，格式见{@link FrameFormat}
+     * 长度位直接写进buffer，不小于阈值的数据直接压缩进buffer，不经过中间数组
+     *
+     * @param data                 数据
+     * @param type                 类型，不带类型位的格式忽略
+     * @param format               格式
+     * @param compressionThreshold 压缩阈值，-1为不压缩
+     * @return 数据包，position到limit，引用计数为1
+     */
+    static PooledByteBuffer encode(byte[] data, int type, FrameFormat format, int compressionThreshold) {
+        return encode(ByteBuffer.wrap(data), type, format, compressionThreshold);
+    }
+
+    /**
+     * 带关联id封包，数据位[correlation-id:8][data]
+     *
+     * @param correlationId        关联id
+     * @param data                 数据
+     * @param format               格式
+     * @param compressionThreshold 压缩阈值，-1为不压缩，关联id和数据一起压缩
+     * @return 数据包，position到limit，引用计数为1
+     */
+    static PooledByteBuffer encode(long correlationId, byte[] data, FrameFormat format, int compressionThreshold) {
+        int length = SelectorClientGroup.CORRELATION_ID_LENGTH + data.length;
+        if (FrameCompression.shouldCompress(compressionThreshold, length)) {
+            ByteBuffer body = ByteBuffer.wrap(FrameCompression.buffer(length), 0, length);
+            body.putLong(correlationId).put(data).flip();
+            return encode(body, 0, format, compressionThreshold);
+        }
+        int headerLength = format.headerLength(length);
+        PooledByteBuffer pooled = ByteBufferPool.DEFAULT.allocate(headerLength + length);
+        ByteBuffer buffer = pooled.buffer();
+        format.putHeader(buffer, 0, length, false, 0);
+        buffer.position(headerLength);
+        buffer.putLong(correlationId).put(data).flip();
+        return pooled;
+    }
+
+    /**
+     * 控制帧封包，控制帧头之后紧跟不压缩的控制数据，见{@link FrameFormat}
+     *
+     * @param kind   控制类型
+     * @param body   控制数据
+     * @param format 格式
+     * @return 数据包，position到limit，引用计数为1
+     */
+    static PooledByteBuffer encodeControl(int kind, byte[] body, FrameFormat format) {
+        int controlLength = format.headerLength(kind);
+        int headerLength = format.headerLength(body.length);
+        PooledByteBuffer pooled = ByteBufferPool.DEFAULT.allocate(controlLength + headerLength + body.length);
+        ByteBuffer buffer = pooled.buffer();
+        format.putControlHeader(buffer, 0, kind);
+        format.putHeader(buffer, controlLength, body.length, false, 0);
+        buffer.position(controlLength + headerLength);
+        buffer.put(body).flip();
+        return pooled;
+    }
+
+    private static PooledByteBuffer encode(ByteBuffer body, int type, FrameFormat format, int compressionThreshold) {
+        int length = body.remaining();
+        if (FrameCompression.shouldCompress(compressionThreshold, length)) {
+            /*压缩后的长度未知，长度位预留最大长度，压缩后从对应位置开始写*/
+            PooledByteBuffer pooled = ByteBufferPool.DEFAULT.allocate(FrameFormat.MAX_HEADER_LENGTH + length);
+            ByteBuffer buffer = pooled.buffer();
+            buffer.position(FrameFormat.MAX_HEADER_LENGTH);
+            int compressedLength = FrameCompression.compress(body.duplicate(), buffer);
+            if (compressedLength > 0) {
+                int start = FrameFormat.MAX_HEADER_LENGTH - format.headerLength(compressedLength);
+                format.putHeader(buffer, start, compressedLength, true, type);
+                buffer.flip().position(start);
+                return pooled;
+            }
+            /*压缩后不更小，按原数据发送*/
+            pooled.release();
+        }
+        int headerLength = format.headerLength(length);
+        PooledByteBuffer pooled = ByteBufferPool.DEFAULT.allocate(headerLength + length);
+        ByteBuffer buffer = pooled.buffer();
+        format.putHeader(buffer, 0, length, false, type);
+        buffer.position(headerLength);
+        buffer.put(body).flip();
+        return pooled;
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(mFlushTask);
+        }
+    }
+
+    /**
+     * @return 待发送数据未超过高水位
+     */
+    boolean isWritable() {
+        return mOutboundQueue.isWritable();
+    }
+
+    /**
+     * 关闭连接，任意线程
+     */
+    void close() {
+        if (eventLoop.inEventLoop()) {
+            doClose();
+        } else {
+            eventLoop.execute(this::doClose);
+        }
+    }
+
+    private void doClose() {
+        if (channel.isConnected()) {
+            try {
+                channel.shutdownInput();
+            } catch (IOException e) {
+                /*ignore*/
+            }
+            try {
+                channel.shutdownOutput();
+            } catch (IOException e) {
+                /*ignore*/
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /*ignore*/
+        }
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        release();
+    }
+
+    private void release() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        cancelIdleTimeouts();
+        mOutboundQueue.clear();
+        if (mFileQueue != null) {
+            mFileQueue.abort(new ClosedChannelException());
+        }
+        callback.closed(this);
+    }
+
+    /**
+     * 写出待发送数据，写不完关注OP_WRITE，写完取消关注
+     */
+    private void flush() {
+        if (mClosed) {
+            /*关闭后入队的数据*/
+            mOutboundQueue.clear();
+            return;
+        }
+        if (!channel.isConnected()) {
+            return;
+        }
+        try {
+            long writtenBytes = mOutboundQueue.writtenBytes();
+            boolean complete = mOutboundQueue.write(channel);
+            if (mOutboundQueue.writtenBytes() != writtenBytes) {
+                mLastWriteTime = System.nanoTime();
+            }
+            if (mKey != null && mKey.isValid()) {
+                int ops = mKey.interestOps();
+                int newOps = complete ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE;
+                if (ops != newOps) {
+                    mKey.interestOps(newOps);
+                }
+            }
+        } catch (IOException e) {
+            doClose();
+            return;
+        }
+        boolean writable = mOutboundQueue.isWritable();
+        if (writable != mNotifiedWritable) {
+            mNotifiedWritable = writable;
+            callback.writabilityChanged(this, writable);
+        }
+    }
+
+    private void receive() throws IOException {
+        for (int i = 0; i < MAX_READS; i++) {
+            PooledByteBuffer pooled = ByteBufferPool.DEFAULT.allocate(mRecvBufferSizer.guess());
+            try {
+                ByteBuffer buffer = pooled.buffer();
+                int length = channel.read(buffer);
+                if (length < 0) {
+                    throw new IOException("end of stream");
+                }
+                if (length == 0) {
+                    return;
+                }
+                mLastReadTime = System.nanoTime();
+                mRecvBufferSizer.record(length);
+                boolean full = !buffer.hasRemaining();
+                buffer.flip();
+                mDecoder.decode(buffer, this);
+                if (!full || mReadPaused) {
+                    return;
+                }
+            } finally {
+                pooled.release();
+            }
+        }
+    }
+
+    /**
+     * 文件写入跟不上时取消关注OP_READ，数据留在socket接收缓冲区，由tcp流控让对端减速
+     */
+    private void pauseRead() {
+        mReadPaused = true;
+        if (mKey != null && mKey.isValid()) {
+            mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void resumeRead() {
+        if (mClosed || !mReadPaused) {
+            return;
+        }
+        mReadPaused = false;
+        if (mKey != null && mKey.isValid()) {
+            mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void cancelIdleTimeouts() {
+        if (mReaderIdleTimeout != null) {
+            mReaderIdleTimeout.cancel();
+            mReaderIdleTimeout = null;
+        }
+        if (mWriterIdleTimeout != null) {
+            mWriterIdleTimeout.cancel();
+            mWriterIdleTimeout = null;
+        }
+        if (mAllIdleTimeout != null) {
+            mAllIdleTimeout.cancel();
+            mAllIdleTimeout = null;
+        }
+    }
+
+    private void idle(IdleState state) {
+        if (config.heartbeat != null && state != IdleState.READER_IDLE) {
+            send(config.heartbeat);
+        }
+        callback.idle(this, state);
+        if (config.closeOnReaderIdle && state == IdleState.READER_IDLE) {
+            doClose();
+        }
+    }
+
+    /**
+     * 空闲检测，到期时检查最后一次读写时间，未超时则按剩余时间重新定时
+     * 每个连接每种状态只有一个定时，每个超时周期最多重新定时一次
+     */
+    private final class IdleTimeoutTask implements Runnable {
+
+        private final IdleState state;
+        private final long timeoutNanos;
+
+        IdleTimeoutTask(IdleState state, long timeoutNanos) {
+            this.state = state;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        public void run() {
+            if (mClosed) {
+                return;
+            }
+            long lastTime;
+            if (state == IdleState.READER_IDLE) {
+                lastTime = mLastReadTime;
+            } else if (state == IdleState.WRITER_IDLE) {
+                lastTime = mLastWriteTime;
+            } else {
+                lastTime = Math.max(mLastReadTime, mLastWriteTime);
+            }
+            long nextDelay = timeoutNanos - (System.nanoTime() - lastTime);
+            HashedWheelTimer.Timeout timeout;
+            if (nextDelay <= 0) {
+                timeout = eventLoop.schedule(this, timeoutNanos, TimeUnit.NANOSECONDS);
+            } else {
+                timeout = eventLoop.schedule(this, nextDelay, TimeUnit.NANOSECONDS);
+            }
+            if (state == IdleState.READER_IDLE) {
+                mReaderIdleTimeout = timeout;
+            } else if (state == IdleState.WRITER_IDLE) {
+                mWriterIdleTimeout = timeout;
+            } else {
+                mAllIdleTimeout = timeout;
+            }
+            if (nextDelay <= 0) {
+                idle(state);
+            }
+        }
+    }
+
+    /**
+     * 连接事件回调，在循环线程上回调
+     */
+    interface Callback {
+
+        default void connected(SelectorConnection connection) {
+        }
+
+        void receive(SelectorConnection connection, byte[] data);
+
+        /**
+         * @param type 类型，不带类型位的格式为0
+         */
+        default void receive(SelectorConnection connection, int type, byte[] data) {
+            receive(connection, data);
+        }
+
+        default void writabilityChanged(SelectorConnection connection, boolean writable) {
+        }
+
+        default void idle(SelectorConnection connection, IdleState state) {
+        }
+
+        default void closed(SelectorConnection connection) {
+        }
+
+        /**
+         * 对端开始发送文件时获取接收方
+         *
+         * @return null为丢弃文件内容
+         */
+        default FileTransfer.Receiver fileReceiver(SelectorConnection connection) {
+            return null;
+        }
+    }
+}
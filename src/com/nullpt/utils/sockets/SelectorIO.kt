@@ -2,10 +2,35 @@ package com.nullpt.utils.sockets
 
 interface SelectorIO {
 
-    fun accept(code: Int) {}
+    fun accept(code: Long) {}
 
-    fun connect(code: Int) {}
+    fun connect(code: Long) {}
 
-    fun receive(code: Int, byteArray: ByteArray)
+    fun receive(code: Long, byteArray: ByteArray)
+
+    /**
+     * 带类型的数据，[FrameFormat.VARINT_TAGGED]格式时为对端发送的类型，其他格式为0
+     */
+    fun receive(code: Long, type: Int, byteArray: ByteArray) {
+        receive(code, byteArray)
+    }
+
+    /**
+     * 待发送数据超过高水位变为不可写，回落到低水位以下恢复可写
+     */
+    fun writabilityChanged(code: Long, writable: Boolean) {}
+
+    /**
+     * 空闲超时，需要先设置空闲检测
+     */
+    fun idle(code: Long, state: IdleState) {}
+
+    /**
+     * 对端开始发送文件时获取接收方，在循环线程上回调，见[FileTransfer]
+     * 接收方的open、写入和其他回调都在写文件线程上，不阻塞循环线程
+     *
+     * @return null为丢弃文件内容
+     */
+    fun fileReceiver(code: Long): FileTransfer.Receiver? = null
 
 }
\ No newline at end of file
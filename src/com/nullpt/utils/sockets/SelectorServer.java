@@ -3,165 +3,373 @@ package com.nullpt.utils.sockets;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * nio server
+ * 一个acceptor循环接收连接，连接分配到worker循环组中的某个循环上读写
+ */
 public class SelectorServer {
 
-    private static Selector selector;
     private final int port;
-    private final ExecutorService executorService;
+    private final EventLoop mBossLoop;
+    private final EventLoopGroup mBossGroup;
+    private final EventLoopGroup mWorkerGroup;
+    private final boolean mOwnGroups;
 
-    private final Map<Integer, SocketChannel> mSocketChannels = new LinkedHashMap<>();
-    private SelectorIO mSelectorIO = null;
+    private ServerSocketChannel mServerSocketChannel;
+    private final ConnectionRegistry<SelectorConnection> mConnections = new ConnectionRegistry<>();
+    private volatile SelectorIO mSelectorIO = null;
+    private final ConnectionConfig mConfig = new ConnectionConfig();
 
-    static {
-        try {
-            selector = Selector.open();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private final EventLoop.Handler mAcceptHandler = key -> accept(key);
+    private final SelectorConnection.Callback mConnectionCallback = new SelectorConnection.Callback() {
+        @Override
+        public void receive(SelectorConnection connection, byte[] data) {
+            receive(connection, 0, data);
+        }
+
+        @Override
+        public void receive(SelectorConnection connection, int type, byte[] data) {
+            SelectorIO selectorIO = mSelectorIO;
+            if (selectorIO != null) {
+                selectorIO.receive(connection.id, type, data);
+            }
+        }
+
+        @Override
+        public void writabilityChanged(SelectorConnection connection, boolean writable) {
+            SelectorIO selectorIO = mSelectorIO;
+            if (selectorIO != null) {
+                selectorIO.writabilityChanged(connection.id, writable);
+            }
+        }
+
+        @Override
+        public void idle(SelectorConnection connection, IdleState state) {
+            SelectorIO selectorIO = mSelectorIO;
+            if (selectorIO != null) {
+                selectorIO.idle(connection.id, state);
+            }
         }
-    }
 
+        @Override
+        public void closed(SelectorConnection connection) {
+            mConnections.remove(connection.id);
+        }
+
+        @Override
+        public FileTransfer.Receiver fileReceiver(SelectorConnection connection) {
+            SelectorIO selectorIO = mSelectorIO;
+            return selectorIO != null ? selectorIO.fileReceiver(connection.id) : null;
+        }
+    };
+
+    /**
+     * 单循环模式，accept和读写在同一个循环上
+     *
+     * @param port            端口
+     * @param executorService 运行循环的线程池
+     */
     public SelectorServer(int port, ExecutorService executorService) {
+        this(port, new EventLoopGroup(1, executorService), null, true);
+    }
+
+    /**
+     * 多循环模式，worker循环数量等于cpu核数
+     *
+     * @param port 端口
+     */
+    public SelectorServer(int port) {
+        this(port, new EventLoopGroup(1), new EventLoopGroup(), true);
+    }
+
+    /**
+     * 多循环模式
+     *
+     * @param port        端口
+     * @param workerGroup 读写循环组，可以和{@link SelectorClient}共用
+     */
+    public SelectorServer(int port, EventLoopGroup workerGroup) {
+        this(port, new EventLoopGroup(1), workerGroup, false);
+    }
+
+    private SelectorServer(int port, EventLoopGroup bossGroup, EventLoopGroup workerGroup, boolean ownGroups) {
         this.port = port;
-        this.executorService = executorService;
+        this.mBossGroup = bossGroup;
+        this.mBossLoop = bossGroup.next();
+        this.mWorkerGroup = workerGroup != null ? workerGroup : bossGroup;
+        this.mOwnGroups = ownGroups;
     }
 
     public void setSelectorIO(SelectorIO mSelectorIO) {
         this.mSelectorIO = mSelectorIO;
     }
 
+    /**
+     * 待发送队列水位，对之后建立的连接生效
+     *
+     * @param lowWaterMark  低水位，待发送字节数回落到该值以下恢复可写
+     * @param highWaterMark 高水位，待发送字节数超过该值变为不可写
+     */
+    public void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        mConfig.setWriteBufferWaterMark(lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * 空闲检测，超时回调{@link SelectorIO#idle}，对之后建立的连接生效
+     *
+     * @param readerIdle 读空闲超时，0为不检测
+     * @param writerIdle 写空闲超时，0为不检测
+     * @param allIdle    读写空闲超时，0为不检测
+     * @param unit       时间单位
+     */
+    public void setIdleTimeout(long readerIdle, long writerIdle, long allIdle, TimeUnit unit) {
+        mConfig.setIdleTimeout(readerIdle, writerIdle, allIdle, unit);
+    }
+
+    /**
+     * 心跳，写空闲或读写空闲时自动发送，对之后建立的连接生效
+     *
+     * @param heartbeat         心跳数据，对端按普通数据包接收，null为不发送
+     * @param closeOnReaderIdle 读空闲时是否关闭连接
+     */
+    public void setHeartbeat(byte[] heartbeat, boolean closeOnReaderIdle) {
+        mConfig.setHeartbeat(heartbeat, closeOnReaderIdle);
+    }
+
+    /**
+     * 压缩，不小于阈值的数据压缩发送，对之后建立的连接和广播生效
+     * 连接建立后发送格式声明，客户端回复的声明中带{@link FrameFormat#FEATURE_COMPRESSION}之后才压缩，客户端需要支持格式声明
+     *
+     * @param threshold 压缩阈值，-1为不压缩
+     */
+    public void setCompressionThreshold(int threshold) {
+        mConfig.setCompressionThreshold(threshold);
+    }
+
+    /**
+     * 接收的最大数据包长度，超过时关闭连接，对之后建立的连接生效
+     *
+     * @param maxFrameSize 最大长度，默认{@link TCPPackageProtocol#DEFAULT_MAX_FRAME_SIZE}
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        mConfig.setMaxFrameSize(maxFrameSize);
+    }
+
+    /**
+     * 发送格式，对之后建立的连接生效，连接建立后先发送格式声明
+     * 默认不指定，跟随每个连接对端声明的格式，未声明的对端使用{@link FrameFormat#LENGTH_PREFIXED}
+     * 指定非默认格式时所有客户端都需要支持格式声明
+     *
+     * @param frameFormat 发送格式，null为跟随对端
+     */
+    public void setFrameFormat(FrameFormat frameFormat) {
+        mConfig.setFrameFormat(frameFormat);
+    }
+
+    /**
+     * 在格式声明中声明接收文件，对之后建立的连接生效，连接建立后先发送格式声明，所有客户端都需要支持格式声明
+     * 文件通过{@link SelectorIO#fileReceiver}接收，未声明时客户端不能发送文件
+     *
+     * @param acceptFiles 是否接收文件
+     */
+    public void setAcceptFiles(boolean acceptFiles) {
+        mConfig.setAcceptFiles(acceptFiles);
+    }
+
     public void accept() {
         try {
             ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
             serverSocketChannel.configureBlocking(false);
             ServerSocket serverSocket = serverSocketChannel.socket();
             serverSocket.bind(new InetSocketAddress(port));
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            mServerSocketChannel = serverSocketChannel;
+            mBossLoop.register(serverSocketChannel, SelectionKey.OP_ACCEPT, mAcceptHandler);
         } catch (Exception e) {
             /*ignore*/
         }
+    }
 
-        executorService.execute(() -> {
-            try {
-                select();
-            } catch (IOException e) {
-                /*ignore*/
-            }
-        });
-    }
-
-    private void select() throws IOException {
-        while (selector.select() > 0) {
-            Set<SelectionKey> keys = selector.selectedKeys();
-            Iterator<SelectionKey> it = keys.iterator();
-            while (it.hasNext()) {
-                SelectionKey key = it.next();
-                it.remove();
-                if (key.isAcceptable()) {
-                    accept(key);
-                } else if (key.isWritable()) {
-                    write(key);
-                } else if (key.isReadable()) {
-                    receive(key);
+    /**
+     * 封包发送，格式同{@link TCPPackageProtocol}
+     * 数据进入连接的待发送队列后立即返回，不可写时应暂停发送，等待{@link SelectorIO#writabilityChanged}
+     *
+     * @param code 连接
+     * @param data 数据
+     */
+    public void send(long code, byte[] data) {
+        send(code, 0, data);
+    }
+
+    /**
+     * 带类型封包发送，{@link FrameFormat#VARINT_TAGGED}格式时类型随数据包发送，其他格式忽略
+     *
+     * @param code 连接
+     * @param type 类型，0-255
+     * @param data 数据
+     */
+    public void send(long code, int type, byte[] data) {
+        SelectorConnection connection = mConnections.get(code);
+        if (connection != null) {
+            connection.send(type, data);
+        }
+    }
+
+    /**
+     * 发送文件，文件内容由循环线程通过{@link FileChannel#transferTo}写出，不经过堆内存
+     * 文件在调用线程上打开后立即返回，文件内容计入待发送字节数，对端通过{@link SelectorIO#fileReceiver}接收
+     * 对端需要已在格式声明中声明接收文件，见{@link #setAcceptFiles(boolean)}
+     *
+     * @param code     连接
+     * @param path     文件
+     * @param offset   起始位置
+     * @param length   长度
+     * @param callback 进度回调，在循环线程上回调，可以为null
+     * @throws IOException 对端未声明接收文件，或打开文件失败
+     */
+    public void sendFile(long code, Path path, long offset, long length, FileTransfer.SendCallback callback) throws IOException {
+        SelectorConnection connection = mConnections.get(code);
+        if (connection == null) {
+            return;
+        }
+        FileTransfer.checkAccepted(connection.peerFeatures());
+        FileChannel file = FileTransfer.open(path, offset, length);
+        connection.sendFile(file, String.valueOf(path.getFileName()), offset, length, callback);
+    }
+
+    /**
+     * 回复{@link SelectorClientGroup}的请求，回包带上请求的关联id
+     *
+     * @param code          连接
+     * @param correlationId 关联id，见{@link SelectorClientGroup#correlationId(byte[])}
+     * @param data          数据
+     */
+    public void reply(long code, long correlationId, byte[] data) {
+        SelectorConnection connection = mConnections.get(code);
+        if (connection != null) {
+            connection.sendCorrelated(correlationId, data);
+        }
+    }
+
+    /**
+     * 广播，每种发送格式只封包一次，对端是否声明能解压分开封包，同格式的连接的待发送队列共享同一个只读buffer
+     * 不在调用线程上写，不存在的连接忽略
+     *
+     * @param codes 连接
+     * @param data  数据
+     */
+    public void broadcast(long[] codes, byte[] data) {
+        PooledByteBuffer[] encoded = new PooledByteBuffer[FrameFormat.values().length * 2];
+        int compressionThreshold = mConfig.compressionThreshold();
+        try {
+            for (long code : codes) {
+                SelectorConnection connection = mConnections.get(code);
+                if (connection != null) {
+                    share(connection, encoded, data, compressionThreshold);
                 }
             }
+        } finally {
+            release(encoded);
         }
     }
 
-    public void send(int code, byte[] data) {
-        SocketChannel socketChannel = mSocketChannels.get(code);
-        if (socketChannel != null) {
-            try {
-                socketChannel.write(ByteBuffer.wrap(data));
-            } catch (IOException e) {
-                /*ignore*/
+    /**
+     * 广播到所有连接
+     *
+     * @param data 数据
+     * @see #broadcast(long[], byte[])
+     */
+    public void broadcast(byte[] data) {
+        PooledByteBuffer[] encoded = new PooledByteBuffer[FrameFormat.values().length * 2];
+        int compressionThreshold = mConfig.compressionThreshold();
+        try {
+            mConnections.forEach(connection -> share(connection, encoded, data, compressionThreshold));
+        } finally {
+            release(encoded);
+        }
+    }
+
+    /**
+     * @param encoded 按格式和对端是否能解压缓存的数据包，没有时封包
+     */
+    private static void share(SelectorConnection connection, PooledByteBuffer[] encoded, byte[] data, int compressionThreshold) {
+        while (true) {
+            FrameFormat format = connection.sendFormat();
+            int threshold = FrameCompression.negotiate(compressionThreshold, connection.peerFeatures());
+            int index = threshold == FrameCompression.DISABLED ? format.ordinal() : FrameFormat.values().length + format.ordinal();
+            PooledByteBuffer pooled = encoded[index];
+            if (pooled == null) {
+                pooled = SelectorConnection.encode(data, 0, format, threshold);
+                encoded[index] = pooled;
+            }
+            pooled.retain();
+            if (connection.enqueue(pooled.buffer().asReadOnlyBuffer(), pooled, format)) {
+                return;
             }
+            /*期间对端声明了格式*/
+            pooled.release();
         }
     }
 
-    public void close(int code) {
-        Set<SelectionKey> keys = selector.selectedKeys();
-        for (SelectionKey key : keys) {
-            SocketChannel channel = (SocketChannel) key.channel();
-            if (channel.hashCode() == code) {
-                try {
-                    channel.shutdownInput();
-                } catch (IOException e) {
-                    /*ignore*/
-                }
-                try {
-                    channel.shutdownOutput();
-                } catch (IOException e) {
-                    /*ignore*/
-                }
-                try {
-                    channel.close();
-                } catch (IOException e) {
-                    /*ignore*/
-                }
+    private static void release(PooledByteBuffer[] encoded) {
+        for (PooledByteBuffer pooled : encoded) {
+            if (pooled != null) {
+                pooled.release();
             }
         }
     }
 
+    /**
+     * @param code 连接
+     * @return 待发送数据未超过高水位，连接不存在返回false
+     */
+    public boolean isWritable(long code) {
+        SelectorConnection connection = mConnections.get(code);
+        return connection != null && connection.isWritable();
+    }
+
+    public void close(long code) {
+        SelectorConnection connection = mConnections.remove(code);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
     public void stop() {
-        Set<SelectionKey> keys = selector.selectedKeys();
-        for (SelectionKey key : keys) {
-            SocketChannel channel = (SocketChannel) key.channel();
+        if (mServerSocketChannel != null) {
             try {
-                channel.shutdownInput();
-            } catch (IOException e) {
-                /*ignore*/
-            }
-            try {
-                channel.shutdownOutput();
-            } catch (IOException e) {
-                /*ignore*/
-            }
-            try {
-                channel.close();
+                mServerSocketChannel.close();
             } catch (IOException e) {
                 /*ignore*/
             }
         }
-        try {
-            selector.close();
-        } catch (IOException e) {
-            /*ignore*/
+        mConnections.clear(SelectorConnection::close);
+        mBossGroup.shutdown();
+        if (mOwnGroups && mWorkerGroup != mBossGroup) {
+            mWorkerGroup.shutdown();
         }
     }
 
     private void accept(SelectionKey key) throws IOException {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-        SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.configureBlocking(false);
-        socketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-        mSocketChannels.put(socketChannel.hashCode(), socketChannel);
-        if (mSelectorIO != null) {
-            mSelectorIO.accept(socketChannel.hashCode());
-        }
-    }
-
-    private void write(SelectionKey key) {
-        key.interestOps(SelectionKey.OP_READ);
-    }
-
-    private void receive(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        channel.read(buffer);
-        buffer.flip();
-        if (mSelectorIO != null) {
-            mSelectorIO.receive(channel.hashCode(), buffer.array());
+        SocketChannel socketChannel;
+        while ((socketChannel = serverSocketChannel.accept()) != null) {
+            socketChannel.configureBlocking(false);
+            EventLoop eventLoop = mWorkerGroup.next();
+            SelectorConnection connection = new SelectorConnection(socketChannel, eventLoop, mConnectionCallback, mConfig.copy());
+            mConnections.put(connection.id, connection);
+            eventLoop.register(socketChannel, SelectionKey.OP_READ, connection);
+            SelectorIO selectorIO = mSelectorIO;
+            if (selectorIO != null) {
+                selectorIO.accept(connection.id);
+            }
         }
     }
 
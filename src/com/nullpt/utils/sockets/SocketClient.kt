@@ -1,11 +1,14 @@
 package com.nullpt.utils.sockets
 
 import java.net.Socket
+import java.nio.file.Path
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 
 /**
  * 长连接
+ *
+ * @param executorService 运行接收任务的线程池
  */
 class SocketClient(
     private val ip: String,
@@ -13,20 +16,160 @@ class SocketClient(
     private val executorService: ExecutorService = Executors.newCachedThreadPool()
 ) {
 
+    companion object {
+        /**
+         * 接收运行在虚拟线程上，不支持虚拟线程时退回到缓存线程池
+         */
+        @JvmStatic
+        fun ofVirtualThreads(ip: String, port: Int): SocketClient {
+            return SocketClient(ip, port, ThreadExecutors.newVirtualThreadPerTaskExecutor())
+        }
+    }
+
     private var mSocket: Socket? = null
     private val mTCPPackageProtocol = TCPPackageProtocol()
+    private var mFrameWriter: TCPFrameWriter? = null
+    private var mBatchMaxBytes = 0
+    private var mBatchMaxMessages = 0
+    private var mBatchMaxLingerMicros = 0L
+    private var mCompressionThreshold = -1
+    private var mTcpNoDelay = false
+
+    /**
+     * 批量发送，需要在[connect]之前设置，参数见[TCPFrameWriter]
+     */
+    fun setBatching(maxBytes: Int, maxMessages: Int, maxLingerMicros: Long) {
+        mBatchMaxBytes = maxBytes
+        mBatchMaxMessages = maxMessages
+        mBatchMaxLingerMicros = maxLingerMicros
+    }
+
+    /**
+     * 压缩，不小于阈值的数据压缩发送，需要在[connect]之前设置
+     * 连接后发送格式声明，服务端回复的声明中带[FrameFormat.FEATURE_COMPRESSION]之后才压缩，回复在接收线程上收到
+     *
+     * @param threshold 压缩阈值，-1为不压缩
+     */
+    fun setCompressionThreshold(threshold: Int) {
+        mTCPPackageProtocol.setCompressionThreshold(threshold)
+        mCompressionThreshold = threshold
+    }
+
+    /**
+     * 接收的最大数据包长度，超过时停止接收
+     *
+     * @param maxFrameSize 最大长度，默认[TCPPackageProtocol.DEFAULT_MAX_FRAME_SIZE]
+     */
+    fun setMaxFrameSize(maxFrameSize: Int) {
+        mTCPPackageProtocol.setMaxFrameSize(maxFrameSize)
+    }
+
+    /**
+     * 发送格式，不设置时跟随服务端声明的格式，见[TCPPackageProtocol.setFrameFormat]
+     */
+    fun setFrameFormat(frameFormat: FrameFormat) {
+        mTCPPackageProtocol.setFrameFormat(frameFormat)
+    }
+
+    /**
+     * 关闭Nagle算法，需要在[connect]之前设置
+     * 不批量发送时长度位和数据分两次写，数据会等待对端的延迟ack，请求响应场景可以打开
+     */
+    fun setTcpNoDelay(tcpNoDelay: Boolean) {
+        mTcpNoDelay = tcpNoDelay
+    }
 
     fun connect() {
         if (mSocket != null) {
             return
         }
-        mSocket = Socket(ip, port)
+        val socket = Socket(ip, port)
+        socket.tcpNoDelay = mTcpNoDelay
+        if (mBatchMaxBytes > 0) {
+            val frameWriter = TCPFrameWriter(socket.getOutputStream(), mBatchMaxBytes, mBatchMaxMessages, mBatchMaxLingerMicros)
+            frameWriter.setCompressionThreshold(mCompressionThreshold)
+            frameWriter.setProtocol(mTCPPackageProtocol)
+            mFrameWriter = frameWriter
+        }
+        mSocket = socket
+        /*服务端的声明需要回复时立即回复，不等下一个数据包*/
+        mTCPPackageProtocol.setDeclarationCallback { sendDeclaration() }
+        sendDeclaration()
     }
 
     fun send(data: ByteArray) {
+        send(0, data)
+    }
+
+    /**
+     * 带类型发送，[FrameFormat.VARINT_TAGGED]格式之外忽略类型
+     */
+    fun send(type: Int, data: ByteArray) {
+        try {
+            val socket = mSocket ?: return
+            val frameWriter = mFrameWriter
+            if (frameWriter != null) {
+                frameWriter.write(type, data)
+            } else {
+                mTCPPackageProtocol.send(socket.getOutputStream(), type, data)
+            }
+        } catch (e: Exception) {
+            /* no-op */
+        }
+    }
+
+    /**
+     * 发送文件，阻塞直到写完，失败时回调[FileTransfer.SendCallback.failed]，见[FileTransfer]
+     * 服务端需要已声明接收文件，见[TCPPackageProtocol.isFileTransferAccepted]，声明在接收线程上收到
+     *
+     * @param callback 进度回调，在调用线程上回调
+     */
+    fun sendFile(path: Path, offset: Long, length: Long, callback: FileTransfer.SendCallback? = null) {
+        try {
+            val socket = mSocket ?: return
+            val frameWriter = mFrameWriter
+            if (frameWriter != null) {
+                frameWriter.writeFile(path, offset, length, callback)
+            } else {
+                mTCPPackageProtocol.sendFile(socket.getOutputStream(), path, offset, length, callback)
+            }
+        } catch (e: Exception) {
+            /* no-op */
+        }
+    }
+
+    /**
+     * 文件接收方，服务端发送文件时在接收线程上回调
+     * 设置后向服务端声明接收文件，已连接时立即发送声明，服务端需要支持格式声明
+     */
+    fun setFileReceiver(receiver: FileTransfer.Receiver?) {
+        mTCPPackageProtocol.setFileReceiver(receiver)
+        sendDeclaration()
+    }
+
+    /**
+     * 立即发送待发送的格式声明
+     */
+    private fun sendDeclaration() {
         try {
             val socket = mSocket ?: return
-            mTCPPackageProtocol.send(socket.getOutputStream(), data)
+            val frameWriter = mFrameWriter
+            if (frameWriter != null) {
+                frameWriter.flush()
+            } else {
+                mTCPPackageProtocol.sendDeclaration(socket.getOutputStream())
+            }
+        } catch (e: Exception) {
+            /* no-op */
+        }
+    }
+
+    /**
+     * 立即写出批量发送缓冲的数据
+     */
+    fun flush() {
+        try {
+            mFrameWriter?.flush()
         } catch (e: Exception) {
             /* no-op */
         }
@@ -45,8 +188,45 @@ class SocketClient(
         }
     }
 
+    /**
+     * 不拷贝的接收，回调的数组是接收缓冲区的视图，回调返回后会被下一个包覆盖，需要保留时自行拷贝
+     *
+     * @param receiver 数据和数据长度，数组长度可能大于数据长度
+     */
+    fun receiveView(receiver: (ByteArray, Int) -> Unit) {
+        executorService.execute {
+            try {
+                val socket = mSocket ?: return@execute
+                mTCPPackageProtocol.receive(socket.getInputStream(), receiver)
+            } catch (e: Exception) {
+                Thread.currentThread().interrupt()
+            }
+        }
+    }
+
+    /**
+     * 大数据包分段接收，不小于[TCPPackageProtocol.setStreamingThreshold]的数据包回调[streamCallback]，不受最大长度限制
+     * 单个数据包最长[Int.MAX_VALUE]字节，更长的数据用文件传输，见[setFileReceiver]
+     *
+     * @param streamCallback 大数据包分段回调
+     * @param receiver       其余数据包
+     */
+    fun receiveStream(streamCallback: TCPPackageProtocol.ReceiveStreamCallback, receiver: (ByteArray) -> Unit) {
+        executorService.execute {
+            try {
+                val socket = mSocket ?: return@execute
+                mTCPPackageProtocol.receive(socket.getInputStream(), { data, length ->
+                    receiver.invoke(data.copyOfRange(0, length))
+                }, streamCallback)
+            } catch (e: Exception) {
+                Thread.currentThread().interrupt()
+            }
+        }
+    }
+
     fun close() {
         val socket = mSocket ?: return
+        flush()
         try {
             socket.shutdownInput()
         } catch (e: Exception) {
@@ -2,24 +2,112 @@ package com.nullpt.utils.sockets
 
 import java.net.ServerSocket
 import java.net.Socket
+import java.nio.file.Path
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 /**
- * 长连接服务
+ * 长连接服务，每个连接一个接收任务
+ *
+ * @param executorService 运行accept的线程池
+ * @param receiverExecutorService 运行接收任务的线程池，连接多时使用[ThreadExecutors.newVirtualThreadPerTaskExecutor]
  */
 class SocketServer(
     private val port: Int,
-    private val executorService: ExecutorService = Executors.newCachedThreadPool()
+    private val executorService: ExecutorService = Executors.newCachedThreadPool(),
+    private val receiverExecutorService: ExecutorService = Executors.newCachedThreadPool()
 ) {
 
-    private val mExecutorService = Executors.newCachedThreadPool()
+    companion object {
+        /**
+         * accept和接收都运行在虚拟线程上，不支持虚拟线程时退回到缓存线程池
+         */
+        @JvmStatic
+        fun ofVirtualThreads(port: Int): SocketServer {
+            val executorService = ThreadExecutors.newVirtualThreadPerTaskExecutor()
+            return SocketServer(port, executorService, executorService)
+        }
+    }
+
     private var mServerSocket: ServerSocket? = null
-    private val mSocketMap = mutableMapOf<Int, Socket>()
-    private val mReceiverMap = mutableMapOf<Int, ReceiverRunnable>()
-    private val mTCPPackageProtocol = TCPPackageProtocol()
+    private val mReceiverMap = ConnectionRegistry<ReceiverRunnable>()
+
+    @Volatile
+    private var mBatchMaxBytes = 0
+    @Volatile
+    private var mBatchMaxMessages = 0
+    @Volatile
+    private var mBatchMaxLingerMicros = 0L
+    @Volatile
+    private var mCompressionThreshold = -1
+    @Volatile
+    private var mMaxFrameSize = TCPPackageProtocol.DEFAULT_MAX_FRAME_SIZE
+    @Volatile
+    private var mFrameFormat: FrameFormat? = null
+    @Volatile
+    private var mTcpNoDelay = false
+    @Volatile
+    private var mReaderIdleMillis = 0
+
+    /**
+     * 批量发送，对之后建立的连接生效，参数见[TCPFrameWriter]
+     */
+    fun setBatching(maxBytes: Int, maxMessages: Int, maxLingerMicros: Long) {
+        mBatchMaxMessages = maxMessages
+        mBatchMaxLingerMicros = maxLingerMicros
+        mBatchMaxBytes = maxBytes
+    }
+
+    /**
+     * 压缩，不小于阈值的数据压缩发送，对之后建立的连接生效
+     * 连接建立后发送格式声明，客户端回复的声明中带[FrameFormat.FEATURE_COMPRESSION]之后才压缩，回复在接收线程上收到
+     *
+     * @param threshold 压缩阈值，-1为不压缩
+     */
+    fun setCompressionThreshold(threshold: Int) {
+        require(threshold >= -1) { "threshold: $threshold" }
+        mCompressionThreshold = threshold
+    }
+
+    /**
+     * 发送格式，对之后建立的连接生效，不设置时跟随客户端声明的格式，见[TCPPackageProtocol.setFrameFormat]
+     */
+    fun setFrameFormat(frameFormat: FrameFormat) {
+        mFrameFormat = frameFormat
+    }
+
+    /**
+     * 接收的最大数据包长度，超过时关闭连接，对之后建立的连接生效
+     *
+     * @param maxFrameSize 最大长度，默认[TCPPackageProtocol.DEFAULT_MAX_FRAME_SIZE]
+     */
+    fun setMaxFrameSize(maxFrameSize: Int) {
+        require(maxFrameSize > 0) { "maxFrameSize: $maxFrameSize" }
+        mMaxFrameSize = maxFrameSize
+    }
+
+    /**
+     * 关闭Nagle算法，对之后建立的连接生效
+     * 不批量发送时长度位和数据分两次写，数据会等待对端的延迟ack，请求响应场景可以打开
+     */
+    fun setTcpNoDelay(tcpNoDelay: Boolean) {
+        mTcpNoDelay = tcpNoDelay
+    }
+
+    /**
+     * 读空闲检测，超时没有收到数据时移除并关闭连接，对之后建立的连接生效
+     * 阻塞读发现不了半开连接，对端断网或宕机后连接会一直留在服务端，需要客户端定时发送心跳
+     *
+     * @param timeout 读空闲超时，0为不检测
+     */
+    fun setReaderIdleTimeout(timeout: Long, unit: TimeUnit) {
+        require(timeout >= 0) { "timeout: $timeout" }
+        val millis = unit.toMillis(timeout)
+        mReaderIdleMillis = if (timeout > 0) millis.coerceIn(1, Int.MAX_VALUE.toLong()).toInt() else 0
+    }
 
-    fun accept(accept: (Int) -> Unit) {
+    fun accept(accept: (Long) -> Unit) {
         if (mServerSocket != null) {
             return
         }
@@ -27,16 +115,30 @@ class SocketServer(
         startAccept(accept)
     }
 
-    private fun startAccept(accept: (Int) -> Unit) {
+    private fun startAccept(accept: (Long) -> Unit) {
         executorService.execute {
             while (!Thread.interrupted()) {
                 try {
                     val socket = mServerSocket?.accept() ?: continue
-                    val receiver = ReceiverRunnable(socket)
-                    mSocketMap[socket.hashCode()] = socket
-                    mReceiverMap[socket.hashCode()] = receiver
-                    mExecutorService.execute(receiver)
-                    accept.invoke(socket.hashCode())
+                    socket.tcpNoDelay = mTcpNoDelay
+                    /*读超时抛出SocketTimeoutException，接收任务移除并关闭连接*/
+                    socket.soTimeout = mReaderIdleMillis
+                    val maxBytes = mBatchMaxBytes
+                    val frameWriter = if (maxBytes > 0) {
+                        TCPFrameWriter(socket.getOutputStream(), maxBytes, mBatchMaxMessages, mBatchMaxLingerMicros).apply {
+                            setCompressionThreshold(mCompressionThreshold)
+                        }
+                    } else {
+                        null
+                    }
+                    val receiver = ReceiverRunnable(ConnectionRegistry.nextId(), socket, frameWriter)
+                    frameWriter?.setProtocol(receiver.protocol)
+                    /*客户端的声明需要回复时立即回复，不等下一个数据包*/
+                    receiver.protocol.setDeclarationCallback { sendDeclaration(receiver) }
+                    mReceiverMap.put(receiver.id, receiver)
+                    sendDeclaration(receiver)
+                    receiverExecutorService.execute(receiver)
+                    accept.invoke(receiver.id)
                 } catch (e: Exception) {
                     Thread.currentThread().interrupt()
                 }
@@ -44,23 +146,110 @@ class SocketServer(
         }
     }
 
-    fun send(code: Int, data: ByteArray) {
+    fun send(code: Long, data: ByteArray) {
+        send(code, 0, data)
+    }
+
+    /**
+     * 带类型发送，[FrameFormat.VARINT_TAGGED]格式之外忽略类型
+     */
+    fun send(code: Long, type: Int, data: ByteArray) {
+        try {
+            val receiver = mReceiverMap.get(code) ?: return
+            val protocol = receiver.protocol
+            val frameWriter = receiver.frameWriter
+            if (frameWriter != null) {
+                frameWriter.write(type, data)
+            } else {
+                protocol.send(receiver.socket.getOutputStream(), type, data)
+            }
+        } catch (e: Exception) {
+            /* no-op */
+        }
+    }
+
+    /**
+     * 发送文件，阻塞直到写完，失败时回调[FileTransfer.SendCallback.failed]，见[FileTransfer]
+     * 客户端需要已声明接收文件，见[TCPPackageProtocol.isFileTransferAccepted]，声明在接收线程上收到
+     *
+     * @param callback 进度回调，在调用线程上回调
+     */
+    fun sendFile(code: Long, path: Path, offset: Long, length: Long, callback: FileTransfer.SendCallback? = null) {
+        try {
+            val receiver = mReceiverMap.get(code) ?: return
+            val protocol = receiver.protocol
+            val frameWriter = receiver.frameWriter
+            if (frameWriter != null) {
+                frameWriter.writeFile(path, offset, length, callback)
+            } else {
+                protocol.sendFile(receiver.socket.getOutputStream(), path, offset, length, callback)
+            }
+        } catch (e: Exception) {
+            /* no-op */
+        }
+    }
+
+    /**
+     * 文件接收方，客户端发送文件时在接收线程上回调
+     * 设置后立即向客户端声明接收文件，客户端需要支持格式声明
+     */
+    fun receiveFile(code: Long, receiver: FileTransfer.Receiver?) {
+        val receiverRunnable = mReceiverMap.get(code) ?: return
+        receiverRunnable.protocol.setFileReceiver(receiver)
+        sendDeclaration(receiverRunnable)
+    }
+
+    /**
+     * 立即发送待发送的格式声明
+     */
+    private fun sendDeclaration(receiver: ReceiverRunnable) {
+        try {
+            val frameWriter = receiver.frameWriter
+            if (frameWriter != null) {
+                frameWriter.flush()
+            } else {
+                receiver.protocol.sendDeclaration(receiver.socket.getOutputStream())
+            }
+        } catch (e: Exception) {
+            /* no-op */
+        }
+    }
+
+    /**
+     * 立即写出批量发送缓冲的数据
+     */
+    fun flush(code: Long) {
         try {
-            val socket = mSocketMap[code] ?: return
-            mTCPPackageProtocol.send(socket.getOutputStream(), data)
+            mReceiverMap.get(code)?.frameWriter?.flush()
         } catch (e: Exception) {
             /* no-op */
         }
     }
 
-    fun receive(code: Int, receiver: (ByteArray) -> Unit) {
-        mReceiverMap[code]?.setReceiver(receiver)
+    fun receive(code: Long, receiver: (ByteArray) -> Unit) {
+        mReceiverMap.get(code)?.setReceiver(receiver)
+    }
+
+    /**
+     * 不拷贝的接收，回调的数组是接收缓冲区的视图，回调返回后会被下一个包覆盖，需要保留时自行拷贝
+     *
+     * @param receiver 数据和数据长度，数组长度可能大于数据长度
+     */
+    fun receiveView(code: Long, receiver: (ByteArray, Int) -> Unit) {
+        mReceiverMap.get(code)?.setViewReceiver(receiver)
     }
 
-    fun close(code: Int) {
-        val socket = mSocketMap[code] ?: return
-        mSocketMap.remove(socket.hashCode())
-        mReceiverMap.remove(socket.hashCode())
+    fun close(code: Long) {
+        val receiver = mReceiverMap.remove(code) ?: return
+        try {
+            receiver.frameWriter?.flush()
+        } catch (e: Exception) {
+            /* no-op */
+        }
+        close(receiver.socket)
+    }
+
+    private fun close(socket: Socket) {
         try {
             socket.shutdownInput()
         } catch (e: Exception) {
@@ -79,42 +268,51 @@ class SocketServer(
     }
 
     fun stop() {
-        mSocketMap.forEach {
-            try {
-                it.value.shutdownInput()
-            } catch (e: Exception) {
-                /* no-op */
-            }
-            try {
-                it.value.shutdownOutput()
-            } catch (e: Exception) {
-                /* no-op */
-            }
-            try {
-                it.value.close()
-            } catch (e: Exception) {
-                /* no-op */
-            }
+        mReceiverMap.clear {
+            close(it.socket)
         }
-        mSocketMap.clear()
         mServerSocket?.close()
     }
 
-    private class ReceiverRunnable(private val socket: Socket) : Runnable {
+    private inner class ReceiverRunnable(val id: Long, val socket: Socket, val frameWriter: TCPFrameWriter?) : Runnable {
+        @Volatile
         private var mReceiver: ((ByteArray) -> Unit)? = null
-        private val mTCPPackageProtocol = TCPPackageProtocol()
+        @Volatile
+        private var mViewReceiver: ((ByteArray, Int) -> Unit)? = null
+        /**
+         * 每个连接的收发状态，发送在实例锁内
+         */
+        val protocol = TCPPackageProtocol().apply {
+            setMaxFrameSize(mMaxFrameSize)
+            setCompressionThreshold(mCompressionThreshold)
+            mFrameFormat?.let { setFrameFormat(it) }
+        }
 
         fun setReceiver(receiver: (ByteArray) -> Unit) {
+            mViewReceiver = null
             mReceiver = receiver
         }
 
+        fun setViewReceiver(receiver: (ByteArray, Int) -> Unit) {
+            mReceiver = null
+            mViewReceiver = receiver
+        }
+
         override fun run() {
             try {
-                mTCPPackageProtocol.receive(socket.getInputStream()) { data, length ->
-                    mReceiver?.invoke(data.copyOfRange(0, length))
+                protocol.receive(socket.getInputStream()) { data, length ->
+                    val viewReceiver = mViewReceiver
+                    if (viewReceiver != null) {
+                        viewReceiver.invoke(data, length)
+                    } else {
+                        mReceiver?.invoke(data.copyOfRange(0, length))
+                    }
                 }
             } catch (e: Exception) {
-                Thread.currentThread().interrupt()
+                /*对端关闭或读空闲超时，移除连接*/
+                if (mReceiverMap.remove(id) != null) {
+                    close(socket)
+                }
             }
         }
     }
@@ -0,0 +1,311 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * nio增量解包，格式同{@link TCPPackageProtocol}，见{@link FrameFormat}
+ * 收到格式声明控制帧时切换格式，通过{@link FrameCallback#frameFormat(FrameFormat, int)}通知
+ * 文件头控制帧之后的文件内容不分包，从读到的数据中切片回调{@link FrameCallback#fileChunk(ByteBuffer)}，见{@link FileTransfer}
+ * 每个连接一个，非线程安全，半包数据直接写进最终的数据数组
+ */
+public class TCPFrameDecoder {
+
+    /**
+     * 数据长度位
+     */
+    private static final int CONTENT_LENGTH = 4;
+
+    private final int maxFrameSize;
+
+    /**
+     * 当前接收格式
+     */
+    private FrameFormat mFormat = FrameFormat.LENGTH_PREFIXED;
+    /**
+     * 已读到控制帧头时为控制类型，下一个包是控制数据，否则为0
+     */
+    private int mControl = 0;
+
+    /**
+     * 已读取的长度位字节数，不含类型位
+     */
+    private int mHeaderLength = 0;
+    /**
+     * 长度位是否读完，包括类型位
+     */
+    private boolean mHeaderComplete = false;
+    /**
+     * varint是否读完
+     */
+    private boolean mVarintComplete = false;
+    /**
+     * 长度位的值，varint最多35位
+     */
+    private long mHeader = 0;
+    /**
+     * 当前包数据长度
+     */
+    private int mLength = 0;
+    /**
+     * 当前包类型
+     */
+    private int mType = 0;
+    /**
+     * 当前包数据，长度位读完后才分配
+     */
+    private byte[] mData = null;
+    /**
+     * 当前包已读取的数据长度
+     */
+    private int mDataLength = 0;
+    /**
+     * 当前包是否压缩
+     */
+    private boolean mCompressed = false;
+    /**
+     * 当前文件剩余的内容长度
+     */
+    private long mFileRemaining = 0;
+
+    public TCPFrameDecoder() {
+        this(TCPPackageProtocol.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize 最大数据包长度，压缩的数据包同时限制压缩后和解压后的长度
+     */
+    public TCPFrameDecoder(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @return 当前接收格式
+     */
+    public FrameFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * 解包，{@code in}中的数据会被全部消费，不完整的部分暂存到下一次
+     *
+     * @param in       读到的数据
+     * @param callback 每个完整数据包回调一次
+     * @throws IOException 长度位不合法或压缩数据损坏
+     * @throws FrameTooLargeException 数据包超过最大长度，之后不能再继续解包
+     */
+    public void decode(ByteBuffer in, FrameCallback callback) throws IOException {
+        while (in.hasRemaining()) {
+            if (mFileRemaining > 0) {
+                readFile(in, callback);
+                continue;
+            }
+            if (!mHeaderComplete) {
+                if (!readHeader(in)) {
+                    continue;
+                }
+                if (FrameFormat.isControl(mCompressed, mLength)) {
+                    if (mControl != 0) {
+                        throw new IOException("Nested control frame");
+                    }
+                    mControl = FrameFormat.checkControl(mLength);
+                    reset();
+                    continue;
+                }
+                if (mControl != 0 && mCompressed) {
+                    throw new IOException("Compressed control frame");
+                }
+                if (mLength > maxFrameSize) {
+                    throw new FrameTooLargeException(mLength, maxFrameSize);
+                }
+                mData = new byte[mLength];
+                mDataLength = 0;
+            }
+
+            int readLength = Math.min(in.remaining(), mLength - mDataLength);
+            in.get(mData, mDataLength, readLength);
+            mDataLength += readLength;
+
+            if (mDataLength == mLength) {
+                int type = mType;
+                int control = mControl;
+                byte[] data = mCompressed ? inflate(mData) : mData;
+                mControl = 0;
+                reset();
+                if (control != 0) {
+                    control(control, ByteBuffer.wrap(data), callback);
+                    continue;
+                }
+                callback.frame(type, data);
+            }
+        }
+    }
+
+    /**
+     * 处理控制数据
+     */
+    private void control(int kind, ByteBuffer body, FrameCallback callback) throws IOException {
+        if (kind == FrameFormat.CONTROL_DECLARATION) {
+            FrameFormat format = FrameFormat.parseDeclaration(body);
+            mFormat = format;
+            callback.frameFormat(format, FrameFormat.parseFeatures(body));
+            return;
+        }
+        long fileLength = FileTransfer.parseLength(body);
+        mFileRemaining = fileLength;
+        callback.fileStart(FileTransfer.parseName(body), fileLength);
+        if (fileLength == 0) {
+            callback.fileEnd();
+        }
+    }
+
+    /**
+     * 读长度位
+     *
+     * @return 是否读完
+     */
+    private boolean readHeader(ByteBuffer in) throws IOException {
+        if (mFormat == FrameFormat.LENGTH_PREFIXED) {
+            if (mHeaderLength == 0 && in.remaining() >= CONTENT_LENGTH) {
+                mHeader = in.getInt();
+                mHeaderLength = CONTENT_LENGTH;
+            } else {
+                mHeader = (mHeader << 8) | (in.get() & 0xff);
+                mHeaderLength++;
+            }
+            if (mHeaderLength < CONTENT_LENGTH) {
+                return false;
+            }
+            int header = (int) mHeader;
+            mCompressed = (header & FrameCompression.COMPRESSED_FLAG) != 0;
+            mLength = header & ~FrameCompression.COMPRESSED_FLAG;
+            mHeaderComplete = true;
+            return true;
+        }
+
+        if (!mVarintComplete) {
+            while (true) {
+                if (!in.hasRemaining()) {
+                    return false;
+                }
+                int b = in.get() & 0xff;
+                mHeader |= (long) (b & 0x7f) << (7 * mHeaderLength);
+                mHeaderLength++;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                if (mHeaderLength == FrameFormat.MAX_VARINT_LENGTH) {
+                    throw new IOException("Illegal varint content length");
+                }
+            }
+            if (mHeader > 0xffffffffL) {
+                throw new IOException("Illegal varint content length: " + mHeader);
+            }
+            mVarintComplete = true;
+        }
+        if (mFormat.isTagged()) {
+            if (!in.hasRemaining()) {
+                return false;
+            }
+            mType = in.get() & 0xff;
+        }
+        mCompressed = (mHeader & 1) != 0;
+        mLength = (int) (mHeader >>> 1);
+        mHeaderComplete = true;
+        return true;
+    }
+
+    /**
+     * 文件内容切片回调，不拷贝
+     */
+    private void readFile(ByteBuffer in, FrameCallback callback) {
+        int length = (int) Math.min(in.remaining(), mFileRemaining);
+        ByteBuffer chunk = in.slice();
+        chunk.limit(length);
+        in.position(in.position() + length);
+        mFileRemaining -= length;
+        callback.fileChunk(chunk);
+        if (mFileRemaining == 0) {
+            callback.fileEnd();
+        }
+    }
+
+    private byte[] inflate(byte[] compressed) throws IOException {
+        int originalLength = FrameCompression.originalLength(compressed, 0, compressed.length);
+        if (originalLength > maxFrameSize) {
+            throw new FrameTooLargeException(originalLength, maxFrameSize);
+        }
+        byte[] data = new byte[originalLength];
+        FrameCompression.decompress(compressed, 0, compressed.length, data);
+        return data;
+    }
+
+    private void reset() {
+        mHeaderLength = 0;
+        mHeaderComplete = false;
+        mVarintComplete = false;
+        mHeader = 0;
+        mType = 0;
+        mLength = 0;
+        mData = null;
+        mDataLength = 0;
+        mCompressed = false;
+    }
+
+    /**
+     * 完整数据包回调接口
+     */
+    public interface FrameCallback {
+        /**
+         * @param data 完整数据，长度即数据包长度
+         */
+        void frame(byte[] data);
+
+        /**
+         * @param type 类型，不带类型位的格式为0
+         * @param data 完整数据，长度即数据包长度
+         */
+        default void frame(int type, byte[] data) {
+            frame(data);
+        }
+
+        /**
+         * 对端声明了发送格式，之后的数据包按该格式解包
+         *
+         * @param format 对端的发送格式
+         */
+        default void frameFormat(FrameFormat format) {
+        }
+
+        /**
+         * 对端的格式声明
+         *
+         * @param format   对端的发送格式
+         * @param features 对端支持接收的功能，见{@link FrameFormat#FEATURE_FILE}
+         */
+        default void frameFormat(FrameFormat format, int features) {
+            frameFormat(format);
+        }
+
+        /**
+         * 对端开始发送文件，之后依次回调{@link #fileChunk(ByteBuffer)}和{@link #fileEnd()}
+         *
+         * @param name   文件名
+         * @param length 文件内容长度
+         */
+        default void fileStart(String name, long length) {
+        }
+
+        /**
+         * @param chunk 一段文件内容，读缓冲区的切片，回调返回后失效
+         */
+        default void fileChunk(ByteBuffer chunk) {
+        }
+
+        default void fileEnd() {
+        }
+    }
+}
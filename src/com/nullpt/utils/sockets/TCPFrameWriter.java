@@ -0,0 +1,324 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量封包写，格式同{@link TCPPackageProtocol}，见{@link FrameFormat}
+ * 多个数据包先写进同一个复用的缓冲区，字节数、包数量、最长等待时间任一达到后一次写出
+ * 线程安全，对延迟敏感的调用方可以随时{@link #flush()}
+ */
+public class TCPFrameWriter {
+
+    /**
+     * 最小缓冲字节数，格式声明和最长的长度位，也能放下文件头的控制帧头和长度位
+     */
+    private static final int MIN_BYTES = FrameFormat.DECLARATION_LENGTH + FrameFormat.MAX_HEADER_LENGTH;
+
+    /**
+     * 所有writer共用的定时线程，只把到期的flush交给writer的flushExecutor，不做阻塞写
+     */
+    private static final ScheduledExecutorService LINGER_TIMER = Executors.newSingleThreadScheduledExecutor(
+            daemonThreadFactory("tcp-frame-writer-linger"));
+
+    /**
+     * 默认的flushExecutor，每个任务一个线程，对端不读时只阻塞这个连接的flush
+     */
+    private static final ExecutorService FLUSH_EXECUTOR = ThreadExecutors.isVirtualThreadSupported()
+            ? ThreadExecutors.newVirtualThreadPerTaskExecutor()
+            : Executors.newCachedThreadPool(daemonThreadFactory("tcp-frame-writer-flush"));
+
+    private final OutputStream outputStream;
+    private final int maxBytes;
+    private final int maxMessages;
+    private final long maxLingerMicros;
+    private final Executor flushExecutor;
+
+    private final byte[] mBuffer;
+    private int mPosition = 0;
+    private int mMessages = 0;
+    /**
+     * 批次号，定时flush只处理安排它的那一批
+     */
+    private long mBatch = 0;
+    /**
+     * 定时flush的异常，下一次写时抛出
+     */
+    private IOException mError = null;
+    /**
+     * 压缩阈值，见{@link TCPPackageProtocol#setCompressionThreshold(int)}
+     */
+    private int mCompressionThreshold = FrameCompression.DISABLED;
+    /**
+     * 发送格式，修改后格式声明在下一个数据包之前写入缓冲区
+     */
+    private FrameFormat mFormat = FrameFormat.LENGTH_PREFIXED;
+    private boolean mDeclarationPending = false;
+    /**
+     * 对端当前的接收格式，格式声明按该格式编码
+     */
+    private FrameFormat mDeclaredFormat = FrameFormat.LENGTH_PREFIXED;
+    /**
+     * 格式声明中本端支持接收的功能
+     */
+    private int mFeatures = 0;
+    /**
+     * 同一连接的协议实例，见{@link #setProtocol(TCPPackageProtocol)}
+     */
+    private TCPPackageProtocol mProtocol = null;
+    /**
+     * 发送文件时读取文件的数组，复用
+     */
+    private byte[] mFileChunk = null;
+
+    /**
+     * @param outputStream    os
+     * @param maxBytes        缓冲字节数，达到后写出，超过的单个数据包直接写，不小于26
+     * @param maxMessages     缓冲包数量，达到后写出
+     * @param maxLingerMicros 第一个包进入缓冲后最长等待时间/us，0为每个包立即写出
+     */
+    public TCPFrameWriter(OutputStream outputStream, int maxBytes, int maxMessages, long maxLingerMicros) {
+        this(outputStream, maxBytes, maxMessages, maxLingerMicros, FLUSH_EXECUTOR);
+    }
+
+    /**
+     * @param outputStream    os
+     * @param maxBytes        缓冲字节数，达到后写出，超过的单个数据包直接写，不小于26
+     * @param maxMessages     缓冲包数量，达到后写出
+     * @param maxLingerMicros 第一个包进入缓冲后最长等待时间/us，0为每个包立即写出
+     * @param flushExecutor   运行到期flush的线程池，flush会阻塞到写完，不要与其他连接共用单个线程
+     */
+    public TCPFrameWriter(OutputStream outputStream, int maxBytes, int maxMessages, long maxLingerMicros, Executor flushExecutor) {
+        if (maxBytes < MIN_BYTES || maxMessages <= 0 || maxLingerMicros < 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes + ", maxMessages: " + maxMessages + ", maxLingerMicros: " + maxLingerMicros);
+        }
+        this.outputStream = outputStream;
+        this.maxBytes = maxBytes;
+        this.maxMessages = maxMessages;
+        this.maxLingerMicros = maxLingerMicros;
+        this.flushExecutor = flushExecutor;
+        this.mBuffer = new byte[maxBytes];
+    }
+
+    /**
+     * 开启压缩，压缩后不比原数据小的仍按原数据发送
+     * 对端声明{@link FrameFormat#FEATURE_COMPRESSION}之后才压缩，需要{@link #setProtocol}，
+     * 协议实例同样{@link TCPPackageProtocol#setCompressionThreshold(int)}时发送声明请求对端回复
+     *
+     * @param threshold 不小于该长度的数据压缩发送，-1为不压缩
+     */
+    public synchronized void setCompressionThreshold(int threshold) {
+        if (threshold < FrameCompression.DISABLED) {
+            throw new IllegalArgumentException("threshold: " + threshold);
+        }
+        mCompressionThreshold = threshold;
+    }
+
+    /**
+     * 指定发送格式，与当前格式相同时不发送声明，见{@link TCPPackageProtocol#setFrameFormat(FrameFormat)}
+     *
+     * @param frameFormat 发送格式
+     */
+    public synchronized void setFrameFormat(FrameFormat frameFormat) {
+        if (mFormat != frameFormat) {
+            mFormat = frameFormat;
+            mDeclarationPending = true;
+        }
+    }
+
+    /**
+     * 关联同一连接上负责接收的协议实例，之后发送格式、格式声明和对端声明的功能都跟随协议实例，
+     * 不再需要{@link #setFrameFormat(FrameFormat)}，发送文件需要关联
+     *
+     * @param protocol 协议实例
+     */
+    public synchronized void setProtocol(TCPPackageProtocol protocol) {
+        mProtocol = protocol;
+    }
+
+    /**
+     * 封包写入缓冲区，达到阈值时写出
+     *
+     * @param data 数据
+     * @throws IOException 写失败，或之前的定时flush失败
+     */
+    public void write(byte[] data) throws IOException {
+        write(0, data);
+    }
+
+    /**
+     * 带类型封包写入缓冲区，{@link FrameFormat#VARINT_TAGGED}格式之外忽略类型
+     *
+     * @param type 类型，0-255
+     * @param data 数据
+     * @throws IOException 写失败，或之前的定时flush失败
+     */
+    public synchronized void write(int type, byte[] data) throws IOException {
+        checkError();
+        syncProtocol();
+        putDeclaration();
+        byte[] body = data;
+        int length = data.length;
+        boolean compressed = false;
+        int peerFeatures = mProtocol != null ? mProtocol.peerFeatures() : 0;
+        if (FrameCompression.shouldCompress(FrameCompression.negotiate(mCompressionThreshold, peerFeatures), length)) {
+            byte[] compressedData = FrameCompression.buffer(length);
+            int compressedLength = FrameCompression.compress(data, 0, length, compressedData);
+            if (compressedLength > 0) {
+                body = compressedData;
+                length = compressedLength;
+                compressed = true;
+            }
+        }
+        int frameLength = mFormat.headerLength(length) + length;
+        if (mPosition + frameLength > maxBytes) {
+            flushBuffer();
+        }
+        mPosition += mFormat.putHeader(mBuffer, mPosition, length, compressed, type);
+        if (frameLength > maxBytes) {
+            /*大包不进缓冲区，长度位和已缓冲的数据一起写出，数据直接写*/
+            flushBuffer();
+            outputStream.write(body, 0, length);
+            outputStream.flush();
+            return;
+        }
+        System.arraycopy(body, 0, mBuffer, mPosition, length);
+        mPosition += length;
+        mMessages++;
+        if (mPosition >= maxBytes || mMessages >= maxMessages || maxLingerMicros == 0) {
+            flushBuffer();
+        } else if (mMessages == 1) {
+            long batch = mBatch;
+            LINGER_TIMER.schedule(() -> flushExecutor.execute(() -> lingerFlush(batch)), maxLingerMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * 发送文件，已缓冲的数据和文件头一起写出，之后分段读取文件直接写，阻塞直到写完，见{@link FileTransfer}
+     * 需要关联协议实例，并且对端已声明接收文件
+     *
+     * @param path     文件
+     * @param offset   起始位置
+     * @param length   长度
+     * @param callback 进度回调，在调用线程上回调，可以为null
+     * @throws IOException 对端未声明接收文件，打开、读取文件或写失败，同时回调{@link FileTransfer.SendCallback#failed}
+     */
+    public synchronized void writeFile(Path path, long offset, long length, FileTransfer.SendCallback callback) throws IOException {
+        try (FileChannel file = FileTransfer.open(path, offset, length)) {
+            checkError();
+            FileTransfer.checkAccepted(mProtocol != null ? mProtocol.peerFeatures() : 0);
+            syncProtocol();
+            putDeclaration();
+            byte[] header = FileTransfer.header(String.valueOf(path.getFileName()), length);
+            int headerLength = mFormat.headerLength(FrameFormat.CONTROL_FILE) + mFormat.headerLength(header.length);
+            if (mPosition + headerLength + header.length > maxBytes) {
+                flushBuffer();
+            }
+            mPosition += mFormat.putControlHeader(mBuffer, mPosition, FrameFormat.CONTROL_FILE);
+            mPosition += mFormat.putHeader(mBuffer, mPosition, header.length, false, 0);
+            if (mPosition + header.length > maxBytes) {
+                flushBuffer();
+                outputStream.write(header);
+            } else {
+                System.arraycopy(header, 0, mBuffer, mPosition, header.length);
+                mPosition += header.length;
+                flushBuffer();
+            }
+            if (mFileChunk == null) {
+                mFileChunk = new byte[FileTransfer.CHUNK_SIZE];
+            }
+            FileTransfer.copy(file, offset, length, outputStream, mFileChunk, callback);
+        } catch (IOException e) {
+            if (callback != null) {
+                callback.failed(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 立即写出缓冲的数据，包括待发送的格式声明
+     *
+     * @throws IOException 写失败
+     */
+    public synchronized void flush() throws IOException {
+        syncProtocol();
+        putDeclaration();
+        flushBuffer();
+    }
+
+    /**
+     * 到期flush，在flushExecutor上运行
+     */
+    private synchronized void lingerFlush(long batch) {
+        if (batch != mBatch) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * 之前的定时flush失败时抛出
+     */
+    private void checkError() throws IOException {
+        if (mError != null) {
+            IOException error = mError;
+            mError = null;
+            throw error;
+        }
+    }
+
+    /**
+     * 取走协议实例待发送的格式声明
+     */
+    private void syncProtocol() {
+        if (mProtocol != null && mProtocol.pollDeclaration()) {
+            mFormat = mProtocol.getSendFormat();
+            mFeatures = mProtocol.localFeatures();
+            mDeclarationPending = true;
+        }
+    }
+
+    private void putDeclaration() throws IOException {
+        if (mDeclarationPending) {
+            mDeclarationPending = false;
+            if (mPosition + FrameFormat.DECLARATION_LENGTH > maxBytes) {
+                flushBuffer();
+            }
+            mPosition += mFormat.putDeclaration(mBuffer, mPosition, mDeclaredFormat, mFeatures);
+            mDeclaredFormat = mFormat;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mPosition == 0) {
+            return;
+        }
+        int position = mPosition;
+        mPosition = 0;
+        mMessages = 0;
+        mBatch++;
+        outputStream.write(mBuffer, 0, position);
+        outputStream.flush();
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
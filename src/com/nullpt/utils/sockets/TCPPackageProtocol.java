@@ -1,37 +1,293 @@
 package com.nullpt.utils.sockets;
 
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * TCP数据包协议
- * [content-length:4][data]
+ * [compressed:1|content-length:31][data]，或通过{@link #setFrameFormat(FrameFormat)}选择varint长度位，见{@link FrameFormat}
+ * 接收端根据对端的格式声明切换格式，本端未指定发送格式时跟随对端，发送和接收的状态都在实例中，一个实例只能对应一个连接
+ * 压缩的数据包格式见{@link FrameCompression}，接收端总是能解压并在格式声明中声明，
+ * 发送端通过{@link #setCompressionThreshold(int)}开启，对端声明{@link FrameFormat#FEATURE_COMPRESSION}之后才压缩
+ * 文件传输见{@link FileTransfer}，文件内容通过{@link #setFileReceiver(FileTransfer.Receiver)}接收，不经过完整的数组，
+ * 设置接收方后本端在格式声明中声明接收文件，对端声明之后才能{@link #sendFile}
+ * 接收时超过{@link #setMaxFrameSize(int)}的数据包抛出{@link FrameTooLargeException}，
+ * 传入{@link ReceiveStreamCallback}时不小于{@link #setStreamingThreshold(int)}的数据包分段回调，不受最大长度限制
+ * 各格式的长度位都是31位，单个数据包的数据位最长{@link Integer#MAX_VALUE}字节，压缩的数据包解压后同样不超过，
+ * 更长的数据用{@link #sendFile}发送，文件长度64位，接收端分段写进{@link FileTransfer.Receiver}打开的channel
  */
 public class TCPPackageProtocol {
 
+    /**
+     * 默认最大数据包长度
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    /**
+     * 默认分段回调阈值
+     */
+    public static final int DEFAULT_STREAMING_THRESHOLD = 1024 * 1024;
+
     /**
      * 数据长度位
      */
     private static final int CONTENT_LENGTH = 4;
     /**
-     * 单次读取数据位长度
+     * 分段回调每段最大长度
      */
-    private static final int READ_LENGTH = 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
     /**
-     * 数据长度
+     * 流接收的缓冲区，小数据包一次读取多个，大数据包仍直接读进目标数组
      */
-    private final byte[] lengthBytes = new byte[CONTENT_LENGTH];
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
     /**
-     * 读取长度
+     * channel接收时预读的字节数，至少为最长的长度位加原始长度位
      */
-    private final byte[] readBytes = new byte[READ_LENGTH];
+    private static final int CARRY_SIZE = 16;
+    /**
+     * 数据长度
+     */
+    private final byte[] lengthBytes = new byte[CONTENT_LENGTH];
 
     /**
      * 数据
      */
     private byte[] data = null;
+    /**
+     * 接收的压缩数据，按需扩容，复用
+     */
+    private byte[] compressedData = null;
+    /**
+     * 分段回调的数据，复用
+     */
+    private byte[] chunkData = null;
+    private ByteBuffer chunkBuffer = null;
+
+    /**
+     * 压缩阈值，不小于该长度的数据压缩发送
+     */
+    private volatile int compressionThreshold = FrameCompression.DISABLED;
+    private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private volatile int streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+    private volatile FileTransfer.Receiver fileReceiver = null;
+    /**
+     * 收到对端声明且需要回复时回调，见{@link #setDeclarationCallback(Runnable)}
+     */
+    private volatile Runnable declarationCallback = null;
+    /**
+     * 发送文件时读取文件的数组，复用
+     */
+    private byte[] fileChunk = null;
+
+    /**
+     * 发送格式，修改和发送都在实例锁内
+     */
+    private volatile FrameFormat sendFormat = FrameFormat.LENGTH_PREFIXED;
+    private boolean sendFormatSelected = false;
+    private boolean declarationPending = false;
+    /**
+     * 最近一次声明的格式和功能，即对端当前的接收格式，未声明过时功能为-1
+     */
+    private FrameFormat declaredFormat = FrameFormat.LENGTH_PREFIXED;
+    private int declaredFeatures = -1;
+    /**
+     * 对端声明的功能，对端未声明时为0
+     */
+    private volatile int peerFeatures = 0;
+    /**
+     * 发送时的格式声明、控制帧头和长度位
+     */
+    private final byte[] sendHeader = new byte[FrameFormat.DECLARATION_LENGTH + FrameFormat.MAX_HEADER_LENGTH * 2];
+
+    /**
+     * 接收格式，只在接收线程修改
+     */
+    private volatile FrameFormat receiveFormat = FrameFormat.LENGTH_PREFIXED;
+    /**
+     * 当前接收包的长度位
+     */
+    private int receiveLength;
+    private boolean receiveCompressed;
+    private int receiveType;
+
+    /**
+     * 流接收时包装的缓冲流
+     */
+    private InputStream bufferedSource = null;
+    private BufferedInputStream bufferedInputStream = null;
+
+    /**
+     * channel接收时预读的字节，读模式，读数据位时同时分散读后面的长度位
+     */
+    private final ByteBuffer carryBuffer = ByteBuffer.allocate(CARRY_SIZE).flip();
+    private final ByteBuffer[] scatterBuffers = new ByteBuffer[2];
+    /**
+     * channel接收时的数据，按需扩容，复用
+     */
+    private ByteBuffer bodyBuffer = null;
+    /**
+     * channel接收时解压后的数据，按需扩容，复用
+     */
+    private ByteBuffer inflateBuffer = null;
+
+    /**
+     * 开启压缩，压缩后不比原数据小的仍按原数据发送
+     * 开启后发送格式声明，对端回复的声明中带{@link FrameFormat#FEATURE_COMPRESSION}之后才压缩，需要对端支持格式声明
+     *
+     * @param threshold 不小于该长度的数据压缩发送，-1为不压缩
+     */
+    public synchronized void setCompressionThreshold(int threshold) {
+        if (threshold < FrameCompression.DISABLED) {
+            throw new IllegalArgumentException("threshold: " + threshold);
+        }
+        this.compressionThreshold = threshold;
+        featuresChanged();
+    }
+
+    /**
+     * 接收时整包缓冲的最大长度，压缩的数据包同时限制压缩后和解压后的长度
+     *
+     * @param maxFrameSize 最大长度，默认{@link #DEFAULT_MAX_FRAME_SIZE}
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * 传入{@link ReceiveStreamCallback}接收时，不小于该长度的数据包分段回调，压缩的数据包按解压后长度判断
+     *
+     * @param streamingThreshold 分段回调阈值，默认{@link #DEFAULT_STREAMING_THRESHOLD}
+     */
+    public void setStreamingThreshold(int streamingThreshold) {
+        if (streamingThreshold < 0) {
+            throw new IllegalArgumentException("streamingThreshold: " + streamingThreshold);
+        }
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    /**
+     * 文件接收方，对端发送文件时回调，声明接收文件的格式声明在下一个数据包之前或{@link #sendDeclaration}时发送
+     * 需要对端支持格式声明
+     *
+     * @param fileReceiver null为不再声明接收文件，已开始的文件内容丢弃
+     */
+    public synchronized void setFileReceiver(FileTransfer.Receiver fileReceiver) {
+        this.fileReceiver = fileReceiver;
+        featuresChanged();
+    }
+
+    /**
+     * 收到对端的格式声明且本端需要回复时，在接收线程上回调，回调中调用{@link #sendDeclaration}立即回复
+     * 不设置时回复随下一个数据包发送，只接收不发送的一端不设置时对端不能压缩和发送文件
+     *
+     * @param declarationCallback 回调，null为不回调
+     */
+    public void setDeclarationCallback(Runnable declarationCallback) {
+        this.declarationCallback = declarationCallback;
+    }
+
+    /**
+     * 声明过时功能变化重新声明，未声明过时开启了需要协商的功能才声明，不影响不支持格式声明的旧版本
+     */
+    private void featuresChanged() {
+        if (declaredFeatures >= 0) {
+            if (localFeatures() != declaredFeatures) {
+                declarationPending = true;
+            }
+        } else if (fileReceiver != null || compressionThreshold != FrameCompression.DISABLED) {
+            declarationPending = true;
+        }
+    }
+
+    /**
+     * 指定发送格式，格式声明在下一个数据包之前发送
+     * 不指定时跟随对端声明的格式，对端未声明时为{@link FrameFormat#LENGTH_PREFIXED}
+     * 指定非默认格式时对端需要支持格式声明
+     *
+     * @param frameFormat 发送格式
+     */
+    public synchronized void setFrameFormat(FrameFormat frameFormat) {
+        sendFormatSelected = true;
+        if (sendFormat != frameFormat) {
+            sendFormat = frameFormat;
+            declarationPending = true;
+        }
+    }
+
+    /**
+     * @return 当前发送格式
+     */
+    public FrameFormat getSendFormat() {
+        return sendFormat;
+    }
+
+    /**
+     * @return 当前接收格式
+     */
+    public FrameFormat getReceiveFormat() {
+        return receiveFormat;
+    }
+
+    /**
+     * @return 对端是否在格式声明中声明了接收文件
+     */
+    public boolean isFileTransferAccepted() {
+        return (peerFeatures & FrameFormat.FEATURE_FILE) != 0;
+    }
+
+    /**
+     * @return 本端支持接收的功能
+     */
+    int localFeatures() {
+        return FrameFormat.FEATURE_COMPRESSION | (fileReceiver != null ? FrameFormat.FEATURE_FILE : 0);
+    }
+
+    /**
+     * @return 对端声明的功能
+     */
+    int peerFeatures() {
+        return peerFeatures;
+    }
+
+    /**
+     * 立即发送待发送的格式声明，没有时不写，开启需要协商的功能后调用，不必等下一个数据包
+     *
+     * @param outputStream os
+     */
+    public synchronized void sendDeclaration(OutputStream outputStream) throws IOException {
+        int length = putDeclaration(sendFormat);
+        if (length > 0) {
+            outputStream.write(sendHeader, 0, length);
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * 由{@link TCPFrameWriter}发送时取走待发送的格式声明，声明内容为当前发送格式和{@link #localFeatures()}
+     *
+     * @return 是否需要发送格式声明
+     */
+    synchronized boolean pollDeclaration() {
+        if (!declarationPending) {
+            return false;
+        }
+        declarationPending = false;
+        declaredFormat = sendFormat;
+        declaredFeatures = localFeatures();
+        return true;
+    }
 
     /**
      * 发送数据
@@ -40,42 +296,691 @@ public class TCPPackageProtocol {
      * @param data         数据
      */
     public void send(OutputStream outputStream, byte[] data) throws IOException {
-        outputStream.write(Utils.int2bytes(data.length));
-        outputStream.write(data);
+        send(outputStream, 0, data);
+    }
+
+    /**
+     * 带类型发送数据，{@link FrameFormat#VARINT_TAGGED}格式时类型随数据包发送，其他格式忽略
+     * 格式声明和长度位一次写出
+     *
+     * @param outputStream os
+     * @param type         类型，0-255
+     * @param data         数据
+     */
+    public synchronized void send(OutputStream outputStream, int type, byte[] data) throws IOException {
+        writeFrame(outputStream, type, data, FrameCompression.negotiate(compressionThreshold, peerFeatures));
         outputStream.flush();
     }
 
     /**
-     * 接收数据
+     * 发送文件，文件头之后分段读取文件写出，阻塞直到写完，对端通过{@link #setFileReceiver(FileTransfer.Receiver)}接收
+     *
+     * @param outputStream os
+     * @param path         文件
+     * @param offset       起始位置
+     * @param length       长度
+     * @param callback     进度回调，在调用线程上回调，可以为null
+     * @throws IOException 打开、读取文件或写失败，同时回调{@link FileTransfer.SendCallback#failed}
+     */
+    public synchronized void sendFile(OutputStream outputStream, Path path, long offset, long length, FileTransfer.SendCallback callback) throws IOException {
+        try (FileChannel file = FileTransfer.open(path, offset, length)) {
+            FileTransfer.checkAccepted(peerFeatures);
+            byte[] header = FileTransfer.header(String.valueOf(path.getFileName()), length);
+            FrameFormat format = sendFormat;
+            int headerLength = putDeclaration(format);
+            headerLength += format.putControlHeader(sendHeader, headerLength, FrameFormat.CONTROL_FILE);
+            headerLength += format.putHeader(sendHeader, headerLength, header.length, false, 0);
+            outputStream.write(sendHeader, 0, headerLength);
+            outputStream.write(header);
+            if (fileChunk == null) {
+                fileChunk = new byte[FileTransfer.CHUNK_SIZE];
+            }
+            FileTransfer.copy(file, offset, length, outputStream, fileChunk, callback);
+        } catch (IOException e) {
+            if (callback != null) {
+                callback.failed(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 格式声明和长度位一次写出，不flush
+     */
+    private void writeFrame(OutputStream outputStream, int type, byte[] data, int compressionThreshold) throws IOException {
+        FrameFormat format = sendFormat;
+        int headerLength = putDeclaration(format);
+        byte[] body = data;
+        int length = data.length;
+        boolean compressed = false;
+        if (FrameCompression.shouldCompress(compressionThreshold, data.length)) {
+            byte[] compressedData = FrameCompression.buffer(data.length);
+            int compressedLength = FrameCompression.compress(data, 0, data.length, compressedData);
+            if (compressedLength > 0) {
+                body = compressedData;
+                length = compressedLength;
+                compressed = true;
+            }
+        }
+        headerLength += format.putHeader(sendHeader, headerLength, length, compressed, type);
+        outputStream.write(sendHeader, 0, headerLength);
+        outputStream.write(body, 0, length);
+    }
+
+    /**
+     * 待发送的格式声明写入sendHeader开头
+     *
+     * @param format 当前发送格式
+     * @return 写入长度，没有待发送的声明时为0
+     */
+    private int putDeclaration(FrameFormat format) {
+        if (!declarationPending) {
+            return 0;
+        }
+        declarationPending = false;
+        int features = localFeatures();
+        int length = format.putDeclaration(sendHeader, 0, declaredFormat, features);
+        declaredFormat = format;
+        declaredFeatures = features;
+        return length;
+    }
+
+    /**
+     * 收到对端的格式声明，本端未声明过时回复一次
+     *
+     * @param body 格式声明的控制数据
+     */
+    private void declared(ByteBuffer body) throws IOException {
+        FrameFormat format = FrameFormat.parseDeclaration(body);
+        receiveFormat = format;
+        peerFeatures = FrameFormat.parseFeatures(body);
+        boolean reply;
+        synchronized (this) {
+            if (!sendFormatSelected) {
+                setFrameFormat(format);
+            }
+            if (declaredFeatures < 0) {
+                declarationPending = true;
+            }
+            reply = declarationPending;
+        }
+        Runnable callback = declarationCallback;
+        if (reply && callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * 接收数据，阻塞直到流结束或出错
      *
      * @param inputStream is
      * @param callback    数据回调
+     * @throws EOFException           流结束
+     * @throws FrameTooLargeException 数据包超过最大长度
      */
     public void receive(InputStream inputStream, ReceiveCompleteCallback callback) throws IOException {
-        while (!Thread.interrupted()) {
-            int ignoreLength = inputStream.read(lengthBytes, 0, CONTENT_LENGTH);
-            /*这个长度一般来说一定能一次读回来*/
-            assert ignoreLength == CONTENT_LENGTH;
+        receive(inputStream, callback, null);
+    }
 
-            int length = Utils.bytes2int(lengthBytes);
+    /**
+     * 接收数据，大数据包分段回调，阻塞直到流结束或出错
+     *
+     * @param inputStream    is
+     * @param callback       数据回调
+     * @param streamCallback 大数据包分段回调，null为不分段
+     * @throws EOFException           流结束
+     * @throws FrameTooLargeException 不分段的数据包超过最大长度
+     */
+    public void receive(InputStream inputStream, ReceiveCompleteCallback callback, ReceiveStreamCallback streamCallback) throws IOException {
+        InputStream in = buffered(inputStream);
+        while (!Thread.interrupted()) {
+            readHeader(in);
+            int length = receiveLength;
+            int type = receiveType;
+            if (FrameFormat.isControl(receiveCompressed, length)) {
+                control(in, FrameFormat.checkControl(length));
+                continue;
+            }
+            if (receiveCompressed) {
+                readFully(in, lengthBytes, FrameCompression.ORIGINAL_LENGTH);
+                int originalLength = Utils.bytes2int(lengthBytes);
+                if (originalLength < 0) {
+                    throw new IOException("Illegal original length: " + originalLength);
+                }
+                length -= FrameCompression.ORIGINAL_LENGTH;
+                if (isStreamed(originalLength, streamCallback)) {
+                    streamInflate(in, type, length, originalLength, streamCallback);
+                    continue;
+                }
+                checkFrameSize(length);
+                checkFrameSize(originalLength);
+                if (compressedData == null || compressedData.length < length) {
+                    compressedData = new byte[length];
+                }
+                readFully(in, compressedData, length);
+                if (data == null || data.length < originalLength) {
+                    data = new byte[originalLength];
+                }
+                FrameCompression.inflate(compressedData, 0, length, data, originalLength);
+                callback.complete(type, data, originalLength);
+                continue;
+            }
 
+            if (isStreamed(length, streamCallback)) {
+                stream(in, type, length, streamCallback);
+                continue;
+            }
+            checkFrameSize(length);
             if (data == null || data.length < length) {
                 data = new byte[length];
             }
+            /*大数据包绕过缓冲区直接读进目标数组*/
+            readFully(in, data, length);
+            callback.complete(type, data, length);
+        }
+    }
 
-            int dataLength = 0;
-            while (dataLength < length) {
-                int readLength;
-                if (dataLength + READ_LENGTH < length) {
-                    readLength = READ_LENGTH;
+    /**
+     * 读控制帧头之后的控制数据并处理
+     *
+     * @param kind 控制类型
+     */
+    private void control(InputStream in, int kind) throws IOException {
+        readHeader(in);
+        int length = receiveLength;
+        if (receiveCompressed) {
+            throw new IOException("Compressed control frame");
+        }
+        checkFrameSize(length);
+        if (data == null || data.length < length) {
+            data = new byte[length];
+        }
+        readFully(in, data, length);
+        ByteBuffer body = ByteBuffer.wrap(data, 0, length);
+        if (kind == FrameFormat.CONTROL_DECLARATION) {
+            declared(body);
+            return;
+        }
+        long fileLength = FileTransfer.parseLength(body);
+        receiveFile(in, FileTransfer.parseName(body), fileLength);
+    }
+
+    private void control(ScatteringByteChannel channel, int kind) throws IOException {
+        while (!parseHeader(carryBuffer)) {
+            fill(channel);
+        }
+        int length = receiveLength;
+        if (receiveCompressed) {
+            throw new IOException("Compressed control frame");
+        }
+        checkFrameSize(length);
+        ByteBuffer body = bodyBuffer(length);
+        body.clear().limit(length);
+        readFully(channel, body);
+        body.flip();
+        if (kind == FrameFormat.CONTROL_DECLARATION) {
+            declared(body);
+            return;
+        }
+        long fileLength = FileTransfer.parseLength(body);
+        receiveFile(channel, FileTransfer.parseName(body), fileLength);
+    }
+
+    /**
+     * 同一个流复用同一个缓冲流，多次调用receive时缓冲的数据不丢失
+     */
+    private InputStream buffered(InputStream inputStream) {
+        if (inputStream != bufferedSource) {
+            bufferedSource = inputStream;
+            bufferedInputStream = new BufferedInputStream(inputStream, READ_BUFFER_SIZE);
+        }
+        return bufferedInputStream;
+    }
+
+    private void readHeader(InputStream in) throws IOException {
+        FrameFormat format = receiveFormat;
+        if (format == FrameFormat.LENGTH_PREFIXED) {
+            readFully(in, lengthBytes, CONTENT_LENGTH);
+            int header = Utils.bytes2int(lengthBytes);
+            receiveCompressed = (header & FrameCompression.COMPRESSED_FLAG) != 0;
+            receiveLength = header & ~FrameCompression.COMPRESSED_FLAG;
+            receiveType = 0;
+            return;
+        }
+        long header = 0;
+        for (int i = 0; ; i++) {
+            if (i == FrameFormat.MAX_VARINT_LENGTH) {
+                throw new IOException("Illegal varint content length");
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            header |= (long) (b & 0x7f) << (7 * i);
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (header > 0xffffffffL) {
+            throw new IOException("Illegal varint content length: " + header);
+        }
+        receiveCompressed = (header & 1) != 0;
+        receiveLength = (int) (header >>> 1);
+        receiveType = 0;
+        if (format.isTagged()) {
+            int type = in.read();
+            if (type < 0) {
+                throw new EOFException();
+            }
+            receiveType = type;
+        }
+    }
+
+    /**
+     * 从channel接收数据，不经过中间数组，阻塞直到channel结束或出错
+     * 读数据位时同时分散读下一个包的长度位，省去单独读长度位的一次系统调用
+     * 预读的长度位保存在实例中，一个实例只能对应一个channel
+     *
+     * @param channel  阻塞模式的channel
+     * @param callback 数据回调
+     * @throws EOFException           channel结束
+     * @throws FrameTooLargeException 数据包超过最大长度
+     */
+    public void receive(ScatteringByteChannel channel, ReceiveBufferCallback callback) throws IOException {
+        receive(channel, callback, null);
+    }
+
+    /**
+     * 从channel接收数据，大数据包分段回调，阻塞直到channel结束或出错
+     *
+     * @param channel        阻塞模式的channel
+     * @param callback       数据回调
+     * @param streamCallback 大数据包分段回调，null为不分段
+     * @throws EOFException           channel结束
+     * @throws FrameTooLargeException 不分段的数据包超过最大长度
+     * @see #receive(ScatteringByteChannel, ReceiveBufferCallback)
+     */
+    public void receive(ScatteringByteChannel channel, ReceiveBufferCallback callback, ReceiveStreamCallback streamCallback) throws IOException {
+        while (!Thread.interrupted()) {
+            /*长度位通常已在上一次读数据位时预读*/
+            while (!parseHeader(carryBuffer)) {
+                fill(channel);
+            }
+            int length = receiveLength;
+            int type = receiveType;
+            boolean compressed = receiveCompressed;
+            if (FrameFormat.isControl(compressed, length)) {
+                control(channel, FrameFormat.checkControl(length));
+                continue;
+            }
+            int originalLength = length;
+            if (compressed) {
+                while (carryBuffer.remaining() < FrameCompression.ORIGINAL_LENGTH) {
+                    fill(channel);
+                }
+                originalLength = carryBuffer.getInt();
+                if (originalLength < 0) {
+                    throw new IOException("Illegal original length: " + originalLength);
+                }
+                length -= FrameCompression.ORIGINAL_LENGTH;
+            }
+            if (isStreamed(originalLength, streamCallback)) {
+                if (compressed) {
+                    streamInflate(channel, type, length, originalLength, streamCallback);
                 } else {
-                    readLength = length - dataLength;
+                    stream(channel, type, length, streamCallback);
+                }
+                continue;
+            }
+            checkFrameSize(length);
+            checkFrameSize(originalLength);
+
+            ByteBuffer body = bodyBuffer(length);
+            body.clear().limit(length);
+            drainCarry(body);
+            if (body.hasRemaining()) {
+                ByteBuffer carry = carryBuffer;
+                carry.clear();
+                scatterBuffers[0] = body;
+                scatterBuffers[1] = carry;
+                while (body.hasRemaining()) {
+                    if (channel.read(scatterBuffers) < 0) {
+                        carry.flip();
+                        throw new EOFException();
+                    }
+                }
+                carry.flip();
+            }
+            body.flip();
+            if (compressed) {
+                body = inflate(body, originalLength);
+            }
+            callback.complete(type, body);
+        }
+    }
+
+    /**
+     * 从预读的字节中解析长度位，完整时消费长度位
+     *
+     * @return 是否完整
+     */
+    private boolean parseHeader(ByteBuffer carry) throws IOException {
+        FrameFormat format = receiveFormat;
+        int position = carry.position();
+        int remaining = carry.remaining();
+        if (format == FrameFormat.LENGTH_PREFIXED) {
+            if (remaining < CONTENT_LENGTH) {
+                return false;
+            }
+            int header = carry.getInt();
+            receiveCompressed = (header & FrameCompression.COMPRESSED_FLAG) != 0;
+            receiveLength = header & ~FrameCompression.COMPRESSED_FLAG;
+            receiveType = 0;
+            return true;
+        }
+        long header = 0;
+        int headerLength = 0;
+        while (true) {
+            if (headerLength == remaining) {
+                return false;
+            }
+            int b = carry.get(position + headerLength) & 0xff;
+            header |= (long) (b & 0x7f) << (7 * headerLength);
+            headerLength++;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (headerLength == FrameFormat.MAX_VARINT_LENGTH) {
+                throw new IOException("Illegal varint content length");
+            }
+        }
+        if (header > 0xffffffffL) {
+            throw new IOException("Illegal varint content length: " + header);
+        }
+        int type = 0;
+        if (format.isTagged()) {
+            if (headerLength == remaining) {
+                return false;
+            }
+            type = carry.get(position + headerLength) & 0xff;
+            headerLength++;
+        }
+        carry.position(position + headerLength);
+        receiveCompressed = (header & 1) != 0;
+        receiveLength = (int) (header >>> 1);
+        receiveType = type;
+        return true;
+    }
+
+    /**
+     * 继续预读，至少读到1字节
+     */
+    private void fill(ScatteringByteChannel channel) throws IOException {
+        ByteBuffer carry = carryBuffer;
+        carry.compact();
+        int length = channel.read(carry);
+        carry.flip();
+        if (length < 0) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * 预读的字节先写进{@code dst}
+     */
+    private void drainCarry(ByteBuffer dst) {
+        ByteBuffer carry = carryBuffer;
+        int length = Math.min(carry.remaining(), dst.remaining());
+        if (length > 0) {
+            int limit = carry.limit();
+            carry.limit(carry.position() + length);
+            dst.put(carry);
+            carry.limit(limit);
+        }
+    }
+
+    /**
+     * 文件内容分段写进接收方的channel
+     */
+    private void receiveFile(InputStream inputStream, String name, long length) throws IOException {
+        FileTransfer.Sink sink = FileTransfer.Sink.open(fileReceiver, name, length);
+        ByteBuffer chunk = chunkBuffer();
+        try {
+            while (sink.remaining() > 0) {
+                int len = (int) Math.min(sink.remaining(), CHUNK_SIZE);
+                readFully(inputStream, chunkData, len);
+                chunk.clear().limit(len);
+                sink.write(chunk);
+            }
+        } catch (IOException e) {
+            sink.abort(e);
+            throw e;
+        }
+        sink.finish();
+    }
+
+    private void receiveFile(ScatteringByteChannel channel, String name, long length) throws IOException {
+        FileTransfer.Sink sink = FileTransfer.Sink.open(fileReceiver, name, length);
+        ByteBuffer chunk = bodyBuffer(CHUNK_SIZE);
+        try {
+            while (sink.remaining() > 0) {
+                chunk.clear().limit((int) Math.min(sink.remaining(), CHUNK_SIZE));
+                readFully(channel, chunk);
+                chunk.flip();
+                sink.write(chunk);
+            }
+        } catch (IOException e) {
+            sink.abort(e);
+            throw e;
+        }
+        sink.finish();
+    }
+
+    private boolean isStreamed(int length, ReceiveStreamCallback streamCallback) {
+        return streamCallback != null && length >= streamingThreshold;
+    }
+
+    private void checkFrameSize(int length) throws FrameTooLargeException {
+        if (length > maxFrameSize) {
+            throw new FrameTooLargeException(length, maxFrameSize);
+        }
+    }
+
+    private ByteBuffer bodyBuffer(int length) {
+        ByteBuffer body = bodyBuffer;
+        if (body == null || body.capacity() < length) {
+            body = ByteBuffer.allocateDirect(Math.max(length, 1024));
+            bodyBuffer = body;
+        }
+        return body;
+    }
+
+    private ByteBuffer inflate(ByteBuffer body, int originalLength) throws IOException {
+        ByteBuffer inflated = inflateBuffer;
+        if (inflated == null || inflated.capacity() < originalLength) {
+            inflated = ByteBuffer.allocateDirect(Math.max(originalLength, 1024));
+            inflateBuffer = inflated;
+        }
+        inflated.clear();
+        FrameCompression.inflate(body, inflated, originalLength);
+        inflated.flip();
+        return inflated;
+    }
+
+    private ByteBuffer chunkBuffer() {
+        if (chunkBuffer == null) {
+            chunkData = new byte[CHUNK_SIZE];
+            chunkBuffer = ByteBuffer.wrap(chunkData);
+        }
+        return chunkBuffer;
+    }
+
+    /**
+     * 分段读取数据位，每段读满{@link #CHUNK_SIZE}或读到包尾后回调
+     */
+    private void stream(InputStream inputStream, int type, int length, ReceiveStreamCallback streamCallback) throws IOException {
+        ByteBuffer chunk = chunkBuffer();
+        streamCallback.frameStart(type, length);
+        int remaining = length;
+        while (remaining > 0) {
+            int len = Math.min(remaining, CHUNK_SIZE);
+            readFully(inputStream, chunkData, len);
+            remaining -= len;
+            chunk.clear().limit(len);
+            streamCallback.chunk(chunk);
+        }
+        streamCallback.frameEnd();
+    }
+
+    private void stream(ScatteringByteChannel channel, int type, int length, ReceiveStreamCallback streamCallback) throws IOException {
+        ByteBuffer chunk = bodyBuffer(CHUNK_SIZE);
+        streamCallback.frameStart(type, length);
+        int remaining = length;
+        while (remaining > 0) {
+            int len = Math.min(remaining, CHUNK_SIZE);
+            chunk.clear().limit(len);
+            readFully(channel, chunk);
+            remaining -= len;
+            chunk.flip();
+            streamCallback.chunk(chunk);
+        }
+        streamCallback.frameEnd();
+    }
+
+    /**
+     * 分段读取并解压，输入和输出都不超过{@link #CHUNK_SIZE}
+     */
+    private void streamInflate(InputStream inputStream, int type, int length, int originalLength, ReceiveStreamCallback streamCallback) throws IOException {
+        ByteBuffer chunk = chunkBuffer();
+        if (compressedData == null || compressedData.length < CHUNK_SIZE) {
+            compressedData = new byte[CHUNK_SIZE];
+        }
+        Inflater inflater = FrameCompression.inflater();
+        try {
+            streamCallback.frameStart(type, originalLength);
+            int remaining = length;
+            int inflated = 0;
+            while (inflated < originalLength) {
+                if (inflater.needsInput()) {
+                    if (remaining == 0) {
+                        break;
+                    }
+                    int len = Math.min(remaining, CHUNK_SIZE);
+                    readFully(inputStream, compressedData, len);
+                    remaining -= len;
+                    inflater.setInput(compressedData, 0, len);
+                }
+                int len = inflater.inflate(chunkData, 0, Math.min(CHUNK_SIZE, originalLength - inflated));
+                if (len == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        break;
+                    }
+                    continue;
+                }
+                inflated += len;
+                chunk.clear().limit(len);
+                streamCallback.chunk(chunk);
+            }
+            FrameCompression.checkInflated(inflated, originalLength);
+            /*解压完成后剩余的数据位*/
+            while (remaining > 0) {
+                int len = Math.min(remaining, CHUNK_SIZE);
+                readFully(inputStream, compressedData, len);
+                remaining -= len;
+            }
+            streamCallback.frameEnd();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private void streamInflate(ScatteringByteChannel channel, int type, int length, int originalLength, ReceiveStreamCallback streamCallback) throws IOException {
+        ByteBuffer input = bodyBuffer(CHUNK_SIZE);
+        ByteBuffer chunk = inflateBuffer;
+        if (chunk == null || chunk.capacity() < CHUNK_SIZE) {
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            inflateBuffer = chunk;
+        }
+        Inflater inflater = FrameCompression.inflater();
+        try {
+            streamCallback.frameStart(type, originalLength);
+            int remaining = length;
+            int inflated = 0;
+            while (inflated < originalLength) {
+                if (inflater.needsInput()) {
+                    if (remaining == 0) {
+                        break;
+                    }
+                    input.clear().limit(Math.min(remaining, CHUNK_SIZE));
+                    readFully(channel, input);
+                    remaining -= input.limit();
+                    input.flip();
+                    inflater.setInput(input);
+                }
+                chunk.clear().limit(Math.min(CHUNK_SIZE, originalLength - inflated));
+                int len = inflater.inflate(chunk);
+                if (len == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        break;
+                    }
+                    continue;
                 }
-                int len = inputStream.read(readBytes, 0, readLength);
-                System.arraycopy(readBytes, 0, data, dataLength, len);
-                dataLength += len;
+                inflated += len;
+                chunk.flip();
+                streamCallback.chunk(chunk);
+            }
+            FrameCompression.checkInflated(inflated, originalLength);
+            while (remaining > 0) {
+                input.clear().limit(Math.min(remaining, CHUNK_SIZE));
+                readFully(channel, input);
+                remaining -= input.limit();
+            }
+            streamCallback.frameEnd();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static void readFully(InputStream inputStream, byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int len = inputStream.read(bytes, offset, length - offset);
+            if (len < 0) {
+                throw new EOFException();
+            }
+            offset += len;
+        }
+    }
+
+    private void readFully(ScatteringByteChannel channel, ByteBuffer buffer) throws IOException {
+        drainCarry(buffer);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
             }
-            callback.complete(data, dataLength);
+        }
+    }
+
+    /**
+     * channel接收的完整数据回调接口
+     */
+    public interface ReceiveBufferCallback {
+        /**
+         * 完整数据回调
+         *
+         * @param data 数据，position为0，limit为数据长度，复用的buffer，回调返回后失效
+         */
+        void complete(ByteBuffer data);
+
+        /**
+         * 带类型的完整数据回调，{@link FrameFormat#VARINT_TAGGED}格式时为对端发送的类型，其他格式为0
+         */
+        default void complete(int type, ByteBuffer data) {
+            complete(data);
         }
     }
 
@@ -90,5 +995,39 @@ public class TCPPackageProtocol {
          * @param length 数据位长度
          */
         void complete(byte[] data, int length);
+
+        /**
+         * 带类型的完整数据回调，{@link FrameFormat#VARINT_TAGGED}格式时为对端发送的类型，其他格式为0
+         */
+        default void complete(int type, byte[] data, int length) {
+            complete(data, length);
+        }
+    }
+
+    /**
+     * 大数据包分段回调接口，每个数据包依次回调frameStart、若干次chunk、frameEnd
+     * 内存占用与数据包长度无关，数据包长度仍受31位长度位限制，最长{@link Integer#MAX_VALUE}字节，
+     * 更长的数据见{@link TCPPackageProtocol#sendFile}
+     */
+    public interface ReceiveStreamCallback {
+        /**
+         * @param length 数据位长度，压缩的数据包为解压后长度
+         */
+        void frameStart(int length);
+
+        /**
+         * @param type   类型，{@link FrameFormat#VARINT_TAGGED}格式之外为0
+         * @param length 数据位长度，压缩的数据包为解压后长度
+         */
+        default void frameStart(int type, int length) {
+            frameStart(length);
+        }
+
+        /**
+         * @param chunk 一段数据，复用的buffer，回调返回后失效
+         */
+        void chunk(ByteBuffer chunk);
+
+        void frameEnd();
     }
 }
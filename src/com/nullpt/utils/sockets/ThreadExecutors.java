@@ -0,0 +1,52 @@
+package com.nullpt.utils.sockets;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 阻塞io用的线程池
+ * 运行在支持虚拟线程的jdk上时每个任务一个虚拟线程，否则退回到缓存线程池
+ */
+public class ThreadExecutors {
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor，编译级别不支持，反射获取
+     */
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadPerTaskExecutor();
+
+    private ThreadExecutors() {
+    }
+
+    /**
+     * @return 当前jdk是否支持虚拟线程
+     */
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return 每个任务一个虚拟线程的线程池，不支持时为缓存线程池
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (Exception e) {
+                /*ignore*/
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    private static Method findVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            /*预览版本未开启预览时调用会抛异常*/
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return method;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
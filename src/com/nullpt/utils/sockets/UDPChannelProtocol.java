@@ -0,0 +1,701 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 基于DatagramChannel的UDP数据包协议，格式同{@link UDPPackageProtocol}，两者可以互相收发
+ * 收发都使用direct buffer，内核直接读写，可以阻塞接收，也可以注册到{@link EventLoop}上
+ * 设置分片后接收线程只读取数据报，按id散列交给分片线程重组，同一条消息总在同一个分片上
+ * 不支持可靠模式，收到{@link UDPPackageProtocol#setReliable(boolean)}发出的分段时丢弃
+ * 组播时发送地址为组地址，接收channel按协议族打开并绑定组播端口后加入组，见{@link #joinGroup(InetAddress, NetworkInterface)}
+ * 接收时按校验分段恢复丢失的分段，见{@link UDPPackageProtocol#setForwardErrorCorrection(int, int)}，发送不带校验分段
+ */
+public class UDPChannelProtocol {
+
+    /**
+     * 注册到循环上时每次就绪最多读取的数据报数量，避免饿死同一循环上的其他channel
+     */
+    private static final int MAX_READS_PER_SELECT = 64;
+    /**
+     * 每个分片的接收缓冲字节数
+     */
+    private static final int SHARD_BUFFER_SIZE = 4 * 1024 * 1024;
+    /**
+     * 非阻塞channel发送缓冲区满时的挂起时长，从最小值开始每次翻倍
+     */
+    private static final long SEND_BACKOFF_MIN_NANOS = 10_000L;
+    private static final long SEND_BACKOFF_MAX_NANOS = 1_000_000L;
+
+    private final DatagramChannel channel;
+    private final SocketAddress sendAddress;
+
+    private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(UDPPackageProtocol.MAX_DATAGRAM_SIZE);
+    private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(UDPPackageProtocol.DEFAULT_DATAGRAM_SIZE);
+    /**
+     * 每个分段的数据长度
+     */
+    private int rangeCapacity = UDPPackageProtocol.DEFAULT_DATAGRAM_SIZE - UDPPackageProtocol.HEADER_LENGTH;
+    /**
+     * 压缩阈值，不小于该长度的数据压缩发送
+     */
+    private int compressionThreshold = FrameCompression.DISABLED;
+    /**
+     * 接收端能解压，见{@link #setPeerAcceptsCompression(boolean)}
+     */
+    private boolean peerAcceptsCompression = false;
+    /**
+     * id高32位，每个发送端随机生成
+     */
+    private final long idNonce = (long) ThreadLocalRandom.current().nextInt() << 32;
+    /**
+     * id低32位，每条消息加一
+     */
+    private int idSequence = 0;
+    private volatile UDPPacer pacer = null;
+    /**
+     * 已加入的组播组
+     */
+    private final List<MembershipKey> mMemberships = new ArrayList<>();
+
+    private long reassemblyTimeoutNanos = UDPReassembler.DEFAULT_TIMEOUT_NANOS;
+    private long reassemblyMaxBytes = UDPReassembler.DEFAULT_MAX_BYTES;
+    private UDPPackageProtocol.DropCallback dropCallback = null;
+    private int receivePoolSize = UDPReassembler.DEFAULT_POOL_SIZE;
+    /**
+     * 不分片时在接收线程上重组
+     */
+    private final UDPReassembler mReassembler = new UDPReassembler();
+    private Shard[] mShards = null;
+    private Executor mShardExecutor = null;
+    private UDPPackageProtocol.ReceiveCompleteCallback mCallback;
+    /**
+     * 分片缓冲满被丢弃的数据报数量，只在接收线程上写
+     */
+    private volatile long mDroppedDatagramCount = 0;
+
+    /**
+     * @param channel 已绑定的channel，只接收，或已connect时发往对端
+     */
+    public UDPChannelProtocol(DatagramChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * @param channel     channel
+     * @param sendAddress 发送地址，为null时channel需要已connect
+     */
+    public UDPChannelProtocol(DatagramChannel channel, SocketAddress sendAddress) {
+        this.channel = channel;
+        this.sendAddress = sendAddress;
+    }
+
+    /**
+     * 数据报长度，包括协议头，需要在收发之前设置，见{@link UDPPackageProtocol#setDatagramSize(int)}
+     *
+     * @param datagramSize 数据报长度，默认发送{@link UDPPackageProtocol#DEFAULT_DATAGRAM_SIZE}，默认接收{@link UDPPackageProtocol#MAX_DATAGRAM_SIZE}
+     */
+    public void setDatagramSize(int datagramSize) {
+        if (datagramSize <= UDPPackageProtocol.HEADER_LENGTH || datagramSize > UDPPackageProtocol.MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("datagramSize: " + datagramSize);
+        }
+        synchronized (this) {
+            sendBuffer = ByteBuffer.allocateDirect(datagramSize);
+            rangeCapacity = datagramSize - UDPPackageProtocol.HEADER_LENGTH;
+        }
+        receiveBuffer = ByteBuffer.allocateDirect(datagramSize);
+    }
+
+    /**
+     * 按MTU设置数据报长度，减去IP和UDP头，IP版本按发送地址判断
+     *
+     * @param mtu MTU，如{@link java.net.NetworkInterface#getMTU()}
+     */
+    public void setDatagramSizeForMtu(int mtu) {
+        setDatagramSize(Math.min(mtu - ipHeaderLength() - UDPPackageProtocol.UDP_HEADER_LENGTH, UDPPackageProtocol.MAX_DATAGRAM_SIZE));
+    }
+
+    private int ipHeaderLength() {
+        boolean ipv6 = sendAddress instanceof InetSocketAddress && ((InetSocketAddress) sendAddress).getAddress() instanceof Inet6Address;
+        return ipv6 ? UDPPackageProtocol.IPV6_HEADER_LENGTH : UDPPackageProtocol.IPV4_HEADER_LENGTH;
+    }
+
+    /**
+     * 加入组播组，channel需要用{@link DatagramChannel#open(java.net.ProtocolFamily)}按组地址的协议族打开，并绑定到组播端口
+     * 多个进程接收同一端口时绑定前设置{@link StandardSocketOptions#SO_REUSEADDR}
+     *
+     * @param group            组地址
+     * @param networkInterface 接收的网卡
+     * @throws IOException 加入失败
+     */
+    public void joinGroup(InetAddress group, NetworkInterface networkInterface) throws IOException {
+        MembershipKey key = channel.join(group, networkInterface);
+        synchronized (mMemberships) {
+            if (!mMemberships.contains(key)) {
+                mMemberships.add(key);
+            }
+        }
+    }
+
+    /**
+     * 离开组播组，没有加入时忽略
+     *
+     * @param group            组地址
+     * @param networkInterface 加入时的网卡
+     */
+    public void leaveGroup(InetAddress group, NetworkInterface networkInterface) {
+        synchronized (mMemberships) {
+            for (int i = mMemberships.size() - 1; i >= 0; i--) {
+                MembershipKey key = mMemberships.get(i);
+                if (key.group().equals(group) && key.networkInterface().equals(networkInterface)) {
+                    key.drop();
+                    mMemberships.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * 组播发送的网卡，回环测试时设为loopback网卡
+     *
+     * @param networkInterface 网卡
+     * @throws IOException 设置失败
+     */
+    public void setMulticastInterface(NetworkInterface networkInterface) throws IOException {
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+    }
+
+    /**
+     * 组播发送的TTL
+     *
+     * @param ttl 经过的路由数量，默认1，只在本网段
+     * @throws IOException 设置失败
+     */
+    public void setMulticastTimeToLive(int ttl) throws IOException {
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+    }
+
+    /**
+     * 发送限速，见{@link UDPPackageProtocol#setPacing(long, int)}，等待令牌时持有发送锁
+     *
+     * @param bitsPerSecond 目标速率/bit/s，0为不限速
+     * @param burstBytes    突发长度
+     */
+    public void setPacing(long bitsPerSecond, int burstBytes) {
+        UDPPacer pacer = bitsPerSecond == 0 ? null
+                : new UDPPacer(bitsPerSecond, burstBytes, ipHeaderLength() + UDPPackageProtocol.UDP_HEADER_LENGTH);
+        synchronized (this) {
+            this.pacer = pacer;
+        }
+    }
+
+    /**
+     * @return 限速时发送消息期间的实际速率/bit/s，包括IP和UDP头，没有限速时为0
+     */
+    public long getPacedBitsPerSecond() {
+        UDPPacer pacer = this.pacer;
+        return pacer == null ? 0 : pacer.achievedBitsPerSecond();
+    }
+
+    /**
+     * @return 限速时数据报等待发送的平均时间/ns
+     */
+    public long getPacingDelayNanos() {
+        UDPPacer pacer = this.pacer;
+        return pacer == null ? 0 : pacer.averageDelayNanos();
+    }
+
+    /**
+     * @return 限速时数据报等待发送的最长时间/ns
+     */
+    public long getMaxPacingDelayNanos() {
+        UDPPacer pacer = this.pacer;
+        return pacer == null ? 0 : pacer.maxDelayNanos();
+    }
+
+    /**
+     * 开启压缩，见{@link UDPPackageProtocol#setCompressionThreshold(int)}
+     * 不支持可靠模式，没有回程，{@link #setPeerAcceptsCompression(boolean)}之后才压缩
+     *
+     * @param threshold 不小于该长度的数据压缩发送，-1为不压缩
+     */
+    public synchronized void setCompressionThreshold(int threshold) {
+        if (threshold < FrameCompression.DISABLED) {
+            throw new IllegalArgumentException("threshold: " + threshold);
+        }
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * 声明接收端能解压，接收端通过其他途径确认后设置，见{@link UDPPackageProtocol#setPeerAcceptsCompression(boolean)}
+     *
+     * @param accepts 接收端是否能解压，默认false
+     */
+    public synchronized void setPeerAcceptsCompression(boolean accepts) {
+        this.peerAcceptsCompression = accepts;
+    }
+
+    /**
+     * 接收端分片重组，需要在开始接收之前设置
+     * 回调在分片线程上，不同消息的回调可能并发
+     *
+     * @param shards   分片数量，1为在接收线程上重组
+     * @param executor 运行分片的线程池，需要能同时运行shards个任务
+     */
+    public void setShards(int shards, Executor executor) {
+        if (shards <= 0 || (shards > 1 && executor == null)) {
+            throw new IllegalArgumentException("shards: " + shards + ", executor: " + executor);
+        }
+        if (shards == 1) {
+            mShards = null;
+            mShardExecutor = null;
+            applyReassemblyConfig();
+            return;
+        }
+        Shard[] array = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            array[i] = new Shard();
+        }
+        mShards = array;
+        mShardExecutor = executor;
+        applyReassemblyConfig();
+    }
+
+    /**
+     * 未完成消息的保留时间，见{@link UDPPackageProtocol#setReassemblyTimeout(long, TimeUnit)}
+     *
+     * @param timeout 保留时间，默认5s
+     * @param unit    单位
+     */
+    public void setReassemblyTimeout(long timeout, TimeUnit unit) {
+        long timeoutNanos = unit.toNanos(timeout);
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("timeout: " + timeout);
+        }
+        reassemblyTimeoutNanos = timeoutNanos;
+        applyReassemblyConfig();
+    }
+
+    /**
+     * 未完成消息占用的最大字节数，分片时每个分片平分
+     * 同时限制压缩消息解压后的长度，分片时为每个分片的字节数，超过的消息丢弃，不分配内存
+     *
+     * @param maxBytes 最大字节数，默认64M
+     */
+    public void setReassemblyMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        }
+        reassemblyMaxBytes = maxBytes;
+        applyReassemblyConfig();
+    }
+
+    /**
+     * @param dropCallback 丢弃未完成消息时回调，分片时在分片线程上回调
+     */
+    public void setDropCallback(UDPPackageProtocol.DropCallback dropCallback) {
+        this.dropCallback = dropCallback;
+        applyReassemblyConfig();
+    }
+
+    /**
+     * @return 累计丢弃的未完成消息数量
+     */
+    public long getDroppedCount() {
+        Shard[] shards = mShards;
+        if (shards == null) {
+            return mReassembler.droppedCount();
+        }
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.reassembler.droppedCount();
+        }
+        return count;
+    }
+
+    /**
+     * 重组状态池的大小，见{@link UDPPackageProtocol#setReceivePoolSize(int)}，分片时每个分片一个池
+     *
+     * @param poolSize 每个池保留的数量，默认64，0为不回收
+     */
+    public void setReceivePoolSize(int poolSize) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("poolSize: " + poolSize);
+        }
+        this.receivePoolSize = poolSize;
+        applyReassemblyConfig();
+    }
+
+    /**
+     * @return 从池中复用重组状态的次数
+     */
+    public long getReceivePoolHitCount() {
+        Shard[] shards = mShards;
+        if (shards == null) {
+            return mReassembler.poolHits();
+        }
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.reassembler.poolHits();
+        }
+        return count;
+    }
+
+    /**
+     * @return 池为空时新建重组状态的次数
+     */
+    public long getReceivePoolMissCount() {
+        Shard[] shards = mShards;
+        if (shards == null) {
+            return mReassembler.poolMisses();
+        }
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.reassembler.poolMisses();
+        }
+        return count;
+    }
+
+    /**
+     * @return 分片来不及处理被丢弃的数据报数量，不含内核丢弃的
+     */
+    public long getDroppedDatagramCount() {
+        return mDroppedDatagramCount;
+    }
+
+    private void applyReassemblyConfig() {
+        Shard[] shards = mShards;
+        if (shards == null) {
+            configure(mReassembler, reassemblyMaxBytes);
+            return;
+        }
+        for (Shard shard : shards) {
+            configure(shard.reassembler, Math.max(1, reassemblyMaxBytes / shards.length));
+        }
+    }
+
+    private void configure(UDPReassembler reassembler, long maxBytes) {
+        reassembler.setTimeoutNanos(reassemblyTimeoutNanos);
+        reassembler.setMaxBytes(maxBytes);
+        reassembler.setDropCallback(dropCallback);
+        reassembler.setPoolSize(receivePoolSize);
+    }
+
+    /**
+     * 开始接受数据，阻塞方法，channel需要为阻塞模式
+     *
+     * @throws InterruptedException 线程中断或channel关闭
+     */
+    public void receive(UDPPackageProtocol.ReceiveCompleteCallback callback) throws InterruptedException {
+        start(callback);
+        try {
+            while (!Thread.interrupted()) {
+                ByteBuffer buffer = receiveBuffer;
+                buffer.clear();
+                try {
+                    if (channel.receive(buffer) == null) {
+                        continue;
+                    }
+                    buffer.flip();
+                    dispatch(buffer);
+                } catch (IOException e) {
+                    if (!channel.isOpen()) {
+                        throw new InterruptedException(e.getMessage());
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } finally {
+            stopShards();
+        }
+    }
+
+    /**
+     * 注册到循环上非阻塞接收，循环停止或调用{@link #close()}后停止
+     *
+     * @param eventLoop 循环
+     * @param callback  完整数据回调，不分片时在循环线程上回调
+     * @throws IOException 设置非阻塞模式失败
+     */
+    public void register(EventLoop eventLoop, UDPPackageProtocol.ReceiveCompleteCallback callback) throws IOException {
+        channel.configureBlocking(false);
+        start(callback);
+        eventLoop.register(channel, SelectionKey.OP_READ, new EventLoop.Handler() {
+            @Override
+            public void select(SelectionKey key) throws IOException {
+                read();
+            }
+
+            @Override
+            public void closed(SelectionKey key) {
+                stopShards();
+            }
+        });
+    }
+
+    /**
+     * 停止分片并关闭channel
+     */
+    public void close() {
+        stopShards();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /*ignore*/
+        }
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = receiveBuffer;
+        for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+            buffer.clear();
+            if (channel.receive(buffer) == null) {
+                return;
+            }
+            buffer.flip();
+            dispatch(buffer);
+        }
+    }
+
+    private void start(UDPPackageProtocol.ReceiveCompleteCallback callback) {
+        mCallback = callback;
+        Shard[] shards = mShards;
+        if (shards != null) {
+            for (Shard shard : shards) {
+                shard.start(callback);
+                mShardExecutor.execute(shard);
+            }
+        }
+    }
+
+    private void stopShards() {
+        Shard[] shards = mShards;
+        if (shards != null) {
+            for (Shard shard : shards) {
+                shard.stop();
+            }
+        }
+    }
+
+    /**
+     * 不分片时直接重组，否则按id散列拷贝进分片的缓冲区
+     */
+    private void dispatch(ByteBuffer datagram) throws IOException {
+        Shard[] shards = mShards;
+        if (shards == null) {
+            UDPPackageProtocol.receiveFragment(mReassembler, datagram, mCallback, null);
+            return;
+        }
+        if (datagram.remaining() < UDPPackageProtocol.HEADER_LENGTH) {
+            return;
+        }
+        long id = datagram.getLong(datagram.position() + UDPPackageProtocol.ID_OFFSET);
+        int hash = (int) (id ^ (id >>> 32));
+        hash ^= hash >>> 16;
+        if (!shards[(hash & Integer.MAX_VALUE) % shards.length].offer(datagram)) {
+            mDroppedDatagramCount++;
+        }
+    }
+
+    /**
+     * 发送数据，线程安全，非阻塞channel发送缓冲区满时挂起等待，限速时阻塞到所有分段发出
+     *
+     * @param data 待发送数据
+     * @throws IOException 发送失败，等待时线程中断为{@link InterruptedIOException}
+     */
+    public synchronized void send(byte[] data) throws IOException {
+        byte[] content = data;
+        int contentLength = data.length;
+        int contentLengthField = contentLength;
+        if (peerAcceptsCompression && FrameCompression.shouldCompress(compressionThreshold, data.length)) {
+            byte[] compressed = FrameCompression.buffer(data.length);
+            int compressedLength = FrameCompression.compress(data, 0, data.length, compressed);
+            if (compressedLength > 0) {
+                content = compressed;
+                contentLength = compressedLength;
+                contentLengthField = compressedLength | FrameCompression.COMPRESSED_FLAG;
+            }
+        }
+        int rangeCapacity = this.rangeCapacity;
+        /*空数据也发送一个分段*/
+        int rangeSize = Math.max(1, (contentLength + rangeCapacity - 1) / rangeCapacity);
+        long id = idNonce | (idSequence++ & 0xffffffffL);
+        UDPPacer pacer = this.pacer;
+        if (pacer != null) {
+            pacer.begin();
+        }
+        try {
+            sendFragments(id, rangeSize, content, contentLength, contentLengthField, pacer);
+        } finally {
+            if (pacer != null) {
+                pacer.end();
+            }
+        }
+    }
+
+    private void sendFragments(long id, int rangeSize, byte[] content, int contentLength, int contentLengthField,
+                               UDPPacer pacer) throws IOException {
+        int rangeCapacity = this.rangeCapacity;
+        ByteBuffer sendBuffer = this.sendBuffer;
+        for (int i = 0; i < rangeSize; i++) {
+            int offset = rangeCapacity * i;
+            int rangeLength = Math.min(rangeCapacity, contentLength - offset);
+            sendBuffer.clear();
+            UDPPackageProtocol.putHeader(sendBuffer, UDPPackageProtocol.TYPE_DATA, id, rangeSize, i + 1, rangeLength, contentLengthField);
+            sendBuffer.put(content, offset, rangeLength);
+            sendBuffer.flip();
+            if (pacer != null) {
+                pacer.acquire(sendBuffer.remaining());
+            }
+            long backoffNanos = SEND_BACKOFF_MIN_NANOS;
+            while ((sendAddress == null ? channel.write(sendBuffer) : channel.send(sendBuffer, sendAddress)) == 0) {
+                /*非阻塞channel发送缓冲区满，挂起退避，不在实例锁内空转*/
+                LockSupport.parkNanos(backoffNanos);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Send interrupted");
+                }
+                backoffNanos = Math.min(backoffNanos << 1, SEND_BACKOFF_MAX_NANOS);
+            }
+        }
+    }
+
+    /**
+     * 一个重组分片，单生产者单消费者的环形缓冲区，数据报按[length:4][datagram]连续存放
+     * 末尾放不下时写-1跳到开头，不足4字节时直接跳过
+     */
+    private static final class Shard implements Runnable {
+
+        private final UDPReassembler reassembler = new UDPReassembler();
+        private final byte[] mRing = new byte[SHARD_BUFFER_SIZE];
+        /**
+         * 生产者写长度位
+         */
+        private final ByteBuffer mWriteBuffer = ByteBuffer.wrap(mRing);
+        /**
+         * 消费者读数据报
+         */
+        private final ByteBuffer mReadBuffer = ByteBuffer.wrap(mRing);
+        /**
+         * 已读和已写的总字节数，只增不减
+         */
+        private volatile long mHead = 0;
+        private volatile long mTail = 0;
+        private volatile boolean mWaiting = false;
+        private volatile boolean mRunning = false;
+        /**
+         * 从start到任务退出，停止后重新接收时等上一次的任务退出
+         */
+        private volatile boolean mActive = false;
+        private volatile Thread mThread;
+        private volatile UDPPackageProtocol.ReceiveCompleteCallback callback;
+
+        /**
+         * 接收线程调用
+         *
+         * @return 缓冲区满时返回false
+         */
+        boolean offer(ByteBuffer datagram) {
+            int length = datagram.remaining();
+            int need = 4 + length;
+            long tail = mTail;
+            int index = (int) (tail % mRing.length);
+            int skip = mRing.length - index < need ? mRing.length - index : 0;
+            if (tail + skip + need - mHead > mRing.length) {
+                return false;
+            }
+            if (skip > 0) {
+                if (skip >= 4) {
+                    mWriteBuffer.putInt(index, -1);
+                }
+                tail += skip;
+                index = 0;
+            }
+            mWriteBuffer.putInt(index, length);
+            datagram.get(mRing, index + 4, length);
+            mTail = tail + need;
+            if (mWaiting) {
+                Thread thread = mThread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 接收线程在提交任务前调用，丢弃上一次接收未处理的数据报
+         */
+        void start(UDPPackageProtocol.ReceiveCompleteCallback callback) {
+            while (mActive) {
+                /*上一次的任务还在处理当前数据报*/
+                LockSupport.parkNanos(100_000L);
+            }
+            mHead = 0;
+            mTail = 0;
+            this.callback = callback;
+            mRunning = true;
+            mActive = true;
+        }
+
+        void stop() {
+            mRunning = false;
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            mThread = Thread.currentThread();
+            try {
+                while (mRunning) {
+                    long head = mHead;
+                    if (head == mTail) {
+                        mWaiting = true;
+                        if (head == mTail && mRunning) {
+                            LockSupport.park(this);
+                        }
+                        mWaiting = false;
+                        continue;
+                    }
+                    int index = (int) (head % mRing.length);
+                    int rest = mRing.length - index;
+                    int length = rest < 4 ? -1 : mReadBuffer.clear().getInt(index);
+                    if (length < 0) {
+                        mHead = head + rest;
+                        continue;
+                    }
+                    mReadBuffer.limit(index + 4 + length).position(index + 4);
+                    try {
+                        UDPPackageProtocol.receiveFragment(reassembler, mReadBuffer, callback, null);
+                    } catch (Throwable e) {
+                        /*包括回调抛出的Error，分片线程退出后start会一直等待mActive*/
+                        e.printStackTrace();
+                    }
+                    mHead = head + 4 + length;
+                }
+            } finally {
+                mThread = null;
+                mActive = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Random;
+
+/**
+ * 丢包和乱序模拟，在回环上测试可靠模式，见{@link UDPPackageProtocol#setLossSimulator(UDPLossSimulator)}
+ * 每个发出的数据报按丢包率丢弃，按乱序率暂存，在下一个数据报之后发出
+ * 线程安全，可以同时设置给发送端和接收端
+ */
+public class UDPLossSimulator {
+
+    private final double lossRate;
+    private final double reorderRate;
+    private final Random random;
+
+    /**
+     * 暂存的数据报，同一时间最多一个
+     */
+    private final byte[] mHeldBytes = new byte[UDPPackageProtocol.MAX_DATAGRAM_SIZE];
+    private final DatagramPacket mHeldPacket = new DatagramPacket(mHeldBytes, 0);
+    private DatagramSocket mHeldSocket = null;
+
+    private long mDroppedCount = 0;
+    private long mReorderedCount = 0;
+
+    /**
+     * @param lossRate    丢包率，0-1
+     * @param reorderRate 乱序率，0-1
+     * @param seed        随机种子，相同种子的丢包顺序相同
+     */
+    public UDPLossSimulator(double lossRate, double reorderRate, long seed) {
+        if (lossRate < 0 || lossRate > 1 || reorderRate < 0 || reorderRate > 1) {
+            throw new IllegalArgumentException("lossRate: " + lossRate + ", reorderRate: " + reorderRate);
+        }
+        this.lossRate = lossRate;
+        this.reorderRate = reorderRate;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * 代替{@link DatagramSocket#send(DatagramPacket)}
+     */
+    synchronized void send(DatagramSocket socket, DatagramPacket packet) throws IOException {
+        if (random.nextDouble() < lossRate) {
+            mDroppedCount++;
+            return;
+        }
+        if (mHeldSocket == null && random.nextDouble() < reorderRate) {
+            System.arraycopy(packet.getData(), packet.getOffset(), mHeldBytes, 0, packet.getLength());
+            mHeldPacket.setData(mHeldBytes, 0, packet.getLength());
+            mHeldPacket.setAddress(packet.getAddress());
+            mHeldPacket.setPort(packet.getPort());
+            mHeldSocket = socket;
+            return;
+        }
+        socket.send(packet);
+        if (mHeldSocket != null) {
+            DatagramSocket heldSocket = mHeldSocket;
+            mHeldSocket = null;
+            mReorderedCount++;
+            heldSocket.send(mHeldPacket);
+        }
+    }
+
+    /**
+     * @return 丢弃的数据报数量
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return 乱序发出的数据报数量
+     */
+    public synchronized long getReorderedCount() {
+        return mReorderedCount;
+    }
+}
@@ -0,0 +1,140 @@
+package com.nullpt.utils.sockets;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 发送限速，令牌桶，见{@link UDPPackageProtocol#setPacing(long, int)}
+ * 令牌按字节计，以目标速率持续补充，最多积累burst字节，每个数据报按长度加IP和UDP头消耗令牌
+ * 令牌不足时记为欠账，按欠账计算到期时间，用{@link LockSupport#parkNanos(long)}挂起到期，不空转
+ * 挂起精度受系统定时器影响，多睡的时间积累为令牌，之后的数据报连续发出补上，平均速率不变，突发不超过burst
+ * 非线程安全，每个发送端一个，统计可以在其他线程读取
+ */
+final class UDPPacer {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long bytesPerSecond;
+    /**
+     * 令牌以 字节 * 10^9 为单位，每ns补充bytesPerSecond，避免除法的舍入
+     */
+    private final long capacity;
+    /**
+     * 每个数据报额外计算的IP和UDP头长度
+     */
+    private final int overhead;
+    private long tokens;
+    private long lastRefill;
+
+    /**
+     * 当前消息开始发送的时间
+     */
+    private long mMessageStart = 0;
+    private volatile long mSentBytes = 0;
+    private volatile long mSentDatagrams = 0;
+    private volatile long mSendingNanos = 0;
+    private volatile long mDelayNanos = 0;
+    private volatile long mMaxDelayNanos = 0;
+
+    /**
+     * @param bitsPerSecond 目标速率/bit/s
+     * @param burstBytes    令牌桶容量/字节
+     * @param overhead      每个数据报额外计算的字节数
+     */
+    UDPPacer(long bitsPerSecond, int burstBytes, int overhead) {
+        if (bitsPerSecond < 8 || burstBytes <= 0) {
+            throw new IllegalArgumentException("bitsPerSecond: " + bitsPerSecond + ", burstBytes: " + burstBytes);
+        }
+        this.bytesPerSecond = bitsPerSecond / 8;
+        this.capacity = burstBytes * NANOS_PER_SECOND;
+        this.overhead = overhead;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * 开始发送一条消息，用于统计实际速率
+     */
+    void begin() {
+        mMessageStart = System.nanoTime();
+    }
+
+    /**
+     * 消息发送完成
+     */
+    void end() {
+        mSendingNanos += System.nanoTime() - mMessageStart;
+    }
+
+    /**
+     * 等待发送一个数据报的令牌
+     *
+     * @param length 数据报长度
+     * @throws InterruptedIOException 等待时线程中断
+     */
+    void acquire(int length) throws InterruptedIOException {
+        long now = System.nanoTime();
+        refill(now);
+        int bytes = length + overhead;
+        tokens -= bytes * NANOS_PER_SECOND;
+        long delay = 0;
+        if (tokens < 0) {
+            long deadline = now + (-tokens + bytesPerSecond - 1) / bytesPerSecond;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Pacing interrupted");
+                }
+            }
+            long sendTime = System.nanoTime();
+            refill(sendTime);
+            delay = sendTime - now;
+        }
+        mSentBytes += bytes;
+        mSentDatagrams++;
+        if (delay > 0) {
+            mDelayNanos += delay;
+            if (delay > mMaxDelayNanos) {
+                mMaxDelayNanos = delay;
+            }
+        }
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        lastRefill = now;
+        if (elapsed <= 0) {
+            return;
+        }
+        /*先比较时间，避免长时间空闲后乘法溢出*/
+        if (elapsed >= (capacity - tokens) / bytesPerSecond) {
+            tokens = capacity;
+        } else {
+            tokens += elapsed * bytesPerSecond;
+        }
+    }
+
+    /**
+     * @return 发送消息期间的实际速率/bit/s，包括IP和UDP头
+     */
+    long achievedBitsPerSecond() {
+        long sendingNanos = mSendingNanos;
+        return sendingNanos <= 0 ? 0 : (long) (mSentBytes * 8.0 * NANOS_PER_SECOND / sendingNanos);
+    }
+
+    /**
+     * @return 数据报等待令牌的平均时间/ns，不需要等待的计为0
+     */
+    long averageDelayNanos() {
+        long datagrams = mSentDatagrams;
+        return datagrams == 0 ? 0 : mDelayNanos / datagrams;
+    }
+
+    /**
+     * @return 数据报等待令牌的最长时间/ns
+     */
+    long maxDelayNanos() {
+        return mMaxDelayNanos;
+    }
+}
@@ -3,23 +3,39 @@ package com.nullpt.utils.sockets;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.nio.ByteBuffer;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * UDP数据包协议
- * [id-time/ms:32][range-size:4][range-index:4][range-length:4][content-length:4][data:32K]
+ * [type:1][id:8][range-size:4][range-index:4][range-length:2][compressed:1|content-length:31][data:range-length]
+ * id高32位是发送端创建时生成的随机数，低32位是发送序号，同一发送端的消息不会重复
+ * 接收时在数据报数组上按绝对位置解析头部，重组状态按id存放，每个数据报不分配对象
+ * 每个数据报只发送实际的分段长度，分段长度由{@link #setDatagramSize(int)}决定，默认不超过以太网MTU，避免IP分片
+ * 压缩在分段之前，压缩后的数据格式见{@link FrameCompression}，分段数量随之减少，接收端声明能解压后才压缩，见{@link #setCompressionThreshold(int)}
+ * 接收端重组见{@link UDPReassembler}，未完成的消息超时或超过内存预算时丢弃
+ * 可靠模式见{@link #setReliable(boolean)}，type带可靠标记，接收端按请求回复确认，确认的type带{@link #FLAG_ACK_COMPRESSION}声明能解压
+ * [type:1][id:8][range-size:4][ack-offset:4][bitmap-length:2][bitmap:bitmap-length]
+ * 前向纠错见{@link #setForwardErrorCorrection(int, int)}，数据分段带校验标记，每组数据分段之后发送校验分段
+ * [type:1][id:8][range-size:4][parity-index:4][range-length:2][compressed:1|content-length:31][group-size:1][parity-count:1][parity:range-length]
+ * 组播时发送地址为组地址，每条消息只分段发送一次，接收socket为{@link MulticastSocket}，见{@link #joinGroup(InetAddress, NetworkInterface)}
  */
 public class UDPPackageProtocol {
 
+    /**
+     * 类型位
+     */
+    private static final int TYPE_LENGTH = 1;
     /**
      * id位
      */
-    private static final int ID_LENGTH = 32;
+    private static final int ID_LENGTH = 8;
     /**
      * 分段数量位
      */
@@ -31,36 +47,121 @@ public class UDPPackageProtocol {
     /**
      * 分段长度位
      */
-    private static final int RANGE_LENGTH_LENGTH = 4;
+    private static final int RANGE_LENGTH_LENGTH = 2;
     /**
      * 总长度位
      */
     private static final int CONTENT_LENGTH_LENGTH = 4;
     /**
-     * 数据位
+     * 头部总长度
      */
-    private static final int DATA_LENGTH = 1024 * 32;
+    static final int HEADER_LENGTH = TYPE_LENGTH + ID_LENGTH + RANGE_SIZE_LENGTH + RANGE_INDEX_LENGTH + RANGE_LENGTH_LENGTH + CONTENT_LENGTH_LENGTH;
+    static final int ID_OFFSET = TYPE_LENGTH;
+    private static final int RANGE_SIZE_OFFSET = ID_OFFSET + ID_LENGTH;
+    private static final int RANGE_INDEX_OFFSET = RANGE_SIZE_OFFSET + RANGE_SIZE_LENGTH;
+    private static final int RANGE_LENGTH_OFFSET = RANGE_INDEX_OFFSET + RANGE_INDEX_LENGTH;
+    private static final int CONTENT_LENGTH_OFFSET = RANGE_LENGTH_OFFSET + RANGE_LENGTH_LENGTH;
     /**
-     * 数据位总长度
+     * 数据分段，旧格式的id是ascii数字，第一个字节在0x30-0x39，带未定义的标记位，收到时丢弃
      */
-    private static final int PACK_LENGTH = ID_LENGTH + RANGE_SIZE_LENGTH + RANGE_INDEX_LENGTH + RANGE_LENGTH_LENGTH + CONTENT_LENGTH_LENGTH + DATA_LENGTH;
+    static final byte TYPE_DATA = 1;
+    /**
+     * 可靠模式的确认
+     */
+    static final byte TYPE_ACK = 2;
+    /**
+     * 前向纠错的校验分段
+     */
+    static final byte TYPE_PARITY = 3;
+    /**
+     * 可靠消息，接收端记住已完成的id，不重复交付
+     */
+    static final int FLAG_RELIABLE = 0x80;
+    /**
+     * 请求接收端回复确认
+     */
+    static final int FLAG_ACK_REQUEST = 0x40;
+    /**
+     * 带校验分段的消息，接收端同样记住已完成的id
+     */
+    static final int FLAG_FEC = 0x20;
+    /**
+     * 确认的标记，接收端能解压
+     */
+    static final int FLAG_ACK_COMPRESSION = 0x10;
+    private static final int GROUP_SIZE_OFFSET = HEADER_LENGTH;
+    private static final int PARITY_COUNT_OFFSET = GROUP_SIZE_OFFSET + 1;
+    /**
+     * 校验分段头部长度
+     */
+    static final int PARITY_HEADER_LENGTH = PARITY_COUNT_OFFSET + 1;
+    static final int ACK_RANGE_SIZE_OFFSET = RANGE_SIZE_OFFSET;
+    static final int ACK_OFFSET_OFFSET = ACK_RANGE_SIZE_OFFSET + RANGE_SIZE_LENGTH;
+    static final int ACK_BITMAP_LENGTH_OFFSET = ACK_OFFSET_OFFSET + 4;
+    /**
+     * 确认头部长度
+     */
+    static final int ACK_HEADER_LENGTH = ACK_BITMAP_LENGTH_OFFSET + 2;
+    /**
+     * 确认位图最大长度，确认数据报不超过以太网MTU
+     */
+    static final int MAX_ACK_BITMAP_LENGTH = 1024;
+    /**
+     * 默认数据报长度，1500的以太网MTU减去IPv4和UDP头
+     */
+    public static final int DEFAULT_DATAGRAM_SIZE = 1472;
+    /**
+     * 最大数据报长度，也是默认的接收缓冲区长度
+     */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+    static final int IPV4_HEADER_LENGTH = 20;
+    static final int IPV6_HEADER_LENGTH = 40;
+    static final int UDP_HEADER_LENGTH = 8;
 
     private DatagramSocket receiveDatagramSocket;
     private DatagramPacket receiveDatagramPacket;
-    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(PACK_LENGTH);
-    private final byte[] receiveBytes = new byte[PACK_LENGTH];
-    private final byte[] receiveIdData = new byte[ID_LENGTH];
-    private final byte[] receiveRangeSizeData = new byte[RANGE_SIZE_LENGTH];
-    private final byte[] receiveRangeIndexData = new byte[RANGE_INDEX_LENGTH];
-    private final byte[] receiveRangeLengthData = new byte[RANGE_LENGTH_LENGTH];
-    private final byte[] receiveContentLengthData = new byte[CONTENT_LENGTH_LENGTH];
-    private final byte[] receiveData = new byte[DATA_LENGTH];
-    private final LinkedHashMap<String, LinkedList<ReceivePack>> mReceivePacks = new LinkedHashMap<>();
+    private byte[] receiveBytes = new byte[MAX_DATAGRAM_SIZE];
+    private ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveBytes);
+    private final UDPReassembler mReassembler = new UDPReassembler();
+    private final byte[] ackBytes = new byte[ACK_HEADER_LENGTH + MAX_ACK_BITMAP_LENGTH];
+    private final ByteBuffer ackBuffer = ByteBuffer.wrap(ackBytes);
+    private final DatagramPacket ackPacket = new DatagramPacket(ackBytes, ackBytes.length);
 
     private DatagramSocket sendDatagramSocket;
     private DatagramPacket sendDatagramPacket;
-    private final ByteBuffer sendBuffer = ByteBuffer.allocate(PACK_LENGTH);
-    private final byte[] sendBytes = new byte[PACK_LENGTH];
+    private InetAddress sendInetAddress;
+    private byte[] sendBytes = new byte[DEFAULT_DATAGRAM_SIZE];
+    private ByteBuffer sendBuffer = ByteBuffer.wrap(sendBytes);
+    /**
+     * 每个分段的数据长度
+     */
+    private int rangeCapacity = DEFAULT_DATAGRAM_SIZE - HEADER_LENGTH;
+    /**
+     * id高32位，每个发送端随机生成
+     */
+    private final long idNonce = (long) ThreadLocalRandom.current().nextInt() << 32;
+    /**
+     * id低32位，每条消息加一
+     */
+    private int idSequence = 0;
+    /**
+     * 压缩阈值，不小于该长度的数据压缩发送
+     */
+    private int compressionThreshold = FrameCompression.DISABLED;
+    /**
+     * 接收端能解压，见{@link #setPeerAcceptsCompression(boolean)}
+     */
+    private volatile boolean peerAcceptsCompression = false;
+    private boolean reliable = false;
+    /**
+     * 每组数据和校验分段数量，0为不发送校验分段
+     */
+    private int fecGroupSize = 0;
+    private int fecParityCount = 0;
+    private byte[][] parityBlocks = new byte[0][];
+    private UDPReliableSender reliableSender = null;
+    private volatile UDPLossSimulator lossSimulator = null;
+    private volatile UDPPacer pacer = null;
 
     /**
      * @param receiveDatagramSocket 接收socket
@@ -91,10 +192,332 @@ public class UDPPackageProtocol {
         }
         if (sendDatagramSocket != null) {
             this.sendDatagramSocket = sendDatagramSocket;
-            this.sendDatagramPacket = new DatagramPacket(new byte[0], 0, sendInetAddress, sendPort);
+            this.sendDatagramPacket = new DatagramPacket(sendBytes, 0, sendInetAddress, sendPort);
+            this.sendInetAddress = sendInetAddress;
+        }
+    }
+
+    /**
+     * 数据报长度，包括协议头，需要在收发之前设置
+     * 发送时每个分段的数据长度为该值减去协议头，接收缓冲区为该值，对端发送更大的数据报时被截断丢弃
+     * 跨网络发送时应不超过路径MTU，见{@link #setDatagramSizeForMtu(int)}
+     *
+     * @param datagramSize 数据报长度，默认发送{@link #DEFAULT_DATAGRAM_SIZE}，默认接收{@link #MAX_DATAGRAM_SIZE}
+     */
+    public void setDatagramSize(int datagramSize) {
+        if (datagramSize <= HEADER_LENGTH || datagramSize > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("datagramSize: " + datagramSize);
+        }
+        if (fecParityCount > 0 && datagramSize <= PARITY_HEADER_LENGTH) {
+            throw new IllegalArgumentException("datagramSize: " + datagramSize);
+        }
+        if (sendDatagramSocket != null) {
+            sendBytes = new byte[datagramSize];
+            sendBuffer = ByteBuffer.wrap(sendBytes);
+            rangeCapacity = datagramSize - (fecParityCount > 0 ? PARITY_HEADER_LENGTH : HEADER_LENGTH);
+            resizeParityBlocks();
+        }
+        if (receiveDatagramSocket != null) {
+            receiveBytes = new byte[datagramSize];
+            receiveBuffer = ByteBuffer.wrap(receiveBytes);
+            receiveDatagramPacket = new DatagramPacket(receiveBytes, receiveBytes.length);
+        }
+    }
+
+    /**
+     * 按MTU设置数据报长度，减去IP和UDP头，IP版本按发送地址判断
+     *
+     * @param mtu MTU，如{@link java.net.NetworkInterface#getMTU()}
+     */
+    public void setDatagramSizeForMtu(int mtu) {
+        int ipHeaderLength = sendInetAddress instanceof Inet6Address ? IPV6_HEADER_LENGTH : IPV4_HEADER_LENGTH;
+        setDatagramSize(Math.min(mtu - ipHeaderLength - UDP_HEADER_LENGTH, MAX_DATAGRAM_SIZE));
+    }
+
+    /**
+     * 开启压缩，压缩后不比原数据小的仍按原数据发送，接收端声明能解压之后才压缩
+     * 可靠模式下接收端在确认中声明，收到第一个声明的确认之后的消息压缩
+     * 其他模式没有回程，需要与接收端协商后调用{@link #setPeerAcceptsCompression(boolean)}，组播时所有接收端都需要能解压
+     *
+     * @param threshold 不小于该长度的数据压缩发送，-1为不压缩
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < FrameCompression.DISABLED) {
+            throw new IllegalArgumentException("threshold: " + threshold);
+        }
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * 声明接收端能解压，用于没有回程的非可靠模式和组播，接收端通过其他途径确认后设置
+     *
+     * @param accepts 接收端是否能解压，默认false
+     */
+    public void setPeerAcceptsCompression(boolean accepts) {
+        this.peerAcceptsCompression = accepts;
+    }
+
+    /**
+     * 未完成消息的保留时间，超时后丢弃
+     *
+     * @param timeout 保留时间，默认5s
+     * @param unit    单位
+     */
+    public void setReassemblyTimeout(long timeout, TimeUnit unit) {
+        mReassembler.setTimeoutNanos(unit.toNanos(timeout));
+    }
+
+    /**
+     * 未完成消息占用的最大字节数，超过时从最早的消息开始丢弃
+     * 同时限制压缩消息解压后的长度，超过的消息丢弃，不分配内存
+     *
+     * @param maxBytes 最大字节数，默认64M
+     */
+    public void setReassemblyMaxBytes(long maxBytes) {
+        mReassembler.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * @param dropCallback 丢弃未完成消息时回调，在接收线程上回调
+     */
+    public void setDropCallback(DropCallback dropCallback) {
+        mReassembler.setDropCallback(dropCallback);
+    }
+
+    /**
+     * @return 累计丢弃的未完成消息数量
+     */
+    public long getDroppedCount() {
+        return mReassembler.droppedCount();
+    }
+
+    /**
+     * 重组状态池的大小，消息完成或丢弃后重组状态和校验数组放回池中，下一条消息复用
+     * 完整数据交给回调，不回收
+     *
+     * @param poolSize 保留的数量，默认64，0为不回收
+     */
+    public void setReceivePoolSize(int poolSize) {
+        mReassembler.setPoolSize(poolSize);
+    }
+
+    /**
+     * @return 从池中复用重组状态的次数
+     */
+    public long getReceivePoolHitCount() {
+        return mReassembler.poolHits();
+    }
+
+    /**
+     * @return 池为空时新建重组状态的次数，稳定接收时不再增加
+     */
+    public long getReceivePoolMissCount() {
+        return mReassembler.poolMisses();
+    }
+
+    /**
+     * 可靠模式，接收端总是支持，不支持组播，组播时用{@link #setForwardErrorCorrection(int, int)}应对丢包
+     * 开启后{@link #send(byte[])}阻塞到接收端确认所有分段，缺失的分段选择重传，连续超时超过次数后抛出异常
+     * 确认从发送socket接收，发送socket不能同时用于{@link #receive}
+     *
+     * @param reliable 是否开启
+     */
+    public void setReliable(boolean reliable) {
+        if (reliable) {
+            if (sendInetAddress != null && sendInetAddress.isMulticastAddress()) {
+                /*多个接收端的确认无法区分*/
+                throw new IllegalStateException("Reliable mode is not supported for multicast address " + sendInetAddress);
+            }
+            reliableSender();
+        }
+        this.reliable = reliable;
+    }
+
+    /**
+     * 可靠模式的发送窗口，未确认的分段不超过该数量，避免发满接收端的socket缓冲区
+     *
+     * @param window 分段数量，默认64
+     */
+    public void setSendWindow(int window) {
+        reliableSender().setWindow(window);
+    }
+
+    /**
+     * 可靠模式连续超时重传的次数，超过后放弃该消息
+     *
+     * @param maxRetransmits 次数，默认10
+     */
+    public void setMaxRetransmits(int maxRetransmits) {
+        reliableSender().setMaxRetransmits(maxRetransmits);
+    }
+
+    /**
+     * @return 可靠模式累计重传的分段数量
+     */
+    public long getRetransmitCount() {
+        return reliableSender == null ? 0 : reliableSender.retransmitCount();
+    }
+
+    /**
+     * @return 可靠模式的平滑RTT/ns，没有采样时为-1
+     */
+    public long getSmoothedRttNanos() {
+        return reliableSender == null ? -1 : reliableSender.smoothedRttNanos();
+    }
+
+    /**
+     * 前向纠错，接收端总是支持
+     * 每groupSize个数据分段之后发送parityCount个校验分段，一组中任意groupSize个分段到达即可恢复，不需要重传
+     * parityCount为1时校验分段是异或，大于1时为Reed-Solomon，编码开销随parityCount线性增加
+     * 校验分段与数据分段等长，开启后每个分段的数据长度减少2字节，带宽开销为parityCount / groupSize
+     * 可靠模式下不发送校验分段，丢失的分段由重传恢复
+     *
+     * @param groupSize   每组数据分段数量
+     * @param parityCount 每组校验分段数量，0为关闭
+     */
+    public void setForwardErrorCorrection(int groupSize, int parityCount) {
+        if (groupSize <= 0 || parityCount < 0 || groupSize + parityCount > ErasureCode.MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("groupSize: " + groupSize + ", parityCount: " + parityCount);
+        }
+        if (sendDatagramSocket == null) {
+            throw new RuntimeException(new NullPointerException("Send DatagramSocket").getMessage());
+        }
+        if (parityCount > 0 && sendBytes.length <= PARITY_HEADER_LENGTH) {
+            throw new IllegalStateException("datagramSize: " + sendBytes.length);
         }
+        this.fecGroupSize = parityCount > 0 ? groupSize : 0;
+        this.fecParityCount = parityCount;
+        rangeCapacity = sendBytes.length - (parityCount > 0 ? PARITY_HEADER_LENGTH : HEADER_LENGTH);
+        resizeParityBlocks();
     }
 
+    /**
+     * 校验分段缓冲区，与分段等长，每组复用
+     */
+    private void resizeParityBlocks() {
+        byte[][] blocks = new byte[fecParityCount][];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = new byte[rangeCapacity];
+        }
+        parityBlocks = blocks;
+    }
+
+    /**
+     * 加入组播组，接收socket需要是绑定到组播端口的{@link MulticastSocket}
+     * 格式与单播相同，同一组的多个发送端按id区分，可以同时接收多个组
+     *
+     * @param group            组地址
+     * @param networkInterface 接收的网卡，null为系统默认
+     * @throws IOException 加入失败
+     */
+    public void joinGroup(InetAddress group, NetworkInterface networkInterface) throws IOException {
+        multicastReceiveSocket().joinGroup(new InetSocketAddress(group, 0), networkInterface);
+    }
+
+    /**
+     * 离开组播组
+     *
+     * @param group            组地址
+     * @param networkInterface 加入时的网卡，null为系统默认
+     * @throws IOException 离开失败
+     */
+    public void leaveGroup(InetAddress group, NetworkInterface networkInterface) throws IOException {
+        multicastReceiveSocket().leaveGroup(new InetSocketAddress(group, 0), networkInterface);
+    }
+
+    /**
+     * 组播发送的网卡，发送socket需要是{@link MulticastSocket}，回环测试时设为loopback网卡
+     *
+     * @param networkInterface 网卡
+     * @throws IOException 设置失败
+     */
+    public void setMulticastInterface(NetworkInterface networkInterface) throws IOException {
+        multicastSendSocket().setNetworkInterface(networkInterface);
+    }
+
+    /**
+     * 组播发送的TTL，发送socket需要是{@link MulticastSocket}
+     *
+     * @param ttl 经过的路由数量，默认1，只在本网段
+     * @throws IOException 设置失败
+     */
+    public void setMulticastTimeToLive(int ttl) throws IOException {
+        multicastSendSocket().setTimeToLive(ttl);
+    }
+
+    private MulticastSocket multicastReceiveSocket() {
+        if (!(receiveDatagramSocket instanceof MulticastSocket)) {
+            throw new IllegalStateException("Receive DatagramSocket is not a MulticastSocket");
+        }
+        return (MulticastSocket) receiveDatagramSocket;
+    }
+
+    private MulticastSocket multicastSendSocket() {
+        if (!(sendDatagramSocket instanceof MulticastSocket)) {
+            throw new IllegalStateException("Send DatagramSocket is not a MulticastSocket");
+        }
+        return (MulticastSocket) sendDatagramSocket;
+    }
+
+    /**
+     * 发送限速，令牌桶按目标速率发出分段，避免大消息的分段连续发出，溢出接收端socket和交换机的缓冲区
+     * 速率按数据报加IP和UDP头计算，空闲时令牌最多积累burstBytes，之后最多连续发出该长度
+     * 令牌不足时发送线程挂起等待，不占用CPU，校验分段和可靠模式的重传同样限速，确认不限速
+     * 重新设置后统计清零
+     *
+     * @param bitsPerSecond 目标速率/bit/s，0为不限速
+     * @param burstBytes    突发长度，至少一个数据报加IP和UDP头才能不欠账发出单个数据报
+     */
+    public void setPacing(long bitsPerSecond, int burstBytes) {
+        if (sendDatagramSocket == null) {
+            throw new RuntimeException(new NullPointerException("Send DatagramSocket").getMessage());
+        }
+        int ipHeaderLength = sendInetAddress instanceof Inet6Address ? IPV6_HEADER_LENGTH : IPV4_HEADER_LENGTH;
+        this.pacer = bitsPerSecond == 0 ? null : new UDPPacer(bitsPerSecond, burstBytes, ipHeaderLength + UDP_HEADER_LENGTH);
+    }
+
+    /**
+     * @return 限速时发送消息期间的实际速率/bit/s，包括IP和UDP头，没有限速时为0
+     */
+    public long getPacedBitsPerSecond() {
+        UDPPacer pacer = this.pacer;
+        return pacer == null ? 0 : pacer.achievedBitsPerSecond();
+    }
+
+    /**
+     * @return 限速时数据报等待发送的平均时间/ns
+     */
+    public long getPacingDelayNanos() {
+        UDPPacer pacer = this.pacer;
+        return pacer == null ? 0 : pacer.averageDelayNanos();
+    }
+
+    /**
+     * @return 限速时数据报等待发送的最长时间/ns
+     */
+    public long getMaxPacingDelayNanos() {
+        UDPPacer pacer = this.pacer;
+        return pacer == null ? 0 : pacer.maxDelayNanos();
+    }
+
+    /**
+     * 测试用，数据和确认都经过模拟器发送
+     *
+     * @param lossSimulator 丢包和乱序模拟，null为关闭
+     */
+    public void setLossSimulator(UDPLossSimulator lossSimulator) {
+        this.lossSimulator = lossSimulator;
+    }
+
+    private UDPReliableSender reliableSender() {
+        if (sendDatagramSocket == null) {
+            throw new RuntimeException(new NullPointerException("Send DatagramSocket").getMessage());
+        }
+        if (reliableSender == null) {
+            reliableSender = new UDPReliableSender(sendDatagramSocket);
+        }
+        return reliableSender;
+    }
 
     /**
      * 开始接受数据，阻塞方法
@@ -109,33 +532,14 @@ public class UDPPackageProtocol {
             try {
                 /*响应数据拆分*/
                 receiveDatagramSocket.receive(receiveDatagramPacket);
-                receiveBuffer.position(0);
-                receiveBuffer.put(receiveBytes);
-                receiveBuffer.position(0);
-                receiveBuffer.get(receiveIdData);
-                receiveBuffer.get(receiveRangeSizeData);
-                receiveBuffer.get(receiveRangeIndexData);
-                receiveBuffer.get(receiveRangeLengthData);
-                receiveBuffer.get(receiveContentLengthData);
-                receiveBuffer.get(receiveData);
-
-                /*数据片段包装*/
-                ReceivePack pack = ReceivePack.obtain();
-                pack.id = new String(receiveIdData);
-                pack.rangeSize = Utils.bytes2int(receiveRangeSizeData);
-                pack.rangeIndex = Utils.bytes2int(receiveRangeIndexData);
-                pack.rangeLength = Utils.bytes2int(receiveRangeLengthData);
-                pack.contentLength = Utils.bytes2int(receiveContentLengthData);
-                pack.data = Utils.bytesCopy(receiveData);
-
-                /*数据包装暂存*/
-                LinkedList<ReceivePack> packList = mReceivePacks.get(pack.id) != null ? mReceivePacks.get(pack.id) : new LinkedList<>();
-                packList.add(pack);
-                mReceivePacks.put(pack.id, packList);
-
-                /*数据完整性重组*/
-                checkComplete(callback);
-
+                receiveBuffer.clear().limit(receiveDatagramPacket.getLength());
+                if (receiveFragment(mReassembler, receiveBuffer, callback, ackBuffer)) {
+                    /*确认发回分段的来源*/
+                    ackPacket.setData(ackBytes, 0, ackBuffer.limit());
+                    ackPacket.setAddress(receiveDatagramPacket.getAddress());
+                    ackPacket.setPort(receiveDatagramPacket.getPort());
+                    sendDatagram(receiveDatagramSocket, ackPacket);
+                }
             } catch (IOException e) {
                 if (receiveDatagramSocket.isClosed()) {
                     throw new InterruptedException(e.getMessage());
@@ -147,100 +551,256 @@ public class UDPPackageProtocol {
     }
 
     /**
-     * 组合完整数据返回
+     * 在数据报上按绝对位置解析头部，分段直接从数据报拷贝进重组数组，收齐时回调
      *
-     * @param callback 数据回调接口
-     */
-    private void checkComplete(ReceiveCompleteCallback callback) {
-        for (Map.Entry<String, LinkedList<ReceivePack>> entry : mReceivePacks.entrySet()) {
-            LinkedList<ReceivePack> packs = entry.getValue();
-            ReceivePack packOne = packs.getFirst();
-            if (packs.size() == packOne.rangeSize) {
-                String id = packOne.id;
-                byte[] complete = new byte[packOne.contentLength];
-                packs.sort(Comparator.comparingInt(o -> o.rangeIndex));
-                int offset = 0;
-                for (ReceivePack pack : packs) {
-                    System.arraycopy(pack.data, 0, complete, offset, pack.rangeLength);
-                    offset += pack.rangeLength;
-                    pack.release();
-                }
-                callback.complete(id, complete);
-                mReceivePacks.remove(id);
-                return;
-            }
+     * @param reassembler 重组
+     * @param datagram    数据报，position到limit，position会被改变
+     * @param callback    完整数据回调
+     * @param ack         确认缓冲区，为null时丢弃可靠消息，发送端重传失败后报错
+     * @return 需要回复确认，确认在ack的0到limit
+     * @throws IOException 解压失败
+     */
+    static boolean receiveFragment(UDPReassembler reassembler, ByteBuffer datagram, ReceiveCompleteCallback callback,
+                                   ByteBuffer ack) throws IOException {
+        int base = datagram.position();
+        int length = datagram.remaining();
+        if (length < HEADER_LENGTH) {
+            return false;
+        }
+        int type = datagram.get(base) & 0xff;
+        if (type == TYPE_PARITY) {
+            receiveParity(reassembler, datagram, callback);
+            return false;
+        }
+        boolean reliable = (type & FLAG_RELIABLE) != 0;
+        if ((type & ~(FLAG_RELIABLE | FLAG_ACK_REQUEST | FLAG_FEC)) != TYPE_DATA || (reliable && ack == null)) {
+            return false;
+        }
+        int rangeLength = datagram.getShort(base + RANGE_LENGTH_OFFSET) & 0xffff;
+        if (rangeLength > length - HEADER_LENGTH) {
+            /*数据报被截断*/
+            return false;
+        }
+        long id = datagram.getLong(base + ID_OFFSET);
+        int rangeSize = datagram.getInt(base + RANGE_SIZE_OFFSET);
+        int contentLength = datagram.getInt(base + CONTENT_LENGTH_OFFSET);
+        byte[] complete = reassembler.fragment(id,
+                rangeSize,
+                datagram.getInt(base + RANGE_INDEX_OFFSET),
+                rangeLength,
+                contentLength & ~FrameCompression.COMPRESSED_FLAG,
+                datagram, base + HEADER_LENGTH, System.nanoTime(), (type & (FLAG_RELIABLE | FLAG_FEC)) != 0);
+        boolean ackRequired = reliable
+                && (complete != null || (type & FLAG_ACK_REQUEST) != 0 || reassembler.wasDuplicate());
+        if (ackRequired) {
+            ack.clear();
+            ack.put((byte) (TYPE_ACK | FLAG_ACK_COMPRESSION)).putLong(id).putInt(rangeSize);
+            ackRequired = reassembler.putAck(id, rangeSize, ack, MAX_ACK_BITMAP_LENGTH);
+            ack.flip();
+        }
+        if (complete != null) {
+            complete(reassembler, id, complete, contentLength, callback);
+        }
+        return ackRequired;
+    }
+
+    private static void receiveParity(UDPReassembler reassembler, ByteBuffer datagram,
+                                      ReceiveCompleteCallback callback) throws IOException {
+        int base = datagram.position();
+        int length = datagram.remaining();
+        if (length < PARITY_HEADER_LENGTH) {
+            return;
+        }
+        int rangeLength = datagram.getShort(base + RANGE_LENGTH_OFFSET) & 0xffff;
+        if (rangeLength > length - PARITY_HEADER_LENGTH) {
+            return;
+        }
+        long id = datagram.getLong(base + ID_OFFSET);
+        int contentLength = datagram.getInt(base + CONTENT_LENGTH_OFFSET);
+        byte[] complete = reassembler.parity(id,
+                datagram.getInt(base + RANGE_SIZE_OFFSET),
+                datagram.getInt(base + RANGE_INDEX_OFFSET),
+                rangeLength,
+                contentLength & ~FrameCompression.COMPRESSED_FLAG,
+                datagram.get(base + GROUP_SIZE_OFFSET) & 0xff,
+                datagram.get(base + PARITY_COUNT_OFFSET) & 0xff,
+                datagram, base + PARITY_HEADER_LENGTH, System.nanoTime());
+        if (complete != null) {
+            complete(reassembler, id, complete, contentLength, callback);
+        }
+    }
+
+    private static void complete(UDPReassembler reassembler, long id, byte[] complete, int contentLength,
+                                 ReceiveCompleteCallback callback) throws IOException {
+        if ((contentLength & FrameCompression.COMPRESSED_FLAG) != 0) {
+            complete = decompress(complete, reassembler.maxBytes());
+        }
+        callback.complete(id, complete);
+    }
+
+    /**
+     * 写入一个分段的头部
+     *
+     * @param buffer             发送缓冲区
+     * @param type               类型和标记
+     * @param id                 数据位id
+     * @param rangeSize          分段数量
+     * @param rangeIndex         分段坐标，从1开始
+     * @param rangeLength        分段长度
+     * @param contentLengthField 总长度和压缩标记
+     */
+    static void putHeader(ByteBuffer buffer, int type, long id, int rangeSize, int rangeIndex, int rangeLength, int contentLengthField) {
+        buffer.put((byte) type)
+                .putLong(id)
+                .putInt(rangeSize)
+                .putInt(rangeIndex)
+                .putShort((short) rangeLength)
+                .putInt(contentLengthField);
+    }
+
+    /**
+     * @param maxLength 解压后的最大长度，原始长度位超过时不分配直接丢弃
+     * @throws IOException 原始长度超过最大长度，或解压失败
+     */
+    private static byte[] decompress(byte[] compressed, long maxLength) throws IOException {
+        int originalLength = FrameCompression.originalLength(compressed, 0, compressed.length);
+        if (originalLength > maxLength) {
+            throw new IOException("Original length " + originalLength + " exceeds max message size " + maxLength);
         }
+        byte[] data = new byte[originalLength];
+        FrameCompression.decompress(compressed, 0, compressed.length, data);
+        return data;
     }
 
     /**
-     * 发送数据
+     * 发送数据，可靠模式下阻塞到接收端确认，限速时阻塞到所有分段发出
      *
      * @param data 待发送数据
-     * @throws IOException 异常
+     * @throws IOException 异常，可靠模式下连续超时为{@link java.net.SocketTimeoutException}
      */
     public void send(byte[] data) throws Exception {
         if (sendDatagramSocket == null) {
             throw new RuntimeException(new NullPointerException("Send DatagramSocket").getMessage());
         }
-        int rangeSize = data.length % DATA_LENGTH != 0 ? data.length / DATA_LENGTH + 1 : data.length / DATA_LENGTH;
-        byte[] idData = Utils.generateId(ID_LENGTH);
-        byte[] rangeSizeData = Utils.int2bytes(rangeSize);
-        byte[] contentLengthData = Utils.int2bytes(data.length);
-        int length = 0;
-        for (int i = 0; i < rangeSize; i++) {
-            byte[] packData = new byte[DATA_LENGTH];
-            if (length + DATA_LENGTH < data.length) {
-                length += DATA_LENGTH;
-            } else {
-                length = data.length;
+        byte[] content = data;
+        int contentLength = data.length;
+        int contentLengthField = contentLength;
+        boolean compressionAccepted = peerAcceptsCompression || (reliable && reliableSender.isCompressionAccepted());
+        if (compressionAccepted && FrameCompression.shouldCompress(compressionThreshold, data.length)) {
+            byte[] compressed = FrameCompression.buffer(data.length);
+            int compressedLength = FrameCompression.compress(data, 0, data.length, compressed);
+            if (compressedLength > 0) {
+                content = compressed;
+                contentLength = compressedLength;
+                contentLengthField = compressedLength | FrameCompression.COMPRESSED_FLAG;
+            }
+        }
+        int rangeCapacity = this.rangeCapacity;
+        /*空数据也发送一个分段*/
+        int rangeSize = Math.max(1, (contentLength + rangeCapacity - 1) / rangeCapacity);
+        long id = idNonce | (idSequence++ & 0xffffffffL);
+        UDPPacer pacer = this.pacer;
+        if (pacer == null) {
+            send(id, rangeSize, content, contentLength, contentLengthField);
+            return;
+        }
+        pacer.begin();
+        try {
+            send(id, rangeSize, content, contentLength, contentLengthField);
+        } finally {
+            pacer.end();
+        }
+    }
+
+    private void send(long id, int rangeSize, byte[] content, int contentLength, int contentLengthField) throws IOException {
+        int rangeCapacity = this.rangeCapacity;
+        if (reliable) {
+            byte[] reliableContent = content;
+            int reliableContentLength = contentLength;
+            int reliableContentLengthField = contentLengthField;
+            reliableSender.send(id, rangeSize, (index, ackRequest) -> sendFragment(
+                    TYPE_DATA | FLAG_RELIABLE | (ackRequest ? FLAG_ACK_REQUEST : 0), id, rangeSize, index,
+                    reliableContent, reliableContentLength, reliableContentLengthField));
+            return;
+        }
+        int parityCount = fecParityCount;
+        if (parityCount == 0 || contentLength == 0) {
+            for (int i = 0; i < rangeSize; i++) {
+                sendFragment(TYPE_DATA, id, rangeSize, i, content, contentLength, contentLengthField);
+            }
+            return;
+        }
+        int groupSize = fecGroupSize;
+        /*单分段消息的校验分段与消息等长*/
+        int blockLength = Math.min(rangeCapacity, contentLength);
+        byte[][] parityBlocks = this.parityBlocks;
+        for (int group = 0, first = 0; first < rangeSize; group++, first += groupSize) {
+            int count = Math.min(groupSize, rangeSize - first);
+            for (int i = first; i < first + count; i++) {
+                sendFragment(TYPE_DATA | FLAG_FEC, id, rangeSize, i, content, contentLength, contentLengthField);
+            }
+            int offset = first * blockLength;
+            ErasureCode.encode(content, offset, Math.min(count * blockLength, contentLength - offset), blockLength, count, parityBlocks);
+            for (int k = 0; k < parityCount; k++) {
+                ByteBuffer sendBuffer = this.sendBuffer;
+                sendBuffer.clear();
+                putHeader(sendBuffer, TYPE_PARITY, id, rangeSize, group * parityCount + k, blockLength, contentLengthField);
+                sendBuffer.put((byte) groupSize).put((byte) parityCount).put(parityBlocks[k], 0, blockLength);
+                sendData(sendBuffer.position());
             }
-            System.arraycopy(data, DATA_LENGTH * i, packData, 0, length - DATA_LENGTH * i);
-            byte[] rangeIndexData = Utils.int2bytes(i + 1);
-            byte[] rangeLengthData = Utils.int2bytes(length - DATA_LENGTH * i);
-            sendBuffer.position(0);
-            sendBuffer.put(idData);
-            sendBuffer.put(rangeSizeData);
-            sendBuffer.put(rangeIndexData);
-            sendBuffer.put(rangeLengthData);
-            sendBuffer.put(contentLengthData);
-            sendBuffer.put(packData);
-            sendBuffer.position(0);
-            sendBuffer.get(sendBytes);
-            sendDatagramPacket.setData(sendBytes);
-            sendDatagramSocket.send(sendDatagramPacket);
         }
     }
 
     /**
-     * 数据包片段
+     * @param index 分段坐标，从0开始
      */
-    private static class ReceivePack {
-
-        private static final LinkedList<ReceivePack> mCache = new LinkedList<>();
+    private void sendFragment(int type, long id, int rangeSize, int index, byte[] content, int contentLength,
+                              int contentLengthField) throws IOException {
+        int offset = rangeCapacity * index;
+        int rangeLength = Math.min(rangeCapacity, contentLength - offset);
+        ByteBuffer sendBuffer = this.sendBuffer;
+        sendBuffer.clear();
+        putHeader(sendBuffer, type, id, rangeSize, index + 1, rangeLength, contentLengthField);
+        sendBuffer.put(content, offset, rangeLength);
+        sendData(sendBuffer.position());
+    }
 
-        String id;
-        int rangeSize;
-        int rangeIndex;
-        int rangeLength;
-        int contentLength;
-        byte[] data;
+    /**
+     * 限速后发出发送缓冲区中的数据报
+     *
+     * @param length 数据报长度
+     */
+    private void sendData(int length) throws IOException {
+        UDPPacer pacer = this.pacer;
+        if (pacer != null) {
+            pacer.acquire(length);
+        }
+        sendDatagramPacket.setData(sendBytes, 0, length);
+        sendDatagram(sendDatagramSocket, sendDatagramPacket);
+    }
 
-        private static ReceivePack obtain() {
-            if (mCache.size() > 0) {
-                return mCache.pop();
-            }
-            return new ReceivePack();
+    private void sendDatagram(DatagramSocket socket, DatagramPacket packet) throws IOException {
+        UDPLossSimulator simulator = lossSimulator;
+        if (simulator != null) {
+            simulator.send(socket, packet);
+        } else {
+            socket.send(packet);
         }
+    }
 
-        void release() {
-            id = null;
-            rangeSize = 0;
-            rangeIndex = 0;
-            rangeLength = 0;
-            contentLength = 0;
-            data = null;
-            mCache.add(this);
+    /**
+     * 16位十六进制的id，与{@link ReceiveCompleteCallback#complete(String, byte[])}收到的一致
+     *
+     * @param id 数据位id
+     * @return 字符串id
+     */
+    public static String formatId(long id) {
+        char[] chars = new char[ID_LENGTH * 2];
+        for (int i = chars.length - 1; i >= 0; i--) {
+            chars[i] = Character.forDigit((int) (id & 0xf), 16);
+            id >>>= 4;
         }
+        return new String(chars);
     }
 
     /**
@@ -250,10 +810,39 @@ public class UDPPackageProtocol {
         /**
          * 完整数据回调
          *
-         * @param id   数据位id
+         * @param id   数据位id，见{@link #formatId(long)}
          * @param data 数据
          */
         void complete(String id, byte[] data);
+
+        /**
+         * 完整数据回调，默认转成字符串id，重写后不再为每条消息生成字符串
+         *
+         * @param id   数据位id
+         * @param data 数据
+         */
+        default void complete(long id, byte[] data) {
+            complete(formatId(id), data);
+        }
+    }
+
+    /**
+     * 丢弃未完成消息的回调
+     */
+    public interface DropCallback {
+        /**
+         * @param id            数据位id
+         * @param receivedCount 已收到的分段数量
+         * @param rangeSize     分段数量
+         */
+        void dropped(String id, int receivedCount, int rangeSize);
+
+        /**
+         * 默认转成字符串id
+         */
+        default void dropped(long id, int receivedCount, int rangeSize) {
+            dropped(formatId(id), receivedCount, rangeSize);
+        }
     }
 
 }
@@ -0,0 +1,739 @@
+package com.nullpt.utils.sockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * UDP分段重组
+ * 每条消息一个{@link ReceivePack}，分段按坐标直接拷贝进最终数组，收到的分段记在位图里，收齐的判断为O(1)
+ * 发送端的分段长度从分段本身推断：非最后一个分段的长度即分段长度，最后一个分段在消息末尾，不需要两端配置一致
+ * 按id存在{@link LongObjectHashMap}中，同时按第一个分段到达的顺序串成链表，超时或超过内存预算时从链表头开始丢弃
+ * 查找和丢弃都不分配对象，只有新消息分配最终数组，最终数组交给调用方，不回收
+ * 重组状态和校验数组在有界的池中回收，每个重组一个池，与重组在同一线程上使用，不需要同步
+ * 可靠消息完成后记住最近的id，重传的分段不再重复交付，只回复确认，确认格式见{@link #putAck}
+ * 带校验的消息见{@link #parity}，同样记住完成的id，多余的分段不再重复交付
+ * 非线程安全，每个接收线程一个
+ */
+class UDPReassembler {
+
+    /**
+     * 默认未完成消息的保留时间/ns
+     */
+    static final long DEFAULT_TIMEOUT_NANOS = 5_000_000_000L;
+    /**
+     * 默认未完成消息占用的最大字节数
+     */
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    /**
+     * 记住的已完成可靠或带校验消息数量
+     */
+    private static final int COMPLETED_HISTORY = 1024;
+    /**
+     * 默认池中保留的重组状态数量
+     */
+    static final int DEFAULT_POOL_SIZE = 64;
+    /**
+     * 池中保留的校验数组总字节数，超过时释放校验数组，只保留重组状态
+     */
+    private static final long POOLED_PARITY_BYTES = 4L * 1024 * 1024;
+
+    private final LongObjectHashMap<ReceivePack> mReceivePacks = new LongObjectHashMap<>();
+    /**
+     * 到达顺序链表，头部最早
+     */
+    private ReceivePack mHead = null;
+    private ReceivePack mTail = null;
+    private volatile long timeoutNanos = DEFAULT_TIMEOUT_NANOS;
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile UDPPackageProtocol.DropCallback dropCallback = null;
+    /**
+     * 未完成消息占用的字节数
+     */
+    private long mBytes = 0;
+    private volatile long mDroppedCount = 0;
+    /**
+     * 最近完成的可靠或带校验消息，环形数组记录顺序，满了移除最早的
+     */
+    private final LongObjectHashMap<Boolean> mCompleted = new LongObjectHashMap<>(COMPLETED_HISTORY);
+    private final long[] mCompletedIds = new long[COMPLETED_HISTORY];
+    private int mCompletedIndex = 0;
+    private int mCompletedCount = 0;
+    /**
+     * 上一个分段是重复的，对端可能没收到确认
+     */
+    private boolean mDuplicate = false;
+    /**
+     * 解码时复用的组内坐标
+     */
+    private final ErasureCode mCode = new ErasureCode();
+    private final int[] mMissing = new int[ErasureCode.MAX_FRAGMENTS];
+    private final int[] mPresent = new int[ErasureCode.MAX_FRAGMENTS];
+    private final int[] mParityIndex = new int[ErasureCode.MAX_FRAGMENTS];
+    private final int[] mParityOffset = new int[ErasureCode.MAX_FRAGMENTS];
+    /**
+     * 回收的重组状态，栈顶最近回收
+     */
+    private ReceivePack[] mPool = new ReceivePack[DEFAULT_POOL_SIZE];
+    private int mPoolCount = 0;
+    private volatile int poolSize = DEFAULT_POOL_SIZE;
+    private long mPooledParityBytes = 0;
+    private volatile long mPoolHits = 0;
+    private volatile long mPoolMisses = 0;
+
+    void setTimeoutNanos(long timeoutNanos) {
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("timeoutNanos: " + timeoutNanos);
+        }
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return 未完成消息占用的最大字节数，也是压缩消息解压后的最大长度
+     */
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    void setDropCallback(UDPPackageProtocol.DropCallback dropCallback) {
+        this.dropCallback = dropCallback;
+    }
+
+    /**
+     * @param poolSize 池中保留的重组状态数量，0为不回收，缩小后多余的在下次回收时释放
+     */
+    void setPoolSize(int poolSize) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("poolSize: " + poolSize);
+        }
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @return 从池中取得重组状态的次数
+     */
+    long poolHits() {
+        return mPoolHits;
+    }
+
+    /**
+     * @return 池为空时新建重组状态的次数
+     */
+    long poolMisses() {
+        return mPoolMisses;
+    }
+
+    /**
+     * @return 累计丢弃的未完成消息数量
+     */
+    long droppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return 未完成的消息数量
+     */
+    int pendingCount() {
+        return mReceivePacks.size();
+    }
+
+    /**
+     * 收到一个分段
+     *
+     * @param id            消息id
+     * @param rangeSize     分段数量
+     * @param rangeIndex    分段坐标，从1开始
+     * @param rangeLength   分段长度
+     * @param contentLength 消息总长度，不含压缩标记
+     * @param data          数据报，可以是direct buffer，position会被改变
+     * @param offset        分段数据在{@code data}中的绝对位置
+     * @param now           当前时间/ns
+     * @param remember      可靠或带校验的消息，完成后记住id
+     * @return 收齐时返回完整数据，否则为null
+     */
+    byte[] fragment(long id, int rangeSize, int rangeIndex, int rangeLength, int contentLength,
+                    ByteBuffer data, int offset, long now, boolean remember) {
+        evict(now);
+        mDuplicate = false;
+        if (!isValid(rangeSize, rangeIndex, rangeLength, contentLength)) {
+            /*损坏或伪造的分段*/
+            return null;
+        }
+        if (remember && mCompleted.get(id) != null) {
+            mDuplicate = true;
+            return null;
+        }
+        ReceivePack pack = mReceivePacks.get(id);
+        if (pack == null) {
+            if (rangeSize == 1) {
+                /*单分段消息不进入重组*/
+                byte[] complete = new byte[contentLength];
+                data.position(offset);
+                data.get(complete, 0, rangeLength);
+                if (remember) {
+                    completed(id);
+                }
+                return complete;
+            }
+            pack = create(id, rangeSize, contentLength, now);
+            if (pack == null) {
+                return null;
+            }
+        } else if (pack.rangeSize != rangeSize || pack.data.length != contentLength) {
+            return null;
+        }
+        boolean last = rangeIndex == rangeSize;
+        if (!pack.accept(last, rangeLength)) {
+            /*与同一消息的其他分段长度不一致*/
+            return null;
+        }
+        if (!pack.set(rangeIndex - 1)) {
+            /*重复的分段，或已由校验分段恢复*/
+            mDuplicate = true;
+            return null;
+        }
+        int position = last ? contentLength - rangeLength : (rangeIndex - 1) * rangeLength;
+        data.position(offset);
+        data.get(pack.data, position, rangeLength);
+        if (pack.parity != null) {
+            recover(pack, (rangeIndex - 1) / pack.groupSize);
+        }
+        return complete(pack, remember);
+    }
+
+    /**
+     * 收到一个校验分段，见{@link ErasureCode}
+     * 校验分段长度等于非最后一个分段的长度，每条消息第一次收到校验分段时分配校验数组，计入内存预算
+     * 一组收到的数据和校验分段不少于该组数据分段数量时，在重组数组上恢复缺失的分段
+     *
+     * @param id            消息id
+     * @param rangeSize     数据分段数量
+     * @param parityIndex   校验分段坐标，从0开始，第g组的第k个为g * parityCount + k
+     * @param rangeLength   校验分段长度
+     * @param contentLength 消息总长度，不含压缩标记
+     * @param groupSize     每组数据分段数量
+     * @param parityCount   每组校验分段数量
+     * @param data          数据报，position会被改变
+     * @param offset        校验数据在{@code data}中的绝对位置
+     * @param now           当前时间/ns
+     * @return 收齐时返回完整数据，否则为null
+     */
+    byte[] parity(long id, int rangeSize, int parityIndex, int rangeLength, int contentLength,
+                  int groupSize, int parityCount, ByteBuffer data, int offset, long now) {
+        evict(now);
+        mDuplicate = false;
+        if (!isValidParity(rangeSize, parityIndex, rangeLength, contentLength, groupSize, parityCount)) {
+            return null;
+        }
+        if (mCompleted.get(id) != null) {
+            return null;
+        }
+        ReceivePack pack = mReceivePacks.get(id);
+        if (pack == null) {
+            pack = create(id, rangeSize, contentLength, now);
+            if (pack == null) {
+                return null;
+            }
+        } else if (pack.rangeSize != rangeSize || pack.data.length != contentLength) {
+            return null;
+        }
+        if (rangeSize > 1 && !pack.accept(false, rangeLength)) {
+            return null;
+        }
+        if (pack.parity == null) {
+            int parityLength = ((rangeSize + groupSize - 1) / groupSize) * parityCount * rangeLength;
+            if (!reserveParity(pack, parityLength)) {
+                return null;
+            }
+            obtainParity(pack, groupSize, parityCount, parityLength);
+            mBytes += pack.parity.length;
+        } else if (pack.groupSize != groupSize || pack.parityCount != parityCount) {
+            return null;
+        }
+        if (!pack.setParity(parityIndex)) {
+            mDuplicate = true;
+            return null;
+        }
+        data.position(offset);
+        data.get(pack.parity, parityIndex * rangeLength, rangeLength);
+        recover(pack, parityIndex / parityCount);
+        return complete(pack, true);
+    }
+
+    /**
+     * 一组缺失的数据分段不多于收到的校验分段时解码
+     */
+    private void recover(ReceivePack pack, int group) {
+        int groupSize = pack.groupSize;
+        int parityCount = pack.parityCount;
+        int rangeSize = pack.rangeSize;
+        int first = group * groupSize;
+        int count = Math.min(groupSize, rangeSize - first);
+        int missingCount = 0;
+        int presentCount = 0;
+        for (int j = 0; j < count; j++) {
+            if (pack.isSet(first + j)) {
+                mPresent[presentCount++] = j;
+            } else {
+                mMissing[missingCount++] = j;
+            }
+        }
+        if (missingCount == 0) {
+            return;
+        }
+        int blockLength = rangeSize == 1 ? pack.data.length : pack.rangeLength;
+        int parityFound = 0;
+        for (int k = 0; k < parityCount && parityFound < missingCount; k++) {
+            int parityIndex = group * parityCount + k;
+            if (pack.isParitySet(parityIndex)) {
+                mParityIndex[parityFound] = k;
+                mParityOffset[parityFound] = parityIndex * blockLength;
+                parityFound++;
+            }
+        }
+        if (parityFound < missingCount) {
+            return;
+        }
+        int blockOffset = first * blockLength;
+        int dataLength = Math.min(count * blockLength, pack.data.length - blockOffset);
+        mCode.decode(pack.data, blockOffset, dataLength, blockLength, mMissing, mPresent,
+                mParityIndex, pack.parity, mParityOffset, missingCount, presentCount, parityCount);
+        for (int i = 0; i < missingCount; i++) {
+            int index = first + mMissing[i];
+            pack.set(index);
+            if (index == rangeSize - 1) {
+                pack.lastRangeLength = pack.data.length - (rangeSize - 1) * blockLength;
+            }
+        }
+    }
+
+    private ReceivePack create(long id, int rangeSize, int contentLength, long now) {
+        if (!reserve(contentLength)) {
+            drop(id, 0, rangeSize);
+            return null;
+        }
+        ReceivePack pack = obtain(id, rangeSize, contentLength, now);
+        mReceivePacks.put(id, pack);
+        link(pack);
+        mBytes += contentLength;
+        return pack;
+    }
+
+    /**
+     * @return 收齐时移除并返回完整数据，否则为null
+     */
+    private byte[] complete(ReceivePack pack, boolean remember) {
+        if (pack.receivedCount < pack.rangeSize) {
+            return null;
+        }
+        long id = pack.id;
+        mReceivePacks.remove(id);
+        unlink(pack);
+        mBytes -= pack.bytes();
+        byte[] complete = pack.data;
+        recycle(pack);
+        if (remember) {
+            completed(id);
+        }
+        return complete;
+    }
+
+    /**
+     * @return 上一次{@link #fragment}收到的是重复分段
+     */
+    boolean wasDuplicate() {
+        return mDuplicate;
+    }
+
+    /**
+     * 写入确认 [ack-offset:4][bitmap-length:2][bitmap]
+     * ack-offset之前的分段都已收到，位图第i位对应分段ack-offset+i，从低位开始
+     * 已完成的消息ack-offset为分段数量，位图为空
+     *
+     * @param id             消息id
+     * @param rangeSize      分段数量
+     * @param out            确认数据报
+     * @param maxBitmapBytes 位图最大字节数，超过的部分不确认
+     * @return 没有该消息的状态时返回false
+     */
+    boolean putAck(long id, int rangeSize, ByteBuffer out, int maxBitmapBytes) {
+        ReceivePack pack = mReceivePacks.get(id);
+        if (pack == null || pack.rangeSize != rangeSize) {
+            if (mCompleted.get(id) == null) {
+                return false;
+            }
+            out.putInt(rangeSize).putShort((short) 0);
+            return true;
+        }
+        int ackOffset = pack.firstMissing();
+        int bitmapBytes = Math.min((rangeSize - ackOffset + 7) >>> 3, maxBitmapBytes);
+        out.putInt(ackOffset).putShort((short) bitmapBytes);
+        for (int i = 0; i < bitmapBytes; i++) {
+            int bits = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                int index = ackOffset + (i << 3) + bit;
+                if (index < rangeSize && pack.isSet(index)) {
+                    bits |= 1 << bit;
+                }
+            }
+            out.put((byte) bits);
+        }
+        return true;
+    }
+
+    private void completed(long id) {
+        if (mCompletedCount == COMPLETED_HISTORY) {
+            mCompleted.remove(mCompletedIds[mCompletedIndex]);
+        } else {
+            mCompletedCount++;
+        }
+        mCompletedIds[mCompletedIndex] = id;
+        mCompleted.put(id, Boolean.TRUE);
+        mCompletedIndex = (mCompletedIndex + 1) % COMPLETED_HISTORY;
+    }
+
+    /**
+     * 丢弃超时的消息，按到达顺序排列，只需检查最早的
+     *
+     * @param now 当前时间/ns
+     */
+    void evict(long now) {
+        long timeout = timeoutNanos;
+        while (mHead != null && now - mHead.createdTime >= timeout) {
+            evicted(mHead);
+        }
+    }
+
+    /**
+     * 为新消息预留内存，超过预算时丢弃最早的消息
+     *
+     * @return 单条消息超过预算时返回false
+     */
+    private boolean reserve(int contentLength) {
+        long max = maxBytes;
+        if (contentLength > max) {
+            return false;
+        }
+        while (mBytes + contentLength > max && mHead != null) {
+            evicted(mHead);
+        }
+        return true;
+    }
+
+    /**
+     * 为校验数组预留内存，不丢弃该消息本身，预算不足时不保存校验分段
+     */
+    private boolean reserveParity(ReceivePack pack, int parityLength) {
+        long max = maxBytes;
+        while (mBytes + parityLength > max && mHead != null && mHead != pack) {
+            evicted(mHead);
+        }
+        return mBytes + parityLength <= max;
+    }
+
+    private void evicted(ReceivePack pack) {
+        mReceivePacks.remove(pack.id);
+        unlink(pack);
+        mBytes -= pack.bytes();
+        long id = pack.id;
+        int receivedCount = pack.receivedCount;
+        int rangeSize = pack.rangeSize;
+        recycle(pack);
+        drop(id, receivedCount, rangeSize);
+    }
+
+    private ReceivePack obtain(long id, int rangeSize, int contentLength, long now) {
+        ReceivePack pack;
+        if (mPoolCount > 0) {
+            pack = mPool[--mPoolCount];
+            mPool[mPoolCount] = null;
+            if (pack.spareParity != null) {
+                mPooledParityBytes -= pack.spareParity.length;
+            }
+            mPoolHits++;
+        } else {
+            pack = new ReceivePack();
+            mPoolMisses++;
+        }
+        pack.obtain(id, rangeSize, contentLength, now);
+        return pack;
+    }
+
+    /**
+     * 优先使用回收的校验数组，长度不够时重新分配
+     */
+    private void obtainParity(ReceivePack pack, int groupSize, int parityCount, int parityLength) {
+        byte[] parity = pack.spareParity;
+        pack.spareParity = null;
+        if (parity == null || parity.length < parityLength) {
+            parity = new byte[parityLength];
+        }
+        pack.obtainParity(groupSize, parityCount, parity);
+    }
+
+    /**
+     * 清空后放回池中，池满时丢弃，校验数组在总字节数内随重组状态保留
+     */
+    private void recycle(ReceivePack pack) {
+        byte[] parity = pack.parity;
+        pack.release();
+        int poolSize = this.poolSize;
+        if (mPoolCount >= poolSize) {
+            return;
+        }
+        if (parity != null && mPooledParityBytes + parity.length <= POOLED_PARITY_BYTES) {
+            pack.spareParity = parity;
+            mPooledParityBytes += parity.length;
+        }
+        if (mPool.length < poolSize) {
+            ReceivePack[] pool = new ReceivePack[poolSize];
+            System.arraycopy(mPool, 0, pool, 0, mPoolCount);
+            mPool = pool;
+        }
+        mPool[mPoolCount++] = pack;
+    }
+
+    private void link(ReceivePack pack) {
+        pack.previous = mTail;
+        if (mTail == null) {
+            mHead = pack;
+        } else {
+            mTail.next = pack;
+        }
+        mTail = pack;
+    }
+
+    private void unlink(ReceivePack pack) {
+        if (pack.previous == null) {
+            mHead = pack.next;
+        } else {
+            pack.previous.next = pack.next;
+        }
+        if (pack.next == null) {
+            mTail = pack.previous;
+        } else {
+            pack.next.previous = pack.previous;
+        }
+        pack.previous = null;
+        pack.next = null;
+    }
+
+    private void drop(long id, int receivedCount, int rangeSize) {
+        mDroppedCount++;
+        UDPPackageProtocol.DropCallback callback = dropCallback;
+        if (callback != null) {
+            callback.dropped(id, receivedCount, rangeSize);
+        }
+    }
+
+    /**
+     * 分段数量、分段长度和总长度必须一致，避免按伪造的长度分配数组
+     */
+    private static boolean isValid(int rangeSize, int rangeIndex, int rangeLength, int contentLength) {
+        if (rangeSize <= 0 || rangeIndex <= 0 || rangeIndex > rangeSize || rangeLength < 0 || contentLength < 0) {
+            return false;
+        }
+        if (rangeSize == 1) {
+            return rangeLength == contentLength;
+        }
+        if (rangeLength == 0) {
+            return false;
+        }
+        if (rangeIndex == rangeSize) {
+            /*前面的分段等长，且不短于最后一个分段*/
+            long rest = (long) contentLength - rangeLength;
+            return rest % (rangeSize - 1) == 0 && rest / (rangeSize - 1) >= rangeLength;
+        }
+        return (long) rangeLength * (rangeSize - 1) < contentLength && contentLength <= (long) rangeLength * rangeSize;
+    }
+
+    /**
+     * 校验分段长度与非最后一个分段相同，单分段消息与总长度相同
+     */
+    private static boolean isValidParity(int rangeSize, int parityIndex, int rangeLength, int contentLength,
+                                         int groupSize, int parityCount) {
+        if (groupSize <= 0 || parityCount <= 0 || groupSize + parityCount > ErasureCode.MAX_FRAGMENTS
+                || contentLength <= 0 || !isValid(rangeSize, 1, rangeLength, contentLength)) {
+            return false;
+        }
+        long parityTotal = (long) ((rangeSize + groupSize - 1) / groupSize) * parityCount;
+        return parityIndex >= 0 && parityIndex < parityTotal && parityTotal * rangeLength <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * 一条消息的重组状态
+     */
+    static final class ReceivePack {
+
+        long id;
+        int rangeSize;
+        int receivedCount;
+        long createdTime;
+        /**
+         * 非最后一个分段的长度，0为还没收到
+         */
+        int rangeLength;
+        /**
+         * 最后一个分段的长度，-1为还没收到
+         */
+        int lastRangeLength;
+        /**
+         * 最终数组，收齐后交给调用方，不回收
+         */
+        byte[] data;
+        /**
+         * 已收到的分段
+         */
+        private long[] received = new long[1];
+        /**
+         * 每组数据和校验分段数量，收到校验分段后设置
+         */
+        int groupSize;
+        int parityCount;
+        /**
+         * 校验分段，按坐标存放，null为还没收到，可能比需要的长
+         */
+        byte[] parity;
+        /**
+         * 池中保留的校验数组，下次收到校验分段时使用
+         */
+        private byte[] spareParity;
+        /**
+         * 已收到的校验分段
+         */
+        private long[] parityReceived = new long[1];
+        /**
+         * 到达顺序链表
+         */
+        private ReceivePack previous;
+        private ReceivePack next;
+
+        private void obtain(long id, int rangeSize, int contentLength, long now) {
+            this.id = id;
+            this.rangeSize = rangeSize;
+            this.receivedCount = 0;
+            this.createdTime = now;
+            this.rangeLength = 0;
+            this.lastRangeLength = -1;
+            this.data = new byte[contentLength];
+            int words = (rangeSize + 63) >>> 6;
+            if (received.length < words) {
+                received = new long[words];
+            }
+        }
+
+        private void obtainParity(int groupSize, int parityCount, byte[] parity) {
+            this.groupSize = groupSize;
+            this.parityCount = parityCount;
+            this.parity = parity;
+            int words = (((rangeSize + groupSize - 1) / groupSize) * parityCount + 63) >>> 6;
+            if (parityReceived.length < words) {
+                parityReceived = new long[words];
+            }
+        }
+
+        /**
+         * @return 占用的字节数
+         */
+        private long bytes() {
+            return (long) data.length + (parity == null ? 0 : parity.length);
+        }
+
+        /**
+         * 检查分段长度与已收到的分段是否一致，第一次收到时记录
+         */
+        private boolean accept(boolean last, int length) {
+            int rangeLength = last ? this.rangeLength : length;
+            int lastRangeLength = last ? length : this.lastRangeLength;
+            if (rangeLength > 0 && lastRangeLength >= 0
+                    && (long) rangeLength * (rangeSize - 1) + lastRangeLength != data.length) {
+                return false;
+            }
+            if (last) {
+                if (this.lastRangeLength >= 0 && this.lastRangeLength != length) {
+                    return false;
+                }
+                this.lastRangeLength = length;
+            } else {
+                if (this.rangeLength > 0 && this.rangeLength != length) {
+                    return false;
+                }
+                this.rangeLength = length;
+            }
+            return true;
+        }
+
+        private boolean isSet(int index) {
+            return (received[index >>> 6] & (1L << index)) != 0;
+        }
+
+        private boolean isParitySet(int index) {
+            return (parityReceived[index >>> 6] & (1L << index)) != 0;
+        }
+
+        private boolean setParity(int index) {
+            if (isParitySet(index)) {
+                return false;
+            }
+            parityReceived[index >>> 6] |= 1L << index;
+            return true;
+        }
+
+        /**
+         * @return 第一个没收到的分段，全部收到时为分段数量
+         */
+        private int firstMissing() {
+            int words = (rangeSize + 63) >>> 6;
+            for (int i = 0; i < words; i++) {
+                if (received[i] != -1L) {
+                    return Math.min(rangeSize, (i << 6) + Long.numberOfTrailingZeros(~received[i]));
+                }
+            }
+            return rangeSize;
+        }
+
+        /**
+         * 标记收到
+         *
+         * @return 之前没有收到
+         */
+        private boolean set(int index) {
+            long bit = 1L << index;
+            long word = received[index >>> 6];
+            if ((word & bit) != 0) {
+                return false;
+            }
+            received[index >>> 6] = word | bit;
+            receivedCount++;
+            return true;
+        }
+
+        private void release() {
+            int words = (rangeSize + 63) >>> 6;
+            for (int i = 0; i < words; i++) {
+                received[i] = 0;
+            }
+            if (parity != null) {
+                words = (((rangeSize + groupSize - 1) / groupSize) * parityCount + 63) >>> 6;
+                for (int i = 0; i < words; i++) {
+                    parityReceived[i] = 0;
+                }
+            }
+            groupSize = 0;
+            parityCount = 0;
+            parity = null;
+            id = 0;
+            rangeSize = 0;
+            receivedCount = 0;
+            createdTime = 0;
+            rangeLength = 0;
+            lastRangeLength = -1;
+            data = null;
+        }
+    }
+}
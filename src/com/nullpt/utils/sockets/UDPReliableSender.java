@@ -0,0 +1,312 @@
+package com.nullpt.utils.sockets;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * 可靠模式的发送端，见{@link UDPPackageProtocol#setReliable(boolean)}
+ * 每条消息的分段在滑动窗口内发送，未确认的分段不超过窗口大小，重传时从消息数据中重新封包，不另外拷贝
+ * 接收端按请求回复选择确认，确认格式见{@link UDPReassembler#putAck}，位图中缺失的分段视为否认，超过一个RTT后立即重传
+ * 超时时间按RFC 6298由RTT估算，超时后重传窗口内所有未确认的分段并加倍，收到新的确认后恢复，连续超时超过次数后放弃
+ * 确认从发送socket接收，可靠模式下发送socket不能同时用于接收，非线程安全
+ * 确认带{@link UDPPackageProtocol#FLAG_ACK_COMPRESSION}时记录接收端能解压，之后的消息才压缩
+ */
+final class UDPReliableSender {
+
+    /**
+     * 默认窗口，未确认的分段数量
+     */
+    static final int DEFAULT_WINDOW = 64;
+    /**
+     * 默认连续超时次数
+     */
+    static final int DEFAULT_MAX_RETRANSMITS = 10;
+    private static final long INITIAL_RTO_NANOS = 200_000_000L;
+    private static final long MIN_RTO_NANOS = 5_000_000L;
+    private static final long MAX_RTO_NANOS = 2_000_000_000L;
+    /**
+     * 每发送该数量的分段请求一次确认
+     */
+    private static final int ACK_INTERVAL = 16;
+
+    /**
+     * 发送一个分段
+     */
+    interface FragmentSender {
+        /**
+         * @param index      分段坐标，从0开始
+         * @param ackRequest 请求接收端回复确认
+         */
+        void send(int index, boolean ackRequest) throws IOException;
+    }
+
+    private final DatagramSocket socket;
+    private final byte[] ackBytes = new byte[UDPPackageProtocol.ACK_HEADER_LENGTH + UDPPackageProtocol.MAX_ACK_BITMAP_LENGTH];
+    private final DatagramPacket ackPacket = new DatagramPacket(ackBytes, ackBytes.length);
+    private final ByteBuffer ackBuffer = ByteBuffer.wrap(ackBytes);
+
+    private volatile int window = DEFAULT_WINDOW;
+    private volatile int maxRetransmits = DEFAULT_MAX_RETRANSMITS;
+
+    /**
+     * 平滑RTT，-1为还没有采样
+     */
+    private volatile long srtt = -1;
+    private long rttvar = 0;
+    /**
+     * 按RTT估算的超时时间，rto为退避后的值
+     */
+    private long estimatedRto = INITIAL_RTO_NANOS;
+    private long rto = INITIAL_RTO_NANOS;
+    private volatile long mRetransmitCount = 0;
+    /**
+     * 接收端在确认中声明了能解压
+     */
+    private volatile boolean mCompressionAccepted = false;
+
+    /**
+     * 当前消息的状态，按分段数量扩容，复用
+     */
+    private long[] acked = new long[1];
+    private long[] retransmitted = new long[1];
+    private long[] sentTimes = new long[64];
+    private int ackedCount;
+    /**
+     * 第一个未确认的分段
+     */
+    private int lowestUnacked;
+    /**
+     * 下一个从未发送的分段
+     */
+    private int next;
+
+    UDPReliableSender(DatagramSocket socket) {
+        this.socket = socket;
+    }
+
+    void setWindow(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window: " + window);
+        }
+        this.window = window;
+    }
+
+    void setMaxRetransmits(int maxRetransmits) {
+        if (maxRetransmits < 0) {
+            throw new IllegalArgumentException("maxRetransmits: " + maxRetransmits);
+        }
+        this.maxRetransmits = maxRetransmits;
+    }
+
+    long retransmitCount() {
+        return mRetransmitCount;
+    }
+
+    /**
+     * @return 平滑RTT/ns，没有采样时为-1
+     */
+    long smoothedRttNanos() {
+        return srtt;
+    }
+
+    /**
+     * @return 接收端是否在确认中声明了能解压
+     */
+    boolean isCompressionAccepted() {
+        return mCompressionAccepted;
+    }
+
+    /**
+     * 发送一条消息，阻塞直到所有分段被确认
+     *
+     * @param id        消息id
+     * @param rangeSize 分段数量
+     * @param sender    发送分段
+     * @throws IOException 发送失败，或连续超时超过次数
+     */
+    void send(long id, int rangeSize, FragmentSender sender) throws IOException {
+        prepare(rangeSize);
+        int window = this.window;
+        int timeouts = 0;
+        long deadline = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (next < rangeSize && next - ackedCount < window) {
+                if (next == ackedCount) {
+                    /*没有未确认的分段，重新开始计时*/
+                    deadline = now + rto;
+                }
+                while (next < rangeSize && next - ackedCount < window) {
+                    int inFlight = next - ackedCount + 1;
+                    boolean ackRequest = next + 1 == rangeSize || inFlight == window || (next + 1) % ACK_INTERVAL == 0;
+                    sentTimes[next] = now;
+                    sender.send(next, ackRequest);
+                    next++;
+                }
+            }
+            if (ackedCount == rangeSize) {
+                return;
+            }
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                if (++timeouts > maxRetransmits) {
+                    throw new SocketTimeoutException("Message " + UDPPackageProtocol.formatId(id)
+                            + " unacknowledged after " + maxRetransmits + " retransmits");
+                }
+                rto = Math.min(rto << 1, MAX_RTO_NANOS);
+                retransmit(lowestUnacked, next, Long.MAX_VALUE, sender);
+                deadline = System.nanoTime() + rto;
+                continue;
+            }
+            socket.setSoTimeout((int) Math.max(1, (wait + 999_999) / 1_000_000));
+            try {
+                socket.receive(ackPacket);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (applyAck(id, rangeSize, sender)) {
+                timeouts = 0;
+                rto = estimatedRto;
+                deadline = System.nanoTime() + rto;
+            }
+        }
+    }
+
+    private void prepare(int rangeSize) {
+        int words = (rangeSize + 63) >>> 6;
+        if (acked.length < words) {
+            acked = new long[words];
+            retransmitted = new long[words];
+        } else {
+            for (int i = 0; i < words; i++) {
+                acked[i] = 0;
+                retransmitted[i] = 0;
+            }
+        }
+        if (sentTimes.length < rangeSize) {
+            sentTimes = new long[rangeSize];
+        }
+        ackedCount = 0;
+        lowestUnacked = 0;
+        next = 0;
+    }
+
+    /**
+     * 处理一个确认，确认的分段从窗口中移除，用没有重传过的分段采样RTT，缺失的分段超过一个RTT后重传
+     *
+     * @return 有新确认的分段
+     */
+    private boolean applyAck(long id, int rangeSize, FragmentSender sender) throws IOException {
+        ByteBuffer ack = ackBuffer;
+        int length = ackPacket.getLength();
+        int type = length < UDPPackageProtocol.ACK_HEADER_LENGTH ? 0 : ack.get(0) & 0xff;
+        if ((type & ~UDPPackageProtocol.FLAG_ACK_COMPRESSION) != UDPPackageProtocol.TYPE_ACK) {
+            /*其他数据报*/
+            return false;
+        }
+        if ((type & UDPPackageProtocol.FLAG_ACK_COMPRESSION) != 0) {
+            mCompressionAccepted = true;
+        }
+        if (ack.getLong(UDPPackageProtocol.ID_OFFSET) != id
+                || ack.getInt(UDPPackageProtocol.ACK_RANGE_SIZE_OFFSET) != rangeSize) {
+            /*之前消息的确认*/
+            return false;
+        }
+        int ackOffset = ack.getInt(UDPPackageProtocol.ACK_OFFSET_OFFSET);
+        int bitmapLength = ack.getShort(UDPPackageProtocol.ACK_BITMAP_LENGTH_OFFSET) & 0xffff;
+        if (ackOffset < 0 || ackOffset > rangeSize || bitmapLength > length - UDPPackageProtocol.ACK_HEADER_LENGTH) {
+            return false;
+        }
+        long now = System.nanoTime();
+        int before = ackedCount;
+        long sample = -1;
+        /*累计确认*/
+        int end = Math.min(ackOffset, next);
+        for (int i = lowestUnacked; i < end; i++) {
+            sample = markAcked(i, now, sample);
+        }
+        /*选择确认*/
+        int highest = -1;
+        int bits = Math.min(bitmapLength << 3, next - ackOffset);
+        for (int i = 0; i < bits; i++) {
+            if ((ack.get(UDPPackageProtocol.ACK_HEADER_LENGTH + (i >>> 3)) & (1 << (i & 7))) != 0) {
+                int index = ackOffset + i;
+                sample = markAcked(index, now, sample);
+                highest = index;
+            }
+        }
+        while (lowestUnacked < next && isSet(acked, lowestUnacked)) {
+            lowestUnacked++;
+        }
+        if (sample >= 0) {
+            updateRtt(sample);
+        }
+        if (highest > lowestUnacked && srtt >= 0) {
+            /*比已确认分段更早发出却没收到，超过一个RTT视为丢失*/
+            retransmit(lowestUnacked, highest, now - srtt, sender);
+        }
+        return ackedCount > before;
+    }
+
+    /**
+     * @return 更新后的RTT采样，重传过的分段不采样
+     */
+    private long markAcked(int index, long now, long sample) {
+        if (isSet(acked, index)) {
+            return sample;
+        }
+        acked[index >>> 6] |= 1L << index;
+        ackedCount++;
+        if (isSet(retransmitted, index)) {
+            return sample;
+        }
+        long rtt = now - sentTimes[index];
+        return sample < 0 ? rtt : Math.min(sample, rtt);
+    }
+
+    /**
+     * 重传[from, to)中未确认且在sentBefore之前发出的分段，最后一个请求确认
+     */
+    private void retransmit(int from, int to, long sentBefore, FragmentSender sender) throws IOException {
+        int last = -1;
+        for (int i = from; i < to; i++) {
+            if (!isSet(acked, i) && sentTimes[i] <= sentBefore) {
+                if (last >= 0) {
+                    resend(last, false, sender);
+                }
+                last = i;
+            }
+        }
+        if (last >= 0) {
+            resend(last, true, sender);
+        }
+    }
+
+    private void resend(int index, boolean ackRequest, FragmentSender sender) throws IOException {
+        retransmitted[index >>> 6] |= 1L << index;
+        sentTimes[index] = System.nanoTime();
+        mRetransmitCount++;
+        sender.send(index, ackRequest);
+    }
+
+    /**
+     * RFC 6298
+     */
+    private void updateRtt(long sample) {
+        if (srtt < 0) {
+            srtt = sample;
+            rttvar = sample / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        estimatedRto = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, srtt + 4 * rttvar));
+    }
+
+    private static boolean isSet(long[] bitmap, int index) {
+        return (bitmap[index >>> 6] & (1L << index)) != 0;
+    }
+}